@@ -0,0 +1,98 @@
+package demellj.collections;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Throughput of a read-mostly workload (90% get, 10% put) as the number of
+ * threads grows, for ConcurrentRadixTree and for a RadixTree guarded by a
+ * ReentrantReadWriteLock.
+ *
+ * Usage: ConcurrentRadixTreeBench [keys] [seconds per run]
+ */
+public class ConcurrentRadixTreeBench {
+    public static void main(String[] args) throws Exception {
+        final int keyCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        final int maxThreads = Runtime.getRuntime().availableProcessors() * 2;
+
+        final String[] keys = new String[keyCount];
+        final Random random = new Random(42);
+        for (int i = 0; i < keyCount; ++i)
+            keys[i] = "/api/v" + random.nextInt(3) + "/users/" + random.nextInt(keyCount) + "/items/" + i;
+
+        final ConcurrentRadixTree<Integer> concurrent = new ConcurrentRadixTree<>();
+        final RadixTree<Integer> locked = new RadixTree<>();
+        final ReadWriteLock lock = new ReentrantReadWriteLock();
+        for (int i = 0; i < keyCount; ++i) {
+            concurrent.put(keys[i], i);
+            locked.put(keys[i], i);
+        }
+
+        System.out.printf("%8s %20s %20s%n", "threads", "concurrent ops/s", "rwlock ops/s");
+
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            final double concurrentOps = run(threads, seconds, keys, (key, write) -> {
+                if (write)
+                    concurrent.put(key, 0);
+                else
+                    concurrent.get(key);
+            });
+
+            final double lockedOps = run(threads, seconds, keys, (key, write) -> {
+                if (write) {
+                    lock.writeLock().lock();
+                    try {
+                        locked.put(key, 0);
+                    } finally {
+                        lock.writeLock().unlock();
+                    }
+                } else {
+                    lock.readLock().lock();
+                    try {
+                        locked.get(key);
+                    } finally {
+                        lock.readLock().unlock();
+                    }
+                }
+            });
+
+            System.out.printf("%8d %20.0f %20.0f%n", threads, concurrentOps, lockedOps);
+        }
+    }
+
+    private interface Operation {
+        void apply(String key, boolean write);
+    }
+
+    private static double run(int threads, int seconds, String[] keys, Operation operation) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final LongAdder operations = new LongAdder();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        final List<Future<?>> futures = new ArrayList<>();
+
+        for (int t = 0; t < threads; ++t) {
+            final int id = t;
+            futures.add(executor.submit(() -> {
+                final Random random = new Random(id);
+                long count = 0;
+
+                while ((count & 1023) != 0 || System.nanoTime() < deadline) {
+                    operation.apply(keys[random.nextInt(keys.length)], random.nextInt(10) == 0);
+                    count++;
+                }
+
+                operations.add(count);
+            }));
+        }
+
+        for (final Future<?> future : futures)
+            future.get();
+        executor.shutdown();
+
+        return operations.sum() / (double) seconds;
+    }
+}
@@ -0,0 +1,676 @@
+package demellj.collections;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Single-threaded throughput, allocation rate and retained heap of the
+ * RadixTree hot paths, against HashMap and TreeMap, over generated datasets,
+ * and the scaling of parallel findKeys with the number of threads.
+ *
+ * Every operation is warmed up, then run for a fixed time. The bytes it
+ * allocates are read from the calling thread's allocation counter, so they
+ * leave out pool threads, and the heap retained by each structure is
+ * measured after a full GC, not counting the key strings, which are shared
+ * by all of them.
+ *
+ * Usage: RadixTreeBench [-sizes 1000,10000,...] [-datasets urls,words,uuids,paths]
+ *                       [-warmup millis] [-time millis] [-csv file]
+ *                       [-baseline file] [-threshold percent]
+ *
+ * From Ant: ant bench -Dbench.args="-sizes 10000000" -Dbench.jvmargs="-Xmx16g"
+ *
+ * With -baseline, the results are compared to a file written by an earlier
+ * run with -csv, and the process exits with status 1 if any operation got
+ * slower by more than the threshold (20% by default).
+ */
+public class RadixTreeBench {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static volatile long sink; // keeps results alive, so work is not optimized away
+
+    private final long warmupMillis;
+    private final long measureMillis;
+    private final List<String[]> results = new ArrayList<>();
+
+    private RadixTreeBench(long warmupMillis, long measureMillis) {
+        this.warmupMillis = warmupMillis;
+        this.measureMillis = measureMillis;
+    }
+
+    public static void main(String[] args) throws IOException {
+        final Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2)
+            options.put(args[i], args[i + 1]);
+
+        final String[] sizes = options.getOrDefault("-sizes", "1000,10000,100000,1000000").split(",");
+        final String[] datasets = options.getOrDefault("-datasets", "urls,words,uuids,paths").split(",");
+        final RadixTreeBench bench = new RadixTreeBench(
+                Long.parseLong(options.getOrDefault("-warmup", "200")),
+                Long.parseLong(options.getOrDefault("-time", "500")));
+
+        System.out.printf("%-6s %9s %-10s %-22s %14s %10s%n", "data", "keys", "structure", "operation", "ops/s|B/key", "B/op");
+
+        for (final String dataset : datasets) {
+            for (final String size : sizes)
+                bench.run(dataset, generate(dataset, Integer.parseInt(size)));
+        }
+
+        if (options.containsKey("-csv"))
+            bench.writeCsv(options.get("-csv"));
+
+        if (options.containsKey("-baseline")) {
+            final double threshold = Double.parseDouble(options.getOrDefault("-threshold", "20"));
+            if (!bench.compare(options.get("-baseline"), threshold))
+                System.exit(1);
+        }
+    }
+
+    private void run(String dataset, String[] keys) {
+        final int n = keys.length;
+        final Random random = new Random(7);
+
+        final String[] misses = new String[n];
+        final String[] prefixes = new String[n];
+        for (int i = 0; i < n; ++i) {
+            final String key = keys[random.nextInt(n)];
+            misses[i] = key.substring(0, key.length() - 1) + '\u0001';
+            prefixes[i] = key.substring(0, Math.max(1, key.length() / 2));
+        }
+
+        final StringBuilder builder = new StringBuilder();
+        while (builder.length() < 4096)
+            builder.append(keys[random.nextInt(n)]).append(' ');
+        final String text = builder.toString();
+        int longest = 0;
+        for (final String key : keys)
+            longest = Math.max(longest, key.length());
+        final int maxKeyLength = longest;
+
+        final String label = dataset + " " + n;
+
+        report(label, "RadixTree", "heap B/key", retainedHeapPerKey(keys, () -> fill(new RadixTree<Integer>(), keys)), 0);
+        report(label, "HashMap", "heap B/key", retainedHeapPerKey(keys, () -> fill(new HashMap<String, Integer>(), keys)), 0);
+        report(label, "TreeMap", "heap B/key", retainedHeapPerKey(keys, () -> fill(new TreeMap<String, Integer>(), keys)), 0);
+        report(label, "IntRadix", "heap B/key", retainedHeapPerKey(keys, () -> {
+            final IntRadixTree ints = new IntRadixTree();
+            for (int i = 0; i < keys.length; ++i)
+                ints.putInt(keys[i], i);
+            return ints;
+        }), 0);
+
+        final RadixTree<Integer> radix = fill(new RadixTree<>(), keys);
+        final HashMap<String, Integer> hash = fill(new HashMap<>(), keys);
+        final TreeMap<String, Integer> tree = fill(new TreeMap<>(), keys);
+
+        // the footprint estimated by stats(), next to the measured heap, but for the values
+        report(label, "RadixTree", "stats() est. B/key", radix.stats().estimatedBytes() / (double) n, 0);
+
+        final Map<String, Map<String, Integer>> maps = new LinkedHashMap<>();
+        maps.put("RadixTree", radix);
+        maps.put("HashMap", hash);
+        maps.put("TreeMap", tree);
+
+        for (final Map.Entry<String, Map<String, Integer>> entry : maps.entrySet()) {
+            final Map<String, Integer> map = entry.getValue();
+            final String name = entry.getKey();
+
+            measure(label, name, "get hit", i -> {
+                final Integer value = map.get(keys[i % n]);
+                return value == null ? 0 : value;
+            });
+            measure(label, name, "get miss", i -> map.get(misses[i % n]) == null ? 0 : 1);
+            measure(label, name, "put existing", i -> {
+                map.put(keys[i % n], i);
+                return 1;
+            });
+            measure(label, name, "remove+put", i -> {
+                final String key = keys[i % n];
+                final Integer value = map.remove(key);
+                map.put(key, value);
+                return value;
+            });
+        }
+
+        // the cost of a metrics hook on the hot path
+        final RadixTree.CountingMetrics metrics = new RadixTree.CountingMetrics();
+        radix.setMetrics(metrics);
+        measure(label, "RadixTree", "get hit (metrics)", i -> radix.get(keys[i % n]));
+        radix.setMetrics(null);
+
+        // batches of sorted keys, one operation looks up a whole batch
+        final List<String> sortedKeys = new ArrayList<>(tree.keySet());
+        final int batchSize = Math.min(256, n);
+        final Integer[] batchValues = new Integer[batchSize];
+        measure(label, "RadixTree", "get sorted batch", i -> {
+            final int from = i * batchSize % (n - batchSize + 1);
+            int found = 0;
+            for (int k = from; k < from + batchSize; ++k)
+                found += radix.get(sortedKeys.get(k)) != null ? 1 : 0;
+            return found;
+        });
+        measure(label, "RadixTree", "getAll sorted batch", i -> {
+            final int from = i * batchSize % (n - batchSize + 1);
+            return radix.getAll(sortedKeys.subList(from, from + batchSize), batchValues);
+        });
+
+        // bulk loading, one operation builds the whole tree
+        final List<Map.Entry<String, Integer>> sortedEntries = new ArrayList<>(tree.entrySet());
+        measure(label, "RadixTree", "bulk load (put)", i -> {
+            final RadixTree<Integer> built = new RadixTree<>();
+            for (final Map.Entry<String, Integer> entry : sortedEntries)
+                built.put(entry.getKey(), entry.getValue());
+            return built.size();
+        });
+        measure(label, "RadixTree", "bulk load (putAll)", i -> {
+            final RadixTree<Integer> built = new RadixTree<>();
+            built.putAll(tree);
+            return built.size();
+        });
+        measure(label, "RadixTree", "bulk load (fromSorted)", i -> RadixTree.fromSorted(sortedEntries.iterator()).size());
+        measure(label, "RadixTree", "bulk load (parallel)", i -> RadixTree.fromSorted(sortedEntries, true).size());
+
+        // set operations against a newer version of the keys: a tenth removed, changed, or added
+        final RadixTree<Integer> newer = fill(new RadixTree<>(), keys);
+        for (int i = 0; i < n; i += 10) {
+            newer.remove(keys[i]);
+            newer.put(keys[(i + 3) % n], -i);
+            newer.put(keys[(i + 7) % n] + "+", i);
+        }
+        final int[] differences = new int[1];
+        final RadixTree.DiffConsumer<Integer> counter = new RadixTree.DiffConsumer<Integer>() {
+            @Override
+            public void added(String key, Integer value) {
+                differences[0]++;
+            }
+
+            @Override
+            public void removed(String key, Integer value) {
+                differences[0]++;
+            }
+
+            @Override
+            public void changed(String key, Integer oldValue, Integer newValue) {
+                differences[0]++;
+            }
+        };
+        measure(label, "RadixTree", "diff (lockstep)", i -> {
+            radix.diff(newer, counter);
+            return differences[0];
+        });
+        measure(label, "RadixTree", "diff (entrySet+get)", i -> {
+            int count = 0;
+            for (final Map.Entry<String, Integer> entry : radix.entrySet()) {
+                final Integer value = newer.get(entry.getKey());
+                if (value == null || !value.equals(entry.getValue()))
+                    count++;
+            }
+            for (final String key : newer.keySet()) {
+                if (!radix.containsKey(key))
+                    count++;
+            }
+            return count;
+        });
+        measure(label, "RadixTree", "mergeWith", i -> radix.mergeWith(newer, Integer::sum).size());
+        measure(label, "RadixTree", "mergeWith (parallel)", i -> radix.mergeWith(newer, Integer::sum, true).size());
+        measure(label, "RadixTree", "intersect", i -> radix.intersect(newer).size());
+        measure(label, "RadixTree", "difference", i -> radix.difference(newer).size());
+
+        // persistence: the serialized tree, written and loaded back in memory
+        final ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        try {
+            radix.writeTo(serialized, ValueCodec.INTEGER);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        final byte[] image = serialized.toByteArray();
+        report(label, "RadixTree", "serialized B/key", image.length / (double) n, 0);
+        measure(label, "RadixTree", "writeTo", i -> {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(image.length);
+            try {
+                radix.writeTo(out, ValueCodec.INTEGER);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return out.size();
+        });
+        measure(label, "RadixTree", "readFrom", i -> {
+            try {
+                return RadixTree.readFrom(new ByteArrayInputStream(image), ValueCodec.INTEGER).size();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        // bounded caches of half the keys, on skewed reads that put back what they miss
+        final int[] skewed = new int[n];
+        for (int i = 0; i < n; ++i)
+            skewed[i] = (int) (n * Math.pow(random.nextDouble(), 3));
+        final int cacheSize = Math.max(1, n / 2);
+        final Map<String, Map<String, Integer>> caches = new LinkedHashMap<>();
+        caches.put("RadixLRU", new RadixTree<>(cacheSize, RadixTree.Eviction.LRU));
+        caches.put("RadixLFU", new RadixTree<>(cacheSize, RadixTree.Eviction.LFU));
+        caches.put("LinkedHash", new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                return size() > cacheSize;
+            }
+        });
+        for (final Map.Entry<String, Map<String, Integer>> entry : caches.entrySet()) {
+            final Map<String, Integer> cache = entry.getValue();
+            final int[] hits = new int[2];
+            measure(label, entry.getKey(), "cache get/put (skewed)", i -> {
+                final String key = keys[skewed[i % n]];
+                final Integer value = cache.get(key);
+                hits[value != null ? 0 : 1]++;
+                if (value == null)
+                    cache.put(key, i);
+                return value != null ? value : 0;
+            });
+            report(label, entry.getKey(), "cache hit %", 100.0 * hits[0] / Math.max(1, hits[0] + hits[1]), 0);
+        }
+
+        // UTF-8 keys in a direct buffer, looked up in place or decoded first
+        final ByteRadixTree<Integer> bytes = new ByteRadixTree<>();
+        final ByteArrayOutputStream packed = new ByteArrayOutputStream();
+        final int[] offsets = new int[n + 1];
+        for (int i = 0; i < n; ++i) {
+            final byte[] encoded = keys[i].getBytes(StandardCharsets.UTF_8);
+            bytes.put(encoded, i);
+            packed.write(encoded, 0, encoded.length);
+            offsets[i + 1] = packed.size();
+        }
+        final ByteBuffer wire = ByteBuffer.allocateDirect(packed.size());
+        wire.put(packed.toByteArray()).flip();
+        report(label, "ByteRadix", "heap B/key", retainedHeapPerKey(keys, () -> {
+            final ByteRadixTree<Integer> built = new ByteRadixTree<>();
+            for (int i = 0; i < keys.length; ++i)
+                built.put(keys[i], i);
+            return built;
+        }), 0);
+        measure(label, "ByteRadix", "get hit (direct buffer)", i -> {
+            final int k = i % n;
+            return bytes.get(wire, offsets[k], offsets[k + 1] - offsets[k]);
+        });
+        measure(label, "RadixTree", "get hit (decoded buffer)", i -> {
+            final int k = i % n;
+            final ByteBuffer key = wire.duplicate();
+            key.limit(offsets[k + 1]).position(offsets[k]);
+            return radix.get(StandardCharsets.UTF_8.decode(key).toString());
+        });
+        final byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer textWire = ByteBuffer.allocateDirect(textBytes.length);
+        textWire.put(textBytes).flip();
+        final int[] matched = new int[1];
+        measure(label, "ByteRadix", "findKeys 4KB (direct buffer)", i -> {
+            bytes.findKeys(textWire, 0, textBytes.length, (start, end, value) -> matched[0]++);
+            return matched[0];
+        });
+
+        // term frequency counting
+        final IntRadixTree counters = new IntRadixTree();
+        for (int i = 0; i < n; ++i)
+            counters.putInt(keys[i], i);
+        measure(label, "IntRadix", "addTo", i -> counters.addTo(keys[i % n], 1));
+        measure(label, "RadixTree", "addTo", i -> radix.merge(keys[i % n], 1, Integer::sum));
+        measure(label, "HashMap", "addTo", i -> hash.merge(keys[i % n], 1, Integer::sum));
+
+        measure(label, "RadixTree", "entrySet(prefix)", i -> {
+            int count = 0;
+            for (final Map.Entry<String, Integer> entry : radix.entrySet(prefixes[i % n]))
+                count += entry.getValue();
+            return count;
+        });
+        measure(label, "TreeMap", "entrySet(prefix)", i -> {
+            final String prefix = prefixes[i % n];
+            int count = 0;
+            for (final Map.Entry<String, Integer> entry : tree.subMap(prefix, prefix + Character.MAX_VALUE).entrySet())
+                count += entry.getValue();
+            return count;
+        });
+
+        // aggregation over every entry, one operation sums all values
+        measure(label, "RadixTree", "stream sum", i -> (int) radix.stream().mapToLong(Map.Entry::getValue).sum());
+        measure(label, "RadixTree", "parallel stream sum", i -> (int) radix.stream().parallel().mapToLong(Map.Entry::getValue).sum());
+        measure(label, "TreeMap", "stream sum", i -> (int) tree.entrySet().stream().mapToLong(Map.Entry::getValue).sum());
+
+        measure(label, "RadixTree", "countPrefix", i -> radix.countPrefix(prefixes[i % n]));
+        measure(label, "TreeMap", "countPrefix", i -> {
+            final String prefix = prefixes[i % n];
+            return tree.subMap(prefix, prefix + Character.MAX_VALUE).size();
+        });
+
+        measure(label, "RadixTree", "removePrefix+restore", i -> {
+            final Set<Map.Entry<String, Integer>> removed = radix.removePrefix(prefixes[i % n]);
+            for (final Map.Entry<String, Integer> entry : removed)
+                radix.put(entry.getKey(), entry.getValue());
+            return removed.size();
+        });
+        measure(label, "TreeMap", "removePrefix+restore", i -> {
+            final String prefix = prefixes[i % n];
+            final SortedMap<String, Integer> range = tree.subMap(prefix, prefix + Character.MAX_VALUE);
+            final TreeMap<String, Integer> removed = new TreeMap<>(range);
+            range.clear();
+            tree.putAll(removed);
+            return removed.size();
+        });
+
+        measure(label, "RadixTree", "findKeys 4KB", i -> radix.findKeys(text).size());
+        measure(label, "RadixTree", "findAllKeys 4KB", i -> radix.findAllKeys(text).size());
+        final char[] textChars = text.toCharArray();
+        final int[] streamed = new int[1];
+        final RadixTree<Integer>.KeyScanner scanner = radix.scanner((entry, start) -> streamed[0]++);
+        measure(label, "RadixTree", "scanner 4KB (512 feeds)", i -> {
+            for (int from = 0; from < textChars.length; from += 512)
+                scanner.feed(textChars, from, Math.min(512, textChars.length - from));
+            return streamed[0];
+        });
+        measure(label, "HashMap", "findKeys 4KB (naive)", i -> {
+            int count = 0;
+            for (int start = 0; start < text.length(); ++start) {
+                final int end = Math.min(text.length(), start + maxKeyLength);
+                for (int stop = start + 1; stop <= end; ++stop) {
+                    if (hash.containsKey(text.substring(start, stop)))
+                        count++;
+                }
+            }
+            return count;
+        });
+
+        // parallel findKeys on pools of 1, 2, 4, .. threads, up to the number of cores
+        final StringBuilder large = new StringBuilder();
+        while (large.length() < 256 * 1024)
+            large.append(text);
+        final String largeText = large.toString();
+        final int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+            final ForkJoinPool pool = new ForkJoinPool(threads);
+            measure(label, "RadixTree", "findKeys 256KB x" + threads, i -> radix.findKeys(largeText, pool).size());
+            pool.shutdown();
+
+            if (threads == cores)
+                break;
+        }
+
+        // typeahead: best 10 completions of a single char, scored by insertion order
+        final RadixTree<Integer> scored = fill(new RadixTree<>(value -> value), keys);
+        measure(label, "RadixTree", "topK 10 (1-char prefix)", i -> scored.topK(prefixes[i % n].substring(0, 1), 10).size());
+        measure(label, "TreeMap", "topK 10 (1-char prefix)", i -> {
+            final String prefix = prefixes[i % n].substring(0, 1);
+            final PriorityQueue<Integer> best = new PriorityQueue<>();
+            for (final Integer value : tree.subMap(prefix, prefix + Character.MAX_VALUE).values()) {
+                best.add(value);
+                if (best.size() > 10)
+                    best.poll();
+            }
+            return best.size();
+        });
+
+        if (dataset.equals("words")) {
+            // queries one edit away from a key: a substitution, insertion or deletion
+            final String[] queries = new String[n];
+            for (int i = 0; i < n; ++i) {
+                final StringBuilder query = new StringBuilder(keys[random.nextInt(n)]);
+                final int at = random.nextInt(query.length());
+                final char c = (char) ('a' + random.nextInt(26));
+
+                switch (random.nextInt(3)) {
+                    case 0: query.setCharAt(at, c); break;
+                    case 1: query.insert(at, c); break;
+                    default: if (query.length() > 1) query.deleteCharAt(at);
+                }
+
+                queries[i] = query.toString();
+            }
+
+            measure(label, "RadixTree", "fuzzy k=1", i -> radix.fuzzyEntries(queries[i % n], 1).size());
+            measure(label, "RadixTree", "fuzzy k=2", i -> radix.fuzzyEntries(queries[i % n], 2).size());
+            measure(label, "RadixTree", "fuzzy prefix k=1", i -> radix.fuzzyEntries(queries[i % n], 1, true).size());
+
+            if (n <= 100000) {
+                measure(label, "HashMap", "fuzzy k=1 (scan)", i -> scanWithinDistance(hash.keySet(), queries[i % n], 1));
+                measure(label, "HashMap", "fuzzy k=2 (scan)", i -> scanWithinDistance(hash.keySet(), queries[i % n], 2));
+            }
+        }
+    }
+
+    /**
+     * The baseline for fuzzy search: a bounded distance computation per key.
+     */
+    private static int scanWithinDistance(Set<String> keys, String query, int maxEdits) {
+        final int queryLength = query.length();
+        int[] previous = new int[queryLength + 1];
+        int[] row = new int[queryLength + 1];
+        int count = 0;
+
+        for (final String key : keys) {
+            if (Math.abs(key.length() - queryLength) > maxEdits)
+                continue;
+
+            for (int j = 0; j <= queryLength; ++j)
+                previous[j] = j;
+
+            for (int i = 1; i <= key.length(); ++i) {
+                row[0] = i;
+                for (int j = 1; j <= queryLength; ++j) {
+                    final int substitution = previous[j - 1] + (key.charAt(i - 1) == query.charAt(j - 1) ? 0 : 1);
+                    row[j] = Math.min(substitution, Math.min(previous[j], row[j - 1]) + 1);
+                }
+
+                final int[] swap = previous;
+                previous = row;
+                row = swap;
+            }
+
+            if (previous[queryLength] <= maxEdits)
+                count++;
+        }
+
+        return count;
+    }
+
+    private interface Operation {
+        int apply(int i);
+    }
+
+    private void measure(String label, String structure, String operation, Operation body) {
+        final long thread = Thread.currentThread().getId();
+        int i = 0;
+        long result = 0;
+
+        final long warmupEnd = System.nanoTime() + warmupMillis * 1000000L;
+        while (System.nanoTime() < warmupEnd)
+            result += body.apply(i++);
+
+        final long allocatedBefore = THREADS.getThreadAllocatedBytes(thread);
+        final long start = System.nanoTime();
+        final long end = start + measureMillis * 1000000L;
+        long operations = 0;
+        long now;
+
+        do {
+            for (int batch = 0; batch < 16; ++batch)
+                result += body.apply(i++);
+            operations += 16;
+        } while ((now = System.nanoTime()) < end);
+
+        final long allocated = THREADS.getThreadAllocatedBytes(thread) - allocatedBefore;
+        sink += result;
+
+        report(label, structure, operation, operations * 1e9 / (now - start), allocated / (double) operations);
+    }
+
+    private void report(String label, String structure, String operation, double value, double bytesPerOp) {
+        final String[] parts = label.split(" ");
+        System.out.printf("%-6s %9s %-10s %-22s %14.1f %10.1f%n", parts[0], parts[1], structure, operation, value, bytesPerOp);
+        results.add(new String[]{parts[0], parts[1], structure, operation, String.valueOf(value), String.valueOf(bytesPerOp)});
+    }
+
+    private interface Builder {
+        Object build();
+    }
+
+    /**
+     * @return the bytes retained by a structure built for keys, after a full GC
+     */
+    private static double retainedHeapPerKey(String[] keys, Builder builder) {
+        // enough copies for the heap to grow by ~64MB, well above the GC and TLAB granularity
+        final int copies = Math.max(1, (64 << 20) / (keys.length * 64));
+        final Object[] structures = new Object[copies];
+
+        builder.build(); // loads and compiles the code first, so it does not show up in the heap
+        final long before = usedHeap();
+        for (int i = 0; i < copies; ++i)
+            structures[i] = builder.build();
+        final long after = usedHeap();
+
+        sink += structures[copies - 1].hashCode() & 1;
+        return (after - before) / (double) copies / keys.length;
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+
+        for (int i = 0; i < 8; ++i) {
+            System.gc();
+            final long now = runtime.totalMemory() - runtime.freeMemory();
+            if (Math.abs(now - used) < 1024)
+                return now;
+            used = now;
+        }
+
+        return used;
+    }
+
+    private static <M extends Map<String, Integer>> M fill(M map, String[] keys) {
+        for (int i = 0; i < keys.length; ++i)
+            map.put(keys[i], i);
+        return map;
+    }
+
+    private void writeCsv(String file) throws IOException {
+        try (final PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8))) {
+            out.println("data,keys,structure,operation,value,bytesPerOp");
+            for (final String[] row : results)
+                out.println(String.join(",", row));
+        }
+    }
+
+    /**
+     * @return false if any throughput dropped by more than threshold percent
+     */
+    private boolean compare(String file, double threshold) throws IOException {
+        final Map<String, Double> baseline = new HashMap<>();
+        for (final String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+            final String[] row = line.split(",");
+            if (row.length == 6 && !row[0].equals("data"))
+                baseline.put(row[0] + " " + row[1] + " " + row[2] + " " + row[3], Double.parseDouble(row[4]));
+        }
+
+        boolean passed = true;
+
+        for (final String[] row : results) {
+            final String operation = row[3];
+            final Double before = baseline.get(row[0] + " " + row[1] + " " + row[2] + " " + operation);
+
+            if (before == null || before == 0)
+                continue;
+
+            final double value = Double.parseDouble(row[4]);
+            // heap is better when lower, throughput when higher
+            final double change = operation.startsWith("heap") ? (before - value) / before : (value - before) / before;
+
+            if (change * 100 < -threshold) {
+                passed = false;
+                System.out.printf("REGRESSION %s %s %s %s: %.1f -> %.1f (%+.1f%%)%n",
+                        row[0], row[1], row[2], operation, before, value, change * 100);
+            }
+        }
+
+        return passed;
+    }
+
+    private static String[] generate(String dataset, int count) {
+        final Random random = new Random(42);
+        final LinkedHashSet<String> keys = new LinkedHashSet<>();
+
+        while (keys.size() < count) {
+            switch (dataset) {
+                case "urls":
+                    keys.add(url(random));
+                    break;
+                case "words":
+                    keys.add(word(random));
+                    break;
+                case "uuids":
+                    keys.add(new UUID(random.nextLong(), random.nextLong()).toString());
+                    break;
+                case "paths":
+                    keys.add(path(random));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown dataset " + dataset);
+            }
+        }
+
+        return keys.toArray(new String[0]);
+    }
+
+    private static final String[] SYLLABLES = {
+            "a", "an", "ar", "be", "ble", "ca", "con", "de", "di", "en", "er", "ex", "fa", "ful", "ga", "hi",
+            "in", "ing", "ion", "is", "ka", "la", "le", "li", "ly", "ma", "ment", "mi", "na", "ness", "ni", "o",
+            "on", "or", "pa", "per", "pro", "ra", "re", "ri", "sa", "se", "si", "sion", "ta", "te", "ter", "ti",
+            "tion", "to", "tra", "u", "un", "ve", "vi", "y"
+    };
+
+    /**
+     * An English-like word of 1 to 5 syllables, the short ones being the most frequent.
+     */
+    private static String word(Random random) {
+        final StringBuilder builder = new StringBuilder();
+        final int syllables = 1 + Math.min(random.nextInt(3) + random.nextInt(3), 4);
+        for (int i = 0; i < syllables; ++i)
+            builder.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+        return builder.toString();
+    }
+
+    private static final String[] HOSTS = {
+            "www.example.com", "api.example.com", "cdn.example.net", "shop.example.org", "blog.example.io",
+            "docs.example.com", "static.example.net", "m.example.com"
+    };
+
+    private static String url(Random random) {
+        final StringBuilder builder = new StringBuilder(random.nextInt(4) == 0 ? "http://" : "https://");
+        builder.append(HOSTS[random.nextInt(HOSTS.length)]);
+
+        final int segments = 1 + random.nextInt(4);
+        for (int i = 0; i < segments; ++i)
+            builder.append('/').append(word(random));
+
+        if (random.nextBoolean())
+            builder.append("?id=").append(random.nextInt(1000000));
+
+        return builder.toString();
+    }
+
+    /**
+     * A source file path, sharing long prefixes with many others.
+     */
+    private static String path(Random random) {
+        return "/home/user" + random.nextInt(10) +
+                "/projects/" + word(random) +
+                "/src/main/java/com/example/" + word(random) +
+                "/" + word(random) +
+                "/" + Character.toUpperCase(SYLLABLES[random.nextInt(SYLLABLES.length)].charAt(0)) + word(random) + ".java";
+    }
+}
@@ -0,0 +1,614 @@
+package demellj.collections;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * A radix tree keyed by byte sequences, typically UTF-8 encoded strings.
+ *
+ * Lookups read keys straight from a byte[] range or a ByteBuffer range,
+ * heap or direct, by absolute index, so a key received in a network buffer
+ * is looked up without being decoded into a String and without allocating.
+ * Keys are compared as unsigned bytes, which for UTF-8 is the order of
+ * their code points.
+ *
+ * Nodes branch on a byte, so a node has at most 256 children: up to
+ * SPARSE_MAX of them are kept in sorted exact-size arrays, and more in a
+ * table indexed by the byte itself.
+ *
+ * This class is not thread-safe.
+ *
+ * @param <V> the type of values
+ */
+public class ByteRadixTree<V> {
+    private static final int LINEAR_SCAN = 8;  // linear scan up to this many children, binary search above
+    private static final int SPARSE_MAX = 32;  // switch to the table beyond this many children
+    private static final int DENSE_MIN = 16;   // switch back to sorted arrays below this many children
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private Node<V> root = new Node<>(EMPTY);
+    private int size = 0;
+
+    /**
+     * Receives the key occurrences found by findKeys(..).
+     */
+    @FunctionalInterface
+    public interface MatchConsumer<V> {
+        /**
+         * @param start the offset of the first byte of the key in the text
+         * @param end   the offset past the last byte of the key in the text
+         * @param value the value of the key
+         */
+        void accept(int start, int end, V value);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size <= 0;
+    }
+
+    public void clear() {
+        root = new Node<>(EMPTY);
+        size = 0;
+    }
+
+    public V get(byte[] key) {
+        return get(key, 0, key.length);
+    }
+
+    /**
+     * @return the value of the key in bytes[offset, offset + length), or null
+     */
+    public V get(byte[] bytes, int offset, int length) {
+        checkRange(bytes.length, offset, length);
+
+        final Node<V> node = findNode(bytes, offset, length);
+        return node != null ? node.value : null;
+    }
+
+    /**
+     * Looks up the key in buffer[index, index + length), by absolute index:
+     * the position and limit of buffer are neither used nor changed.
+     *
+     * @return the value of the key, or null
+     */
+    public V get(ByteBuffer buffer, int index, int length) {
+        checkRange(buffer.limit(), index, length);
+
+        if (buffer.hasArray())
+            return get(buffer.array(), buffer.arrayOffset() + index, length);
+
+        final Node<V> node = findNode(buffer, index, length);
+        return node != null ? node.value : null;
+    }
+
+    /**
+     * @return the value of the UTF-8 encoding of key, or null
+     */
+    public V get(String key) {
+        return get(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public boolean containsKey(byte[] bytes, int offset, int length) {
+        return get(bytes, offset, length) != null;
+    }
+
+    public boolean containsKey(ByteBuffer buffer, int index, int length) {
+        return get(buffer, index, length) != null;
+    }
+
+    /**
+     * @return true if some key starts with bytes[offset, offset + length)
+     */
+    public boolean containsPrefix(byte[] bytes, int offset, int length) {
+        checkRange(bytes.length, offset, length);
+
+        int matched = 0;
+        Node<V> node = root;
+
+        while (matched < length) {
+            node = node.child(bytes[offset + matched]);
+
+            if (node == null)
+                return false;
+
+            final byte[] label = node.label;
+            final int end = Math.min(label.length, length - matched);
+            for (int i = 1; i < end; ++i) {
+                if (label[i] != bytes[offset + matched + i])
+                    return false;
+            }
+            matched += label.length;
+        }
+
+        return true;
+    }
+
+    public V put(byte[] key, V value) {
+        return put(key, 0, key.length, value);
+    }
+
+    /**
+     * Maps the key in bytes[offset, offset + length) to value. The key bytes
+     * are copied into the tree.
+     *
+     * @return the previous value of the key, or null
+     */
+    public V put(byte[] bytes, int offset, int length, V value) {
+        checkRange(bytes.length, offset, length);
+
+        if (value == null)
+            throw new NullPointerException();
+
+        final Node<V> node = findOrCreateNode(bytes, offset, length);
+        final V previous = node.value;
+
+        if (previous == null)
+            size++;
+
+        node.value = value;
+        return previous;
+    }
+
+    /**
+     * Maps the UTF-8 encoding of key to value.
+     *
+     * @return the previous value of the key, or null
+     */
+    public V put(String key, V value) {
+        return put(key.getBytes(StandardCharsets.UTF_8), value);
+    }
+
+    public V remove(byte[] key) {
+        return remove(key, 0, key.length);
+    }
+
+    /**
+     * @return the previous value of the key in bytes[offset, offset + length), or null
+     */
+    public V remove(byte[] bytes, int offset, int length) {
+        checkRange(bytes.length, offset, length);
+
+        Node<V> grandParent = null;
+        Node<V> parent = null;
+        Node<V> node = root;
+        int matched = 0;
+
+        while (matched < length) {
+            final Node<V> child = node.child(bytes[offset + matched]);
+
+            if (child == null || !child.labelMatches(bytes, offset + matched, length - matched))
+                return null;
+
+            grandParent = parent;
+            parent = node;
+            node = child;
+            matched += child.label.length;
+        }
+
+        final V value = node.value;
+        if (value == null)
+            return null;
+
+        node.value = null;
+        size--;
+
+        if (node != root) {
+            if (node.childCount == 0) {
+                parent.removeChild(node);
+                if (parent != root && parent.value == null && parent.childCount == 1)
+                    grandParent.replaceChild(parent, parent.mergeWithOnlyChild());
+            } else if (node.childCount == 1) {
+                parent.replaceChild(node, node.mergeWithOnlyChild());
+            }
+        }
+
+        return value;
+    }
+
+    public V remove(String key) {
+        return remove(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Calls action with a copy of every key and its value, in unsigned
+     * lexicographic order of the keys.
+     */
+    public void forEach(BiConsumer<? super byte[], ? super V> action) {
+        final ArrayDeque<Node<V>> stack = new ArrayDeque<>();
+        final ArrayDeque<Integer> depths = new ArrayDeque<>();
+        byte[] key = new byte[16];
+        stack.push(root);
+        depths.push(0);
+
+        while (!stack.isEmpty()) {
+            final Node<V> node = stack.pop();
+            final int depth = depths.pop();
+            final int end = depth + node.label.length;
+
+            if (end > key.length)
+                key = Arrays.copyOf(key, Math.max(end, key.length * 2));
+            System.arraycopy(node.label, 0, key, depth, node.label.length);
+
+            for (int i = node.children == null ? -1 : node.children.length - 1; i >= 0; --i) {
+                if (node.children[i] != null) {
+                    stack.push(node.children[i]);
+                    depths.push(end);
+                }
+            }
+
+            if (node.value != null)
+                action.accept(Arrays.copyOf(key, end), node.value);
+        }
+    }
+
+    /**
+     * Reports every occurrence of every key in text[offset, offset + length),
+     * including keys that are prefixes of other keys found at the same start,
+     * in order of start offset then of length. The empty key, when present,
+     * is reported once, at offset.
+     *
+     * @param action called with the bounds and the value of each occurrence
+     */
+    public void findKeys(byte[] text, int offset, int length, MatchConsumer<? super V> action) {
+        checkRange(text.length, offset, length);
+
+        final int textEnd = offset + length;
+
+        if (root.value != null)
+            action.accept(offset, offset, root.value);
+
+        for (int start = offset; start < textEnd; ++start) {
+            Node<V> node = root;
+            int position = start;
+
+            while (position < textEnd) {
+                node = node.child(text[position]);
+
+                if (node == null || !node.labelMatches(text, position, textEnd - position))
+                    break;
+
+                position += node.label.length;
+                if (node.value != null)
+                    action.accept(start, position, node.value);
+            }
+        }
+    }
+
+    /**
+     * findKeys(..) over buffer[index, index + length), by absolute index, for
+     * heap and direct buffers alike.
+     */
+    public void findKeys(ByteBuffer buffer, int index, int length, MatchConsumer<? super V> action) {
+        checkRange(buffer.limit(), index, length);
+
+        if (buffer.hasArray()) {
+            final int base = buffer.arrayOffset();
+            findKeys(buffer.array(), base + index, length,
+                    (start, end, value) -> action.accept(start - base, end - base, value));
+            return;
+        }
+
+        final int textEnd = index + length;
+
+        if (root.value != null)
+            action.accept(index, index, root.value);
+
+        for (int start = index; start < textEnd; ++start) {
+            Node<V> node = root;
+            int position = start;
+
+            while (position < textEnd) {
+                node = node.child(buffer.get(position));
+
+                if (node == null || !node.labelMatches(buffer, position, textEnd - position))
+                    break;
+
+                position += node.label.length;
+                if (node.value != null)
+                    action.accept(start, position, node.value);
+            }
+        }
+    }
+
+    private static void checkRange(int capacity, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > capacity - length)
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length + ", capacity " + capacity);
+    }
+
+    /**
+     * @return the node whose key is exactly bytes[offset, offset + length), which may have no value, or null
+     */
+    private Node<V> findNode(byte[] bytes, int offset, int length) {
+        int matched = 0;
+        Node<V> node = root;
+
+        while (matched < length) {
+            node = node.child(bytes[offset + matched]);
+
+            if (node == null || !node.labelMatches(bytes, offset + matched, length - matched))
+                return null;
+
+            matched += node.label.length;
+        }
+
+        return node;
+    }
+
+    /**
+     * @return the node whose key is exactly buffer[index, index + length), which may have no value, or null
+     */
+    private Node<V> findNode(ByteBuffer buffer, int index, int length) {
+        int matched = 0;
+        Node<V> node = root;
+
+        while (matched < length) {
+            node = node.child(buffer.get(index + matched));
+
+            if (node == null || !node.labelMatches(buffer, index + matched, length - matched))
+                return null;
+
+            matched += node.label.length;
+        }
+
+        return node;
+    }
+
+    /**
+     * @return the node whose key is exactly bytes[offset, offset + length), splitting or adding nodes as needed
+     */
+    private Node<V> findOrCreateNode(byte[] bytes, int offset, int length) {
+        int matched = 0;
+        Node<V> node = root;
+
+        while (matched < length) {
+            final Node<V> child = node.child(bytes[offset + matched]);
+
+            if (child == null) {
+                final Node<V> leaf = new Node<>(Arrays.copyOfRange(bytes, offset + matched, offset + length));
+                node.addChild(leaf);
+                return leaf;
+            }
+
+            final byte[] label = child.label;
+            final int end = Math.min(label.length, length - matched);
+            int i = 1;
+            while (i < end && label[i] == bytes[offset + matched + i])
+                i++;
+
+            if (i < label.length) {
+                // split the child at i, its tail keeps its identity and subtree
+                final Node<V> head = new Node<>(Arrays.copyOf(label, i));
+                child.label = Arrays.copyOfRange(label, i, label.length);
+                head.addChild(child);
+                node.replaceChild(head, head);
+                node = head;
+            } else {
+                node = child;
+            }
+
+            matched += i;
+        }
+
+        return node;
+    }
+
+    private static final class Node<V> {
+        private byte[] label; // the bytes of the edge to this node, exact size, empty for the root
+        private V value;
+
+        // up to SPARSE_MAX children: the first bytes of the children, sorted
+        // as unsigned, and the children, in exact-size arrays; beyond that,
+        // keys is null and children is a table indexed by the first byte
+        private byte[] keys;
+        private Node<V>[] children;
+        private int childCount;
+
+        private Node(byte[] label) {
+            this.label = label;
+        }
+
+        /**
+         * @return true if the label matches the bytes[offset, offset + length)
+         * it starts, whose first byte was already matched by child(..)
+         */
+        private boolean labelMatches(byte[] bytes, int offset, int length) {
+            if (label.length > length)
+                return false;
+
+            for (int i = 1; i < label.length; ++i) {
+                if (label[i] != bytes[offset + i])
+                    return false;
+            }
+
+            return true;
+        }
+
+        private boolean labelMatches(ByteBuffer buffer, int index, int length) {
+            if (label.length > length)
+                return false;
+
+            for (int i = 1; i < label.length; ++i) {
+                if (label[i] != buffer.get(index + i))
+                    return false;
+            }
+
+            return true;
+        }
+
+        /**
+         * Locate a byte in the sorted arrays.
+         *
+         * @return the index of the child if found, otherwise (-(insertion point) - 1)
+         */
+        private int indexOf(byte b) {
+            final int key = b & 0xFF;
+
+            if (childCount <= LINEAR_SCAN) {
+                for (int i = 0; i < childCount; ++i) {
+                    final int k = keys[i] & 0xFF;
+                    if (k == key)
+                        return i;
+                    if (k > key)
+                        return -(i + 1);
+                }
+                return -(childCount + 1);
+            }
+
+            int lo = 0;
+            int hi = childCount - 1;
+            while (lo <= hi) {
+                final int mid = (lo + hi) >>> 1;
+                final int k = keys[mid] & 0xFF;
+
+                if (k < key)
+                    lo = mid + 1;
+                else if (k > key)
+                    hi = mid - 1;
+                else
+                    return mid;
+            }
+            return -(lo + 1);
+        }
+
+        private Node<V> child(byte b) {
+            if (children == null)
+                return null;
+
+            if (keys == null)
+                return children[b & 0xFF];
+
+            final int idx = indexOf(b);
+            return idx >= 0 ? children[idx] : null;
+        }
+
+        private void addChild(Node<V> child) {
+            final byte b = child.label[0];
+
+            if (children == null) {
+                keys = new byte[]{b};
+                children = newArray(1);
+                children[0] = child;
+                childCount = 1;
+                return;
+            }
+
+            if (keys == null) {
+                children[b & 0xFF] = child;
+                childCount++;
+                return;
+            }
+
+            if (childCount == SPARSE_MAX) {
+                final Node<V>[] table = newArray(256);
+                for (int i = 0; i < childCount; ++i)
+                    table[keys[i] & 0xFF] = children[i];
+                table[b & 0xFF] = child;
+                keys = null;
+                children = table;
+                childCount++;
+                return;
+            }
+
+            final int pos = -(indexOf(b) + 1);
+            final byte[] newKeys = new byte[childCount + 1];
+            final Node<V>[] newChildren = newArray(childCount + 1);
+            System.arraycopy(keys, 0, newKeys, 0, pos);
+            System.arraycopy(children, 0, newChildren, 0, pos);
+            System.arraycopy(keys, pos, newKeys, pos + 1, childCount - pos);
+            System.arraycopy(children, pos, newChildren, pos + 1, childCount - pos);
+            newKeys[pos] = b;
+            newChildren[pos] = child;
+            keys = newKeys;
+            children = newChildren;
+            childCount++;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private static <V> Node<V>[] newArray(int length) {
+            return (Node<V>[]) new Node[length];
+        }
+
+        /**
+         * Puts replacement in the slot of the child starting with the same byte.
+         */
+        private void replaceChild(Node<V> child, Node<V> replacement) {
+            final byte b = child.label[0];
+
+            if (keys == null)
+                children[b & 0xFF] = replacement;
+            else
+                children[indexOf(b)] = replacement;
+        }
+
+        private void removeChild(Node<V> child) {
+            final byte b = child.label[0];
+
+            if (childCount == 1) {
+                keys = null;
+                children = null;
+                childCount = 0;
+                return;
+            }
+
+            if (keys == null) {
+                children[b & 0xFF] = null;
+                childCount--;
+
+                if (childCount < DENSE_MIN) {
+                    final byte[] sparseKeys = new byte[childCount];
+                    final Node<V>[] sparseChildren = newArray(childCount);
+                    int count = 0;
+                    for (int i = 0; i < children.length; ++i) {
+                        if (children[i] != null) {
+                            sparseKeys[count] = (byte) i;
+                            sparseChildren[count] = children[i];
+                            count++;
+                        }
+                    }
+                    keys = sparseKeys;
+                    children = sparseChildren;
+                }
+                return;
+            }
+
+            final int idx = indexOf(b);
+            final int newCount = childCount - 1;
+            final byte[] newKeys = new byte[newCount];
+            final Node<V>[] newChildren = newArray(newCount);
+            System.arraycopy(keys, 0, newKeys, 0, idx);
+            System.arraycopy(children, 0, newChildren, 0, idx);
+            System.arraycopy(keys, idx + 1, newKeys, idx, newCount - idx);
+            System.arraycopy(children, idx + 1, newChildren, idx, newCount - idx);
+            keys = newKeys;
+            children = newChildren;
+            childCount = newCount;
+        }
+
+        /**
+         * The only child takes over this valueless node's label, prepended to its own.
+         *
+         * @return the only child, to put in place of this node
+         */
+        private Node<V> mergeWithOnlyChild() {
+            Node<V> child = null;
+            for (final Node<V> candidate : children) {
+                if (candidate != null) {
+                    child = candidate;
+                    break;
+                }
+            }
+
+            final byte[] merged = Arrays.copyOf(label, label.length + child.label.length);
+            System.arraycopy(child.label, 0, merged, label.length, child.label.length);
+            child.label = merged;
+            return child;
+        }
+    }
+}
@@ -0,0 +1,682 @@
+package demellj.collections;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread-safe radix tree.
+ *
+ * The tree is made of mutable indirection nodes (INode), each publishing an
+ * immutable Branch through a volatile field. A Branch holds the value of the
+ * key ending at its INode, and the sorted, compressed edges to the INodes
+ * below. Reads never lock: get(..), containsPrefix(..) and findKeys(..)
+ * descend through Branch snapshots in a bounded number of steps.
+ *
+ * Writers lock only the INodes whose Branch they replace: one for a put, and
+ * up to three (grand parent, parent, node; always top-down) for a removal that
+ * merges nodes back together. An INode dropped by a merge is retired, and a
+ * writer that finds a retired INode after locking starts over from the root.
+ *
+ * Iterators are weakly consistent, like those of ConcurrentHashMap, and walk
+ * the keys in lexicographic order.
+ *
+ * @param <V> the type of values
+ */
+public class ConcurrentRadixTree<V> extends AbstractMap<String, V> implements ConcurrentMap<String, V> {
+    private final INode<V> root = new INode<>(Branch.<V>empty());
+    private final AtomicInteger size = new AtomicInteger();
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size.get() <= 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public V get(Object o) {
+        if (!(o instanceof String))
+            return null;
+
+        final String key = (String) o;
+        final int keyLength = key.length();
+
+        INode<V> node = root;
+        int depth = 0;
+
+        while (true) {
+            final Branch<V> branch = node.main;
+
+            if (depth == keyLength)
+                return branch.value;
+
+            final Edge<V> edge = branch.edge(key.charAt(depth));
+
+            if (edge == null || edge.end > keyLength)
+                return null;
+
+            for (int i = depth + 1; i < edge.end; ++i) {
+                if (edge.ref.charAt(i) != key.charAt(i))
+                    return null;
+            }
+
+            node = edge.target;
+            depth = edge.end;
+        }
+    }
+
+    public boolean containsPrefix(String prefix) {
+        final int prefixLength = prefix.length();
+
+        INode<V> node = root;
+        int depth = 0;
+
+        while (depth < prefixLength) {
+            final Edge<V> edge = node.main.edge(prefix.charAt(depth));
+
+            if (edge == null)
+                return false;
+
+            final int labelEnd = Math.min(edge.end, prefixLength);
+            for (int i = depth + 1; i < labelEnd; ++i) {
+                if (edge.ref.charAt(i) != prefix.charAt(i))
+                    return false;
+            }
+
+            node = edge.target;
+            depth = edge.end;
+        }
+
+        return true;
+    }
+
+    /**
+     * O(|text| * k) search for every occurrence of every key in the specified
+     * text, where k is the length of the longest key. The empty key, when
+     * present, is reported once at offset 0.
+     *
+     * Each offset is matched against the tree as published at that time, so
+     * keys put or removed during the search may or may not be reported.
+     *
+     * @param text the text in which find all key occurrences
+     * @return a list of complete key matches, ordered by matchStart and, for
+     * the same matchStart, by matchEnd
+     */
+    public ArrayList<Match> findKeys(String text) {
+        final ArrayList<Match> result = new ArrayList<>();
+        final int textLength = text.length();
+
+        final V empty = root.main.value;
+        if (empty != null) // account of empty prefix
+            result.add(new Match("", empty, 0, 0));
+
+        for (int offset = 0; offset < textLength; ++offset) {
+            INode<V> node = root;
+            int depth = 0;
+
+            while (offset + depth < textLength) {
+                final Edge<V> edge = node.main.edge(text.charAt(offset + depth));
+
+                if (edge == null || offset + edge.end > textLength)
+                    break;
+
+                int i = depth + 1;
+                while (i < edge.end && edge.ref.charAt(i) == text.charAt(offset + i))
+                    i++;
+
+                if (i < edge.end)
+                    break;
+
+                node = edge.target;
+                depth = edge.end;
+
+                final V value = node.main.value;
+                if (value != null)
+                    result.add(new Match(edge.ref, value, offset, offset + depth));
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public V put(String key, V value) {
+        if (key == null || value == null)
+            throw new NullPointerException();
+
+        return putValue(key, value, false);
+    }
+
+    @Override
+    public V putIfAbsent(String key, V value) {
+        if (key == null || value == null)
+            throw new NullPointerException();
+
+        return putValue(key, value, true);
+    }
+
+    @Override
+    public V remove(Object key) {
+        if (!(key instanceof String))
+            return null;
+
+        return replaceValue((String) key, null, null);
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        if (!(key instanceof String) || value == null)
+            return false;
+
+        return replaceValue((String) key, null, value) != null;
+    }
+
+    @Override
+    public V replace(String key, V value) {
+        if (key == null || value == null)
+            throw new NullPointerException();
+
+        return replaceValue(key, value, null);
+    }
+
+    @Override
+    public boolean replace(String key, V oldValue, V newValue) {
+        if (key == null || oldValue == null || newValue == null)
+            throw new NullPointerException();
+
+        return replaceValue(key, newValue, oldValue) != null;
+    }
+
+    /**
+     * Returns a weakly consistent view of the entries, in lexicographic order
+     * of their keys. Entries write through to the tree on setValue(..).
+     */
+    @Override
+    public Set<Entry<String, V>> entrySet() {
+        return new AbstractSet<Entry<String, V>>() {
+            @Override
+            public Iterator<Entry<String, V>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return ConcurrentRadixTree.this.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                if (!(o instanceof Entry))
+                    return false;
+
+                final Entry<?, ?> entry = (Entry<?, ?>) o;
+                final Object value = entry.getValue();
+
+                return value != null && value.equals(get(entry.getKey()));
+            }
+
+            @Override
+            public boolean remove(Object o) {
+                if (!(o instanceof Entry))
+                    return false;
+
+                final Entry<?, ?> entry = (Entry<?, ?>) o;
+                return ConcurrentRadixTree.this.remove(entry.getKey(), entry.getValue());
+            }
+        };
+    }
+
+    private V putValue(String key, V value, boolean onlyIfAbsent) {
+        final int keyLength = key.length();
+
+        restart:
+        while (true) {
+            INode<V> node = root;
+            int depth = 0;
+
+            while (true) {
+                if (depth == keyLength) {
+                    synchronized (node) {
+                        if (node.retired)
+                            continue restart;
+
+                        final Branch<V> branch = node.main;
+                        final V presentValue = branch.value;
+
+                        if (presentValue == null || !onlyIfAbsent)
+                            node.main = branch.withValue(value);
+                        if (presentValue == null)
+                            size.incrementAndGet();
+
+                        return presentValue;
+                    }
+                }
+
+                final char c = key.charAt(depth);
+                final Edge<V> edge = node.main.edge(c);
+
+                if (edge == null) {
+                    synchronized (node) {
+                        if (node.retired)
+                            continue restart;
+
+                        final Branch<V> branch = node.main;
+
+                        if (branch.edge(c) == null) {
+                            final INode<V> leaf = new INode<>(Branch.leaf(value));
+                            node.main = branch.withEdge(new Edge<>(key, depth, keyLength, leaf));
+                            size.incrementAndGet();
+                            return null;
+                        }
+                    }
+                    continue; // lost a race for this edge, look again
+                }
+
+                final int labelEnd = Math.min(edge.end, keyLength);
+                int i = depth + 1;
+                while (i < labelEnd && edge.ref.charAt(i) == key.charAt(i))
+                    i++;
+
+                if (i == edge.end) {
+                    node = edge.target;
+                    depth = edge.end;
+                    continue;
+                }
+
+                // key diverges from, or ends within, the edge label: split the edge at i
+                synchronized (node) {
+                    if (node.retired)
+                        continue restart;
+
+                    final Branch<V> branch = node.main;
+
+                    if (branch.edge(c) == edge) {
+                        final Edge<V> lower = new Edge<>(edge.ref, i, edge.end, edge.target);
+                        final Branch<V> split;
+
+                        if (i == keyLength) {
+                            split = Branch.of(value, lower, null);
+                        } else {
+                            final INode<V> leaf = new INode<>(Branch.leaf(value));
+                            split = Branch.of(null, lower, new Edge<>(key, i, keyLength, leaf));
+                        }
+
+                        node.main = branch.withEdge(new Edge<>(edge.ref, depth, i, new INode<>(split)));
+                        size.incrementAndGet();
+                        return null;
+                    }
+                }
+                // the edge changed under us, look again
+            }
+        }
+    }
+
+    /**
+     * Replaces, or removes, the value of a present key.
+     *
+     * @param key the key
+     * @param value the new value, or null to remove the key
+     * @param expect if not null, the update happens only if the current value equals expect
+     * @return the previous value, or null if nothing was updated
+     */
+    private V replaceValue(String key, V value, Object expect) {
+        final int keyLength = key.length();
+
+        restart:
+        while (true) {
+            INode<V> grandParent = null;
+            INode<V> parent = null;
+            INode<V> node = root;
+            Edge<V> grandParentEdge = null; // from grandParent to parent
+            Edge<V> parentEdge = null;      // from parent to node
+            int depth = 0;
+
+            while (depth < keyLength) {
+                final Edge<V> edge = node.main.edge(key.charAt(depth));
+
+                if (edge == null || edge.end > keyLength)
+                    return null;
+
+                for (int i = depth + 1; i < edge.end; ++i) {
+                    if (edge.ref.charAt(i) != key.charAt(i))
+                        return null;
+                }
+
+                grandParent = parent;
+                grandParentEdge = parentEdge;
+                parent = node;
+                parentEdge = edge;
+                node = edge.target;
+                depth = edge.end;
+            }
+
+            if (node.main.value == null)
+                return null;
+
+            if (value != null) {
+                synchronized (node) {
+                    if (node.retired)
+                        continue restart;
+
+                    final Branch<V> branch = node.main;
+                    final V presentValue = branch.value;
+
+                    if (presentValue == null || (expect != null && !expect.equals(presentValue)))
+                        return null;
+
+                    node.main = branch.withValue(value);
+                    return presentValue;
+                }
+            }
+
+            // removal may merge node into parent, or parent into grandParent
+            synchronized (grandParent != null ? grandParent : parent != null ? parent : node) {
+                synchronized (parent != null ? parent : node) {
+                    synchronized (node) {
+                        if (node.retired ||
+                                (parent != null && (parent.retired || parent.main.edge(key.charAt(parentEdge.start)) != parentEdge)) ||
+                                (grandParent != null && (grandParent.retired || grandParent.main.edge(key.charAt(grandParentEdge.start)) != grandParentEdge)))
+                            continue restart;
+
+                        final Branch<V> branch = node.main;
+                        final V presentValue = branch.value;
+
+                        if (presentValue == null || (expect != null && !expect.equals(presentValue)))
+                            return null;
+
+                        final Branch<V> removed = branch.withValue(null);
+                        node.main = removed;
+                        size.decrementAndGet();
+
+                        if (node == root)
+                            return presentValue;
+
+                        if (removed.edges.length == 0) {
+                            // drop node from parent
+                            node.retired = true;
+                            final Branch<V> parentBranch = parent.main.withoutEdge(parentEdge);
+
+                            if (parent != root && parentBranch.value == null && parentBranch.edges.length == 1) {
+                                // parent is left with an only child, merge it into the grand parent's edge
+                                final Edge<V> onlyEdge = parentBranch.edges[0];
+                                parent.main = parentBranch;
+                                parent.retired = true;
+                                grandParent.main = grandParent.main.withEdge(
+                                        new Edge<>(onlyEdge.ref, grandParentEdge.start, onlyEdge.end, onlyEdge.target));
+                            } else {
+                                parent.main = parentBranch;
+                            }
+                        } else if (removed.edges.length == 1) {
+                            // node is left with an only child, merge it into the parent's edge
+                            final Edge<V> onlyEdge = removed.edges[0];
+                            node.retired = true;
+                            parent.main = parent.main.withEdge(
+                                    new Edge<>(onlyEdge.ref, parentEdge.start, onlyEdge.end, onlyEdge.target));
+                        }
+
+                        return presentValue;
+                    }
+                }
+            }
+        }
+    }
+
+    public class Match {
+        private final String ref;
+        private final V value;
+
+        public final int matchStart; // inclusive
+        public final int matchEnd;   // exclusive
+
+        private Match(String ref, V value, int matchStart, int matchEnd) {
+            this.ref = ref;
+            this.value = value;
+            this.matchStart = matchStart;
+            this.matchEnd = matchEnd;
+        }
+
+        public Entry<String, V> getEntry() {
+            return new AbstractMap.SimpleImmutableEntry<>(ref.substring(0, matchEnd - matchStart), value);
+        }
+    }
+
+    /**
+     * Depth-first, pre-order walk over the Branch snapshots, reading each
+     * INode once when it is reached.
+     */
+    private class EntryIterator implements Iterator<Entry<String, V>> {
+        private final ArrayDeque<Edge<V>> stack = new ArrayDeque<>();
+        private Entry<String, V> next;
+        private Entry<String, V> lastReturned;
+
+        private EntryIterator() {
+            final Branch<V> branch = root.main;
+            push(branch);
+            if (branch.value != null)
+                next = new WriteThroughEntry("", branch.value);
+            else
+                next = advance();
+        }
+
+        private void push(Branch<V> branch) {
+            for (int i = branch.edges.length - 1; i >= 0; --i)
+                stack.push(branch.edges[i]);
+        }
+
+        private Entry<String, V> advance() {
+            while (!stack.isEmpty()) {
+                final Edge<V> edge = stack.pop();
+                final Branch<V> branch = edge.target.main;
+                push(branch);
+
+                if (branch.value != null)
+                    return new WriteThroughEntry(edge.ref.substring(0, edge.end), branch.value);
+            }
+
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry<String, V> next() {
+            if (next == null)
+                throw new NoSuchElementException();
+
+            lastReturned = next;
+            next = advance();
+            return lastReturned;
+        }
+
+        @Override
+        public void remove() {
+            if (lastReturned == null)
+                throw new IllegalStateException();
+
+            ConcurrentRadixTree.this.remove(lastReturned.getKey());
+            lastReturned = null;
+        }
+    }
+
+    private class WriteThroughEntry extends AbstractMap.SimpleEntry<String, V> {
+        private static final long serialVersionUID = 1L;
+
+        private WriteThroughEntry(String key, V value) {
+            super(key, value);
+        }
+
+        @Override
+        public V setValue(V value) {
+            if (value == null)
+                throw new NullPointerException();
+
+            final V previousValue = super.setValue(value);
+            put(getKey(), value);
+            return previousValue;
+        }
+    }
+
+    /**
+     * A mutable indirection to the current Branch of a node. Writers lock the
+     * INode itself; retired is only accessed while holding that lock.
+     */
+    private static final class INode<V> {
+        private volatile Branch<V> main;
+        private boolean retired = false;
+
+        private INode(Branch<V> main) {
+            this.main = main;
+        }
+    }
+
+    /**
+     * An immutable compressed edge, matching ref[start, end) and leading to target.
+     */
+    private static final class Edge<V> {
+        private final String ref;
+        private final int start; // inclusive
+        private final int end;   // exclusive
+        private final INode<V> target;
+
+        private Edge(String ref, int start, int end, INode<V> target) {
+            this.ref = ref;
+            this.start = start;
+            this.end = end;
+            this.target = target;
+        }
+
+        private char first() {
+            return ref.charAt(start);
+        }
+    }
+
+    /**
+     * An immutable snapshot of a node: its value and its edges, sorted by
+     * their first char. Updates return a copy.
+     */
+    private static final class Branch<V> {
+        private static final Branch<?> EMPTY = new Branch<>(null, new char[0], newEdgeArray(0));
+
+        private final V value;
+        private final char[] labels;
+        private final Edge<V>[] edges;
+
+        private Branch(V value, char[] labels, Edge<V>[] edges) {
+            this.value = value;
+            this.labels = labels;
+            this.edges = edges;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <V> Branch<V> empty() {
+            return (Branch<V>) EMPTY;
+        }
+
+        private static <V> Branch<V> leaf(V value) {
+            return new Branch<>(value, new char[0], Branch.<V>newEdgeArray(0));
+        }
+
+        /**
+         * @param value the value, or null
+         * @param a an edge
+         * @param b another edge starting with a different char, or null
+         */
+        private static <V> Branch<V> of(V value, Edge<V> a, Edge<V> b) {
+            if (b == null) {
+                final Edge<V>[] edges = newEdgeArray(1);
+                edges[0] = a;
+                return new Branch<>(value, new char[]{a.first()}, edges);
+            }
+
+            final Edge<V>[] edges = newEdgeArray(2);
+            edges[0] = a.first() < b.first() ? a : b;
+            edges[1] = a.first() < b.first() ? b : a;
+            return new Branch<>(value, new char[]{edges[0].first(), edges[1].first()}, edges);
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <V> Edge<V>[] newEdgeArray(int length) {
+            return (Edge<V>[]) new Edge<?>[length];
+        }
+
+        private Edge<V> edge(char c) {
+            final int idx = indexOf(c);
+            return idx >= 0 ? edges[idx] : null;
+        }
+
+        private int indexOf(char c) {
+            final int length = labels.length;
+
+            if (length <= 8) {
+                for (int i = 0; i < length; ++i) {
+                    if (labels[i] == c)
+                        return i;
+                    if (labels[i] > c)
+                        return -(i + 1);
+                }
+                return -(length + 1);
+            }
+
+            return Arrays.binarySearch(labels, c);
+        }
+
+        private Branch<V> withValue(V newValue) {
+            return new Branch<>(newValue, labels, edges);
+        }
+
+        /**
+         * @return a copy with the edge added, or replacing the edge starting with the same char
+         */
+        private Branch<V> withEdge(Edge<V> edge) {
+            final int idx = indexOf(edge.first());
+
+            if (idx >= 0) {
+                final Edge<V>[] newEdges = edges.clone();
+                newEdges[idx] = edge;
+                return new Branch<>(value, labels, newEdges);
+            }
+
+            final int pos = -(idx + 1);
+            final int length = labels.length;
+            final char[] newLabels = new char[length + 1];
+            final Edge<V>[] newEdges = newEdgeArray(length + 1);
+
+            System.arraycopy(labels, 0, newLabels, 0, pos);
+            System.arraycopy(edges, 0, newEdges, 0, pos);
+            newLabels[pos] = edge.first();
+            newEdges[pos] = edge;
+            System.arraycopy(labels, pos, newLabels, pos + 1, length - pos);
+            System.arraycopy(edges, pos, newEdges, pos + 1, length - pos);
+
+            return new Branch<>(value, newLabels, newEdges);
+        }
+
+        private Branch<V> withoutEdge(Edge<V> edge) {
+            final int idx = indexOf(edge.first());
+            assert idx >= 0 && edges[idx] == edge;
+
+            final int length = labels.length;
+            final char[] newLabels = new char[length - 1];
+            final Edge<V>[] newEdges = newEdgeArray(length - 1);
+
+            System.arraycopy(labels, 0, newLabels, 0, idx);
+            System.arraycopy(edges, 0, newEdges, 0, idx);
+            System.arraycopy(labels, idx + 1, newLabels, idx, length - idx - 1);
+            System.arraycopy(edges, idx + 1, newEdges, idx, length - idx - 1);
+
+            return new Branch<>(value, newLabels, newEdges);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package demellj.collections;
+
+import java.util.function.ObjIntConsumer;
+
+/**
+ * A radix tree mapping strings to primitive ints.
+ *
+ * Values are stored unboxed in the nodes, next to a presence flag, so an
+ * entry costs no Integer object, and getInt(..), putInt(..) and addTo(..)
+ * on existing keys allocate nothing. Absent keys read as
+ * defaultReturnValue(), 0 unless set otherwise.
+ *
+ * This class is not thread-safe.
+ */
+public class IntRadixTree extends PrimitiveRadixTree {
+    private int defaultReturnValue = 0;
+
+    /**
+     * @return the value read for absent keys
+     */
+    public int defaultReturnValue() {
+        return defaultReturnValue;
+    }
+
+    public void defaultReturnValue(int value) {
+        defaultReturnValue = value;
+    }
+
+    /**
+     * @return the value of key, or defaultReturnValue() if key is absent
+     */
+    public int getInt(CharSequence key) {
+        final IntNode node = (IntNode) findNode(key);
+        return node != null && node.present ? node.value : defaultReturnValue;
+    }
+
+    /**
+     * @return the previous value of key, or defaultReturnValue() if key was absent
+     */
+    public int putInt(String key, int value) {
+        final IntNode node = (IntNode) findOrCreateNode(key);
+        final int previous = node.present ? node.value : defaultReturnValue;
+
+        addKey(node);
+        node.value = value;
+        return previous;
+    }
+
+    /**
+     * Adds increment to the value of key in a single descent, an absent key
+     * counting as defaultReturnValue().
+     *
+     * @return the previous value of key, or defaultReturnValue() if key was absent
+     */
+    public int addTo(String key, int increment) {
+        final IntNode node = (IntNode) findOrCreateNode(key);
+        final int previous = node.present ? node.value : defaultReturnValue;
+
+        addKey(node);
+        node.value = previous + increment;
+        return previous;
+    }
+
+    /**
+     * @return the previous value of key, or defaultReturnValue() if key was absent
+     */
+    public int removeInt(CharSequence key) {
+        final IntNode node = (IntNode) removeNode(key);
+
+        if (node == null)
+            return defaultReturnValue;
+
+        final int value = node.value;
+        node.value = 0;
+        return value;
+    }
+
+    /**
+     * Calls action with every key and value, in lexicographic order of the keys.
+     */
+    public void forEach(ObjIntConsumer<? super String> action) {
+        forEach("", action);
+    }
+
+    /**
+     * Calls action with every key starting with prefix and its value, in
+     * lexicographic order of the keys.
+     */
+    public void forEach(String prefix, ObjIntConsumer<? super String> action) {
+        forEachNode(prefix, node -> action.accept(node.key(), ((IntNode) node).value));
+    }
+
+    @Override
+    Node newNode(String ref, int start, int end) {
+        return new IntNode(ref, start, end);
+    }
+
+    private static final class IntNode extends Node {
+        private int value;
+
+        private IntNode(String ref, int start, int end) {
+            super(ref, start, end);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package demellj.collections;
+
+import java.util.function.ObjLongConsumer;
+
+/**
+ * A radix tree mapping strings to primitive longs.
+ *
+ * Values are stored unboxed in the nodes, next to a presence flag, so an
+ * entry costs no Long object, and getLong(..), putLong(..) and addTo(..)
+ * on existing keys allocate nothing. Absent keys read as
+ * defaultReturnValue(), 0 unless set otherwise.
+ *
+ * This class is not thread-safe.
+ */
+public class LongRadixTree extends PrimitiveRadixTree {
+    private long defaultReturnValue = 0;
+
+    /**
+     * @return the value read for absent keys
+     */
+    public long defaultReturnValue() {
+        return defaultReturnValue;
+    }
+
+    public void defaultReturnValue(long value) {
+        defaultReturnValue = value;
+    }
+
+    /**
+     * @return the value of key, or defaultReturnValue() if key is absent
+     */
+    public long getLong(CharSequence key) {
+        final LongNode node = (LongNode) findNode(key);
+        return node != null && node.present ? node.value : defaultReturnValue;
+    }
+
+    /**
+     * @return the previous value of key, or defaultReturnValue() if key was absent
+     */
+    public long putLong(String key, long value) {
+        final LongNode node = (LongNode) findOrCreateNode(key);
+        final long previous = node.present ? node.value : defaultReturnValue;
+
+        addKey(node);
+        node.value = value;
+        return previous;
+    }
+
+    /**
+     * Adds increment to the value of key in a single descent, an absent key
+     * counting as defaultReturnValue().
+     *
+     * @return the previous value of key, or defaultReturnValue() if key was absent
+     */
+    public long addTo(String key, long increment) {
+        final LongNode node = (LongNode) findOrCreateNode(key);
+        final long previous = node.present ? node.value : defaultReturnValue;
+
+        addKey(node);
+        node.value = previous + increment;
+        return previous;
+    }
+
+    /**
+     * @return the previous value of key, or defaultReturnValue() if key was absent
+     */
+    public long removeLong(CharSequence key) {
+        final LongNode node = (LongNode) removeNode(key);
+
+        if (node == null)
+            return defaultReturnValue;
+
+        final long value = node.value;
+        node.value = 0;
+        return value;
+    }
+
+    /**
+     * Calls action with every key and value, in lexicographic order of the keys.
+     */
+    public void forEach(ObjLongConsumer<? super String> action) {
+        forEach("", action);
+    }
+
+    /**
+     * Calls action with every key starting with prefix and its value, in
+     * lexicographic order of the keys.
+     */
+    public void forEach(String prefix, ObjLongConsumer<? super String> action) {
+        forEachNode(prefix, node -> action.accept(node.key(), ((LongNode) node).value));
+    }
+
+    @Override
+    Node newNode(String ref, int start, int end) {
+        return new LongNode(ref, start, end);
+    }
+
+    private static final class LongNode extends Node {
+        private long value;
+
+        private LongNode(String ref, int start, int end) {
+            super(ref, start, end);
+        }
+    }
+}
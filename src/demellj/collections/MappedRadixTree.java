@@ -0,0 +1,667 @@
+package demellj.collections;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * A frozen, read-only radix tree memory-mapped from a file.
+ *
+ * The tree is kept off-heap as one contiguous, pointer-free layout: every
+ * node is a record holding its packed edge label, the sorted first chars of
+ * its children with their offsets in the file, the number of keys in its
+ * subtree, and its encoded value. Opening
+ * a file only maps it, so the heap cost and startup time do not depend on
+ * the number of keys, and pages are loaded by the OS as they are read.
+ *
+ * File layout (big-endian):
+ * <pre>
+ *   header: int MAGIC, int VERSION, int size, int root
+ *   node:   int labelLength, int childCount,
+ *           char[labelLength] label, char[childCount] firstChars,
+ *           int[childCount] children, int count, int valueLength (-1 if none), byte[valueLength] value
+ * </pre>
+ * Node records are 4-byte aligned and are referred to by their offset
+ * divided by 4, read as an unsigned int, so files of up to 16GB can be
+ * addressed. No record crosses a SEGMENT_SIZE boundary, so that each can be
+ * read from a single mapped segment.
+ *
+ * @param <V> the type of values
+ */
+public final class MappedRadixTree<V> extends AbstractMap<String, V> {
+    private static final int MAGIC = 0x52445854; // "RDXT"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = (int) (SEGMENT_SIZE - 1);
+
+    private static final int LINEAR_SCAN = 8;
+
+    private final MappedByteBuffer[] segments;
+    private final ValueCodec<V> codec;
+    private final int size;
+    private final long root;
+
+    private MappedRadixTree(MappedByteBuffer[] segments, ValueCodec<V> codec) throws IOException {
+        this.segments = segments;
+        this.codec = codec;
+
+        final ByteBuffer header = segments[0];
+        if (header.limit() < HEADER_SIZE || header.getInt(0) != MAGIC)
+            throw new IOException("Not a radix tree file");
+        if (header.getInt(4) != VERSION)
+            throw new IOException("Unsupported radix tree file version " + header.getInt(4));
+
+        this.size = header.getInt(8);
+        this.root = Integer.toUnsignedLong(header.getInt(12)) << 2;
+    }
+
+    /**
+     * Maps the specified file, as written by write(..), read-only.
+     *
+     * @param file the file to map
+     * @param codec the codec the values were written with
+     */
+    public static <V> MappedRadixTree<V> open(Path file, ValueCodec<V> codec) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long length = channel.size();
+            final MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT)];
+
+            if (segments.length == 0)
+                throw new IOException("Not a radix tree file");
+
+            for (int i = 0; i < segments.length; ++i) {
+                final long position = (long) i << SEGMENT_SHIFT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SEGMENT_SIZE, length - position));
+            }
+
+            return new MappedRadixTree<>(segments, codec);
+        }
+    }
+
+    /**
+     * Writes the entries of the specified map, e.g. a RadixTree, to a file in
+     * the layout read by open(..). The map is read once, in key order, and
+     * only the nodes along the path to the current key are kept in memory.
+     *
+     * @param map the entries to write, in natural key order
+     * @param file the file to (over)write
+     * @param codec the codec to encode values with
+     * @throws IllegalArgumentException if map is not in natural key order
+     */
+    public static <V> void write(SortedMap<String, ? extends V> map, Path file, ValueCodec<? super V> codec) throws IOException {
+        if (map.comparator() != null)
+            throw new IllegalArgumentException("Keys must be in natural order");
+
+        try (final Writer writer = new Writer(file)) {
+            final ArrayList<PendingNode> path = new ArrayList<>();
+            path.add(new PendingNode("", 0));
+            String previous = null;
+
+            for (final Entry<String, ? extends V> entry : map.entrySet()) {
+                final String key = entry.getKey();
+                final byte[] value = codec.encode(entry.getValue());
+
+                if (value == null)
+                    throw new NullPointerException();
+
+                if (previous != null && key.compareTo(previous) <= 0)
+                    throw new IllegalArgumentException("Keys must be in natural order");
+
+                emitDownTo(path, previous == null ? 0 : commonPrefixLength(previous, key), writer);
+
+                final PendingNode top = path.get(path.size() - 1);
+                if (top.end == key.length()) {
+                    top.value = value;
+                    top.count++;
+                } else {
+                    final PendingNode leaf = new PendingNode(key, key.length());
+                    leaf.value = value;
+                    leaf.count = 1;
+                    path.add(leaf);
+                }
+
+                previous = key;
+            }
+
+            emitDownTo(path, 0, writer);
+            final long rootWord = writer.emit(path.get(0), 0);
+            writer.finish(map.size(), rootWord);
+        }
+    }
+
+    /**
+     * Emits, deepest first, the nodes of path ending after depth, inserting
+     * the branching node at depth if it is missing.
+     */
+    private static void emitDownTo(ArrayList<PendingNode> path, int depth, Writer writer) throws IOException {
+        while (path.get(path.size() - 1).end > depth) {
+            final PendingNode node = path.remove(path.size() - 1);
+            PendingNode parent = path.get(path.size() - 1);
+
+            if (parent.end < depth) {
+                parent = new PendingNode(node.ref, depth);
+                path.add(parent);
+            }
+
+            parent.addChild(node.ref.charAt(parent.end), writer.emit(node, parent.end), node.count);
+        }
+    }
+
+    private static int commonPrefixLength(String a, String b) {
+        final int length = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < length && a.charAt(i) == b.charAt(i))
+            i++;
+        return i;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size <= 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && valueOffset(findNode((String) key)) >= 0;
+    }
+
+    @Override
+    public V get(Object key) {
+        if (!(key instanceof String))
+            return null;
+
+        return decodeValue(valueOffset(findNode((String) key)));
+    }
+
+    public boolean containsPrefix(String prefix) {
+        return findPrefixNode(prefix, null) >= 0;
+    }
+
+    /**
+     * O(|prefix|) count of the keys starting with prefix, read from the
+     * record of the node holding them, without visiting or decoding them.
+     *
+     * @return the number of keys starting with prefix
+     */
+    public int countPrefix(String prefix) {
+        final long node = findPrefixNode(prefix, null);
+        return node < 0 ? 0 : count(node);
+    }
+
+    /**
+     * O(|text| * k) search for every occurrence of every key in the specified
+     * text, where k is the length of the longest key. The empty key, when
+     * present, is reported once at offset 0.
+     *
+     * @param text the text in which find all key occurrences
+     * @return a list of complete key matches, ordered by matchStart and, for
+     * the same matchStart, by matchEnd
+     */
+    public ArrayList<Match> findKeys(String text) {
+        final ArrayList<Match> result = new ArrayList<>();
+        final int textLength = text.length();
+
+        final long empty = valueOffset(root);
+        if (empty >= 0) // account of empty prefix
+            result.add(new Match(text, empty, 0, 0));
+
+        for (int offset = 0; offset < textLength; ++offset) {
+            long node = root;
+            int depth = 0;
+
+            while (offset + depth < textLength) {
+                node = child(node, text.charAt(offset + depth));
+
+                if (node < 0)
+                    break;
+
+                final ByteBuffer buffer = segment(node);
+                final int position = position(node);
+                final int labelLength = buffer.getInt(position);
+
+                if (offset + depth + labelLength > textLength ||
+                        !labelMatches(buffer, position, text, offset + depth))
+                    break;
+
+                depth += labelLength;
+
+                final long value = valueOffset(node);
+                if (value >= 0)
+                    result.add(new Match(text, value, offset, offset + depth));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the entries whose keys start with the specified prefix, in
+     * lexicographic order of their keys.
+     */
+    public Set<Entry<String, V>> entrySet(String prefix) {
+        return new AbstractSet<Entry<String, V>>() {
+            @Override
+            public Iterator<Entry<String, V>> iterator() {
+                return new EntryIterator(prefix);
+            }
+
+            @Override
+            public int size() {
+                return countPrefix(prefix);
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return countPrefix(prefix) == 0;
+            }
+        };
+    }
+
+    /**
+     * Returns the keys that start with the specified prefix, in lexicographic order.
+     */
+    public Set<String> keySet(String prefix) {
+        final Set<Entry<String, V>> entries = entrySet(prefix);
+
+        return new AbstractSet<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                final Iterator<Entry<String, V>> it = entries.iterator();
+
+                return new Iterator<String>() {
+                    @Override
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public String next() {
+                        return it.next().getKey();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return entries.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof String && ((String) o).startsWith(prefix) && containsKey(o);
+            }
+        };
+    }
+
+    @Override
+    public Set<Entry<String, V>> entrySet() {
+        return entrySet("");
+    }
+
+    private ByteBuffer segment(long offset) {
+        return segments[(int) (offset >>> SEGMENT_SHIFT)];
+    }
+
+    private static int position(long offset) {
+        return (int) offset & SEGMENT_MASK;
+    }
+
+    /**
+     * @return the offset of the node matching key exactly, or -1
+     */
+    private long findNode(String key) {
+        final int keyLength = key.length();
+        long node = root;
+        int depth = 0;
+
+        while (depth < keyLength) {
+            node = child(node, key.charAt(depth));
+
+            if (node < 0)
+                return -1;
+
+            final ByteBuffer buffer = segment(node);
+            final int position = position(node);
+            final int labelLength = buffer.getInt(position);
+
+            if (depth + labelLength > keyLength || !labelMatches(buffer, position, key, depth))
+                return -1;
+
+            depth += labelLength;
+        }
+
+        return node;
+    }
+
+    /**
+     * @param matched if not null, receives the key of the parent of the node found
+     * @return the offset of the node holding all the keys starting with prefix, or -1
+     */
+    private long findPrefixNode(String prefix, StringBuilder matched) {
+        final int prefixLength = prefix.length();
+        long node = root;
+        int depth = 0;
+
+        while (depth < prefixLength) {
+            node = child(node, prefix.charAt(depth));
+
+            if (node < 0)
+                return -1;
+
+            final ByteBuffer buffer = segment(node);
+            final int position = position(node);
+            final int labelLength = buffer.getInt(position);
+            final int labelEnd = Math.min(labelLength, prefixLength - depth);
+
+            for (int i = 1; i < labelEnd; ++i) {
+                if (buffer.getChar(position + 8 + 2 * i) != prefix.charAt(depth + i))
+                    return -1;
+            }
+
+            if (matched != null && depth + labelLength < prefixLength)
+                matched.append(prefix, depth, depth + labelLength);
+
+            depth += labelLength;
+        }
+
+        return node;
+    }
+
+    /**
+     * Compares the label of the node at position, but for its first char,
+     * which was matched by the parent, with text from offset.
+     */
+    private static boolean labelMatches(ByteBuffer buffer, int position, String text, int offset) {
+        final int labelLength = buffer.getInt(position);
+
+        for (int i = 1; i < labelLength; ++i) {
+            if (buffer.getChar(position + 8 + 2 * i) != text.charAt(offset + i))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the offset of the child of node starting with c, or -1
+     */
+    private long child(long node, char c) {
+        final ByteBuffer buffer = segment(node);
+        final int position = position(node);
+        final int labelLength = buffer.getInt(position);
+        final int childCount = buffer.getInt(position + 4);
+        final int firstChars = position + 8 + 2 * labelLength;
+
+        int low = 0;
+        int high = childCount - 1;
+
+        if (childCount <= LINEAR_SCAN) {
+            for (int i = 0; i < childCount; ++i) {
+                final char label = buffer.getChar(firstChars + 2 * i);
+                if (label == c)
+                    return childOffset(buffer, firstChars + 2 * childCount, i);
+                if (label > c)
+                    return -1;
+            }
+            return -1;
+        }
+
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final char label = buffer.getChar(firstChars + 2 * mid);
+
+            if (label < c)
+                low = mid + 1;
+            else if (label > c)
+                high = mid - 1;
+            else
+                return childOffset(buffer, firstChars + 2 * childCount, mid);
+        }
+
+        return -1;
+    }
+
+    private static long childOffset(ByteBuffer buffer, int children, int index) {
+        return Integer.toUnsignedLong(buffer.getInt(children + 4 * index)) << 2;
+    }
+
+    /**
+     * @return the number of keys in the subtree of node
+     */
+    private int count(long node) {
+        final ByteBuffer buffer = segment(node);
+        final int position = position(node);
+        final int labelLength = buffer.getInt(position);
+        final int childCount = buffer.getInt(position + 4);
+
+        return buffer.getInt(position + 8 + 2 * labelLength + 6 * childCount);
+    }
+
+    /**
+     * @return the offset of the valueLength field of node, if it has a value, otherwise -1
+     */
+    private long valueOffset(long node) {
+        if (node < 0)
+            return -1;
+
+        final ByteBuffer buffer = segment(node);
+        final int position = position(node);
+        final int labelLength = buffer.getInt(position);
+        final int childCount = buffer.getInt(position + 4);
+        final int value = position + 12 + 2 * labelLength + 6 * childCount;
+
+        return buffer.getInt(value) < 0 ? -1 : (node & ~(long) SEGMENT_MASK) + value;
+    }
+
+    private V decodeValue(long valueOffset) {
+        if (valueOffset < 0)
+            return null;
+
+        final ByteBuffer bytes = segment(valueOffset).duplicate();
+        final int position = position(valueOffset);
+
+        bytes.limit(position + 4 + bytes.getInt(position));
+        bytes.position(position + 4);
+        return codec.decode(bytes.slice());
+    }
+
+    public class Match {
+        private final String text;
+        private final long valueOffset;
+
+        public final int matchStart; // inclusive
+        public final int matchEnd;   // exclusive
+
+        private Match(String text, long valueOffset, int matchStart, int matchEnd) {
+            this.text = text;
+            this.valueOffset = valueOffset;
+            this.matchStart = matchStart;
+            this.matchEnd = matchEnd;
+        }
+
+        public Entry<String, V> getEntry() {
+            return new AbstractMap.SimpleImmutableEntry<>(text.substring(matchStart, matchEnd), decodeValue(valueOffset));
+        }
+    }
+
+    /**
+     * Depth-first, pre-order walk over the node records, rebuilding the keys
+     * in a shared buffer as it goes.
+     */
+    private class EntryIterator implements Iterator<Entry<String, V>> {
+        private final ArrayDeque<long[]> stack = new ArrayDeque<>(); // {node, key length before its label}
+        private final StringBuilder key = new StringBuilder();
+        private Entry<String, V> next;
+
+        private EntryIterator(String prefix) {
+            final long node = findPrefixNode(prefix, key);
+
+            if (node >= 0)
+                stack.push(new long[]{node, key.length()});
+
+            next = advance();
+        }
+
+        private Entry<String, V> advance() {
+            while (!stack.isEmpty()) {
+                final long[] frame = stack.pop();
+                final long node = frame[0];
+                final ByteBuffer buffer = segment(node);
+                final int position = position(node);
+                final int labelLength = buffer.getInt(position);
+                final int childCount = buffer.getInt(position + 4);
+                final int children = position + 8 + 2 * labelLength + 2 * childCount;
+
+                key.setLength((int) frame[1]);
+                for (int i = 0; i < labelLength; ++i)
+                    key.append(buffer.getChar(position + 8 + 2 * i));
+
+                for (int i = childCount - 1; i >= 0; --i)
+                    stack.push(new long[]{childOffset(buffer, children, i), key.length()});
+
+                final long value = valueOffset(node);
+                if (value >= 0)
+                    return new AbstractMap.SimpleImmutableEntry<>(key.toString(), decodeValue(value));
+            }
+
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry<String, V> next() {
+            if (next == null)
+                throw new NoSuchElementException();
+
+            final Entry<String, V> entry = next;
+            next = advance();
+            return entry;
+        }
+    }
+
+    /**
+     * A node on the path to the last key written, whose children are all
+     * written already but which can still gain more.
+     */
+    private static final class PendingNode {
+        private final String ref; // a key going through this node
+        private final int end;
+        private byte[] value;
+        private char[] firstChars = new char[2];
+        private int[] children = new int[2];
+        private int childCount;
+        private int count; // keys in the subtree, so far
+
+        private PendingNode(String ref, int end) {
+            this.ref = ref;
+            this.end = end;
+        }
+
+        private void addChild(char c, long word, int childKeys) {
+            if (childCount == children.length) {
+                firstChars = Arrays.copyOf(firstChars, childCount * 2);
+                children = Arrays.copyOf(children, childCount * 2);
+            }
+
+            firstChars[childCount] = c;
+            children[childCount] = (int) word;
+            childCount++;
+            count += childKeys;
+        }
+    }
+
+    private static final class Writer implements Closeable {
+        private final Path file;
+        private final DataOutputStream out;
+        private long position = HEADER_SIZE;
+
+        private Writer(Path file) throws IOException {
+            this.file = file;
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+            out.write(new byte[HEADER_SIZE]);
+        }
+
+        /**
+         * Writes the record of node, whose label starts at labelStart.
+         *
+         * @return the word offset of the record
+         */
+        private long emit(PendingNode node, int labelStart) throws IOException {
+            final int labelLength = node.end - labelStart;
+            final long recordSize = 16 + 2L * labelLength + 6L * node.childCount +
+                    (node.value == null ? 0 : node.value.length);
+
+            if (recordSize > SEGMENT_SIZE)
+                throw new IOException("Node record too large: " + recordSize + " bytes");
+
+            if ((position & SEGMENT_MASK) + recordSize > SEGMENT_SIZE)
+                pad(SEGMENT_SIZE - (position & SEGMENT_MASK));
+
+            final long word = position >>> 2;
+            if (word > 0xFFFFFFFFL)
+                throw new IOException("File too large");
+
+            out.writeInt(labelLength);
+            out.writeInt(node.childCount);
+            for (int i = labelStart; i < node.end; ++i)
+                out.writeChar(node.ref.charAt(i));
+            for (int i = 0; i < node.childCount; ++i)
+                out.writeChar(node.firstChars[i]);
+            for (int i = 0; i < node.childCount; ++i)
+                out.writeInt(node.children[i]);
+            out.writeInt(node.count);
+
+            if (node.value == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(node.value.length);
+                out.write(node.value);
+            }
+
+            position += recordSize;
+            pad(-position & 3);
+            return word;
+        }
+
+        private void pad(long count) throws IOException {
+            for (long i = 0; i < count; ++i)
+                out.write(0);
+            position += count;
+        }
+
+        private void finish(int size, long rootWord) throws IOException {
+            out.flush();
+
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(size).putInt((int) rootWord);
+            header.flip();
+
+            try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                while (header.hasRemaining())
+                    channel.write(header, header.position());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
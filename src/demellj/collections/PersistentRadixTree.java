@@ -0,0 +1,608 @@
+package demellj.collections;
+
+import java.util.*;
+
+/**
+ * An immutable, persistent radix tree.
+ *
+ * Updates return a new tree that shares every untouched node with the tree
+ * it was derived from, so each one copies only the O(depth) nodes along the
+ * path to the key. A tree, once built, never changes: keeping a reference to
+ * it is an O(1) snapshot that stays valid however the tree evolves later.
+ *
+ * For bulk edits, asTransient() returns a Transient that mutates nodes in
+ * place as long as it created them itself, and copies the shared ones on
+ * first write. persistent() then freezes it into a new tree in O(1).
+ *
+ * @param <V> the type of values
+ */
+public final class PersistentRadixTree<V> extends AbstractMap<String, V> {
+    private static final PersistentRadixTree<?> EMPTY = new PersistentRadixTree<>(new Node<>("", 0, 0, null, null), 0);
+
+    private final Node<V> root;
+    private final int size;
+
+    private PersistentRadixTree(Node<V> root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <V> PersistentRadixTree<V> empty() {
+        return (PersistentRadixTree<V>) EMPTY;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size <= 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public V get(Object key) {
+        if (!(key instanceof String))
+            return null;
+
+        return find(root, (String) key);
+    }
+
+    public boolean containsPrefix(String prefix) {
+        return findPrefix(root, prefix) != null;
+    }
+
+    /**
+     * Returns a tree with the specified key mapped to value. This tree is left
+     * unchanged.
+     *
+     * @param key the key
+     * @param value the value, must not be null
+     * @return the new tree, or this tree if key was already mapped to value
+     */
+    public PersistentRadixTree<V> with(String key, V value) {
+        if (key == null || value == null)
+            throw new NullPointerException();
+
+        final Update<V> update = new Update<>();
+        final Node<V> newRoot = insert(root, key, value, null, update);
+
+        return newRoot == root ? this : new PersistentRadixTree<>(newRoot, size + update.sizeDelta);
+    }
+
+    /**
+     * Returns a tree without the specified key. This tree is left unchanged.
+     *
+     * @param key the key
+     * @return the new tree, or this tree if key was not present
+     */
+    public PersistentRadixTree<V> without(String key) {
+        if (key == null)
+            return this;
+
+        final Update<V> update = new Update<>();
+        final Node<V> newRoot = delete(root, key, null, update);
+
+        return newRoot == root ? this : new PersistentRadixTree<>(newRoot, size + update.sizeDelta);
+    }
+
+    /**
+     * Returns a tree without any of the keys that start with the specified
+     * prefix. This tree is left unchanged.
+     *
+     * @param prefix the prefix of the keys to remove
+     * @return the new tree, or this tree if no key starts with prefix
+     */
+    public PersistentRadixTree<V> withoutPrefix(String prefix) {
+        if (prefix == null)
+            return this;
+
+        final Update<V> update = new Update<>();
+        final Node<V> newRoot = deletePrefix(root, prefix, null, update);
+
+        return newRoot == root ? this : new PersistentRadixTree<>(newRoot, size + update.sizeDelta);
+    }
+
+    /**
+     * Returns a mutable copy of this tree, in O(1). This tree is left unchanged.
+     */
+    public Transient<V> asTransient() {
+        return new Transient<>(root, size);
+    }
+
+    /**
+     * Returns a view of the entries, in lexicographic order of their keys.
+     */
+    @Override
+    public Set<Entry<String, V>> entrySet() {
+        return new AbstractSet<Entry<String, V>>() {
+            @Override
+            public Iterator<Entry<String, V>> iterator() {
+                return new EntryIterator<>(root);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * A mutable tree for bulk edits, obtained from asTransient(). Nodes created
+     * by this Transient are updated in place; nodes shared with a persistent
+     * tree are copied on first write, so that tree is never affected.
+     *
+     * A Transient is not thread-safe, and cannot be used after persistent().
+     */
+    public static final class Transient<V> {
+        private Node<V> root;
+        private int size;
+        private Object edit = new Object(); // owner token of the nodes this Transient may mutate
+
+        private Transient(Node<V> root, int size) {
+            this.root = root;
+            this.size = size;
+        }
+
+        public int size() {
+            ensureEditable();
+            return size;
+        }
+
+        public V get(String key) {
+            ensureEditable();
+            return find(root, key);
+        }
+
+        public V put(String key, V value) {
+            ensureEditable();
+            if (key == null || value == null)
+                throw new NullPointerException();
+
+            final Update<V> update = new Update<>();
+            root = insert(root, key, value, edit, update);
+            size += update.sizeDelta;
+            return update.previousValue;
+        }
+
+        public V remove(String key) {
+            ensureEditable();
+            if (key == null)
+                return null;
+
+            final Update<V> update = new Update<>();
+            root = delete(root, key, edit, update);
+            size += update.sizeDelta;
+            return update.previousValue;
+        }
+
+        /**
+         * @return the number of keys removed
+         */
+        public int removePrefix(String prefix) {
+            ensureEditable();
+            if (prefix == null)
+                return 0;
+
+            final Update<V> update = new Update<>();
+            root = deletePrefix(root, prefix, edit, update);
+            size += update.sizeDelta;
+            return -update.sizeDelta;
+        }
+
+        /**
+         * Freezes this Transient into a persistent tree, in O(1).
+         */
+        public PersistentRadixTree<V> persistent() {
+            ensureEditable();
+            edit = null;
+            return new PersistentRadixTree<>(root, size);
+        }
+
+        private void ensureEditable() {
+            if (edit == null)
+                throw new IllegalStateException("Transient used after persistent() call");
+        }
+    }
+
+    private static <V> V find(Node<V> root, String key) {
+        final int keyLength = key.length();
+        Node<V> node = root;
+
+        while (true) {
+            if (node.end == keyLength)
+                return node.value;
+
+            final Node<V> child = node.child(key.charAt(node.end));
+
+            if (child == null || child.end > keyLength || !child.labelMatches(key))
+                return null;
+
+            node = child;
+        }
+    }
+
+    /**
+     * @return the node holding all keys starting with prefix, or null
+     */
+    private static <V> Node<V> findPrefix(Node<V> root, String prefix) {
+        final int prefixLength = prefix.length();
+        Node<V> node = root;
+
+        while (node.end < prefixLength) {
+            final Node<V> child = node.child(prefix.charAt(node.end));
+
+            if (child == null)
+                return null;
+
+            final int labelEnd = Math.min(child.end, prefixLength);
+            for (int i = child.start + 1; i < labelEnd; ++i) {
+                if (child.ref.charAt(i) != prefix.charAt(i))
+                    return null;
+            }
+
+            node = child;
+        }
+
+        return node;
+    }
+
+    /**
+     * Maps key to value in the subtree of node, whose label is known to match key.
+     *
+     * @return the node replacing node, or node itself when nothing changed
+     * or when node was updated in place
+     */
+    private static <V> Node<V> insert(Node<V> node, String key, V value, Object edit, Update<V> update) {
+        final int keyLength = key.length();
+
+        if (node.end == keyLength) {
+            final V presentValue = node.value;
+            update.previousValue = presentValue;
+
+            if (value.equals(presentValue))
+                return node;
+            if (presentValue == null)
+                update.sizeDelta = 1;
+
+            final Node<V> editable = node.editable(edit);
+            editable.value = value;
+            return editable;
+        }
+
+        final int idx = node.indexOf(key.charAt(node.end));
+
+        if (idx < 0) {
+            update.sizeDelta = 1;
+            final Node<V> leaf = new Node<>(key, node.end, keyLength, value, edit);
+            return node.editable(edit).withChildAt(-(idx + 1), leaf);
+        }
+
+        final Node<V> child = node.children[idx];
+        final int labelEnd = Math.min(child.end, keyLength);
+        int i = child.start + 1;
+        while (i < labelEnd && child.ref.charAt(i) == key.charAt(i))
+            i++;
+
+        final Node<V> newChild;
+
+        if (i == child.end) {
+            newChild = insert(child, key, value, edit, update);
+            if (newChild == child)
+                return node;
+        } else {
+            // split the child at i, keeping its tail (and subtree) as is
+            update.sizeDelta = 1;
+            newChild = new Node<>(child.ref, child.start, i, null, edit);
+            final Node<V> tail = child.editable(edit);
+            tail.start = i;
+            newChild.children = newNodeArray(0);
+            newChild.labels = new char[0];
+            newChild.withChildAt(0, tail);
+
+            if (i == keyLength) {
+                newChild.value = value;
+            } else {
+                final Node<V> leaf = new Node<>(key, i, keyLength, value, edit);
+                newChild.withChildAt(-(newChild.indexOf(key.charAt(i)) + 1), leaf);
+            }
+        }
+
+        final Node<V> editable = node.editable(edit);
+        editable.children[idx] = newChild;
+        return editable;
+    }
+
+    /**
+     * Removes key from the subtree of the root.
+     *
+     * @return the new root, or root itself when nothing changed
+     * or when root was updated in place
+     */
+    private static <V> Node<V> delete(Node<V> root, String key, Object edit, Update<V> update) {
+        if (key.isEmpty()) {
+            if (root.value == null)
+                return root;
+
+            update.previousValue = root.value;
+            update.sizeDelta = -1;
+            final Node<V> editable = root.editable(edit);
+            editable.value = null;
+            return editable;
+        }
+
+        return deleteBelow(root, key, edit, update, true);
+    }
+
+    private static <V> Node<V> deleteBelow(Node<V> node, String key, Object edit, Update<V> update, boolean isRoot) {
+        final int keyLength = key.length();
+        final int idx = node.indexOf(key.charAt(node.end));
+
+        if (idx < 0)
+            return node;
+
+        final Node<V> child = node.children[idx];
+
+        if (child.end > keyLength || !child.labelMatches(key))
+            return node;
+
+        final Node<V> newChild;
+
+        if (child.end == keyLength) {
+            if (child.value == null)
+                return node;
+
+            update.previousValue = child.value;
+            update.sizeDelta = -1;
+
+            if (child.children.length == 0) {
+                newChild = null;
+            } else if (child.children.length == 1) {
+                newChild = child.children[0].editable(edit);
+                newChild.start = child.start;
+            } else {
+                newChild = child.editable(edit);
+                newChild.value = null;
+            }
+        } else {
+            newChild = deleteBelow(child, key, edit, update, false);
+            if (newChild == child)
+                return node;
+        }
+
+        return replaceChild(node, idx, newChild, edit, isRoot);
+    }
+
+    /**
+     * Removes every key starting with prefix from the subtree of the root.
+     */
+    private static <V> Node<V> deletePrefix(Node<V> root, String prefix, Object edit, Update<V> update) {
+        if (prefix.isEmpty()) {
+            update.sizeDelta = -count(root);
+            return update.sizeDelta == 0 ? root : new Node<V>("", 0, 0, null, edit);
+        }
+
+        return deletePrefixBelow(root, prefix, edit, update, true);
+    }
+
+    private static <V> Node<V> deletePrefixBelow(Node<V> node, String prefix, Object edit, Update<V> update, boolean isRoot) {
+        final int prefixLength = prefix.length();
+        final int idx = node.indexOf(prefix.charAt(node.end));
+
+        if (idx < 0)
+            return node;
+
+        final Node<V> child = node.children[idx];
+        final int labelEnd = Math.min(child.end, prefixLength);
+
+        for (int i = child.start + 1; i < labelEnd; ++i) {
+            if (child.ref.charAt(i) != prefix.charAt(i))
+                return node;
+        }
+
+        final Node<V> newChild;
+
+        if (child.end >= prefixLength) {
+            update.sizeDelta = -count(child);
+            newChild = null;
+        } else {
+            newChild = deletePrefixBelow(child, prefix, edit, update, false);
+            if (newChild == child)
+                return node;
+        }
+
+        return replaceChild(node, idx, newChild, edit, isRoot);
+    }
+
+    /**
+     * Replaces, or drops when newChild is null, the child of node at idx.
+     * A node left without value and with an only child is merged with it.
+     *
+     * @return the node replacing node
+     */
+    private static <V> Node<V> replaceChild(Node<V> node, int idx, Node<V> newChild, Object edit, boolean isRoot) {
+        if (newChild != null) {
+            final Node<V> editable = node.editable(edit);
+            editable.children[idx] = newChild;
+            return editable;
+        }
+
+        if (!isRoot && node.value == null && node.children.length == 2) {
+            final Node<V> merged = node.children[1 - idx].editable(edit);
+            merged.start = node.start;
+            return merged;
+        }
+
+        return node.editable(edit).withoutChildAt(idx);
+    }
+
+    private static int count(Node<?> node) {
+        int count = node.value != null ? 1 : 0;
+        for (final Node<?> child : node.children)
+            count += count(child);
+        return count;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> Node<V>[] newNodeArray(int length) {
+        return (Node<V>[]) new Node<?>[length];
+    }
+
+    /**
+     * The outcome of an update: the previous value of the key, and how the
+     * number of keys changed.
+     */
+    private static final class Update<V> {
+        private V previousValue = null;
+        private int sizeDelta = 0;
+    }
+
+    /**
+     * A node matching ref[start, end), with its children sorted by first char
+     * in exact-size arrays. A node is immutable unless its edit token is the
+     * one of the Transient updating it.
+     */
+    private static final class Node<V> {
+        private final String ref;
+        private int start; // inclusive
+        private final int end; // exclusive
+        private V value;
+        private char[] labels;
+        private Node<V>[] children;
+        private final Object edit;
+
+        private Node(String ref, int start, int end, V value, Object edit) {
+            this.ref = ref;
+            this.start = start;
+            this.end = end;
+            this.value = value;
+            this.labels = new char[0];
+            this.children = newNodeArray(0);
+            this.edit = edit;
+        }
+
+        /**
+         * @return this node if it is owned by edit, otherwise a copy owned by edit
+         */
+        private Node<V> editable(Object edit) {
+            if (edit != null && this.edit == edit)
+                return this;
+
+            final Node<V> copy = new Node<>(ref, start, end, value, edit);
+            copy.labels = labels;
+            copy.children = children.clone();
+            return copy;
+        }
+
+        private boolean labelMatches(String key) {
+            for (int i = start + 1; i < end; ++i) {
+                if (ref.charAt(i) != key.charAt(i))
+                    return false;
+            }
+            return true;
+        }
+
+        private int indexOf(char c) {
+            final int length = labels.length;
+
+            if (length <= 8) {
+                for (int i = 0; i < length; ++i) {
+                    if (labels[i] == c)
+                        return i;
+                    if (labels[i] > c)
+                        return -(i + 1);
+                }
+                return -(length + 1);
+            }
+
+            return Arrays.binarySearch(labels, c);
+        }
+
+        private Node<V> child(char c) {
+            final int idx = indexOf(c);
+            return idx >= 0 ? children[idx] : null;
+        }
+
+        private Node<V> withChildAt(int pos, Node<V> child) {
+            final int length = labels.length;
+            final char[] newLabels = new char[length + 1];
+            final Node<V>[] newChildren = newNodeArray(length + 1);
+
+            System.arraycopy(labels, 0, newLabels, 0, pos);
+            System.arraycopy(children, 0, newChildren, 0, pos);
+            newLabels[pos] = child.ref.charAt(child.start);
+            newChildren[pos] = child;
+            System.arraycopy(labels, pos, newLabels, pos + 1, length - pos);
+            System.arraycopy(children, pos, newChildren, pos + 1, length - pos);
+
+            labels = newLabels;
+            children = newChildren;
+            return this;
+        }
+
+        private Node<V> withoutChildAt(int idx) {
+            final int length = labels.length;
+            final char[] newLabels = new char[length - 1];
+            final Node<V>[] newChildren = newNodeArray(length - 1);
+
+            System.arraycopy(labels, 0, newLabels, 0, idx);
+            System.arraycopy(children, 0, newChildren, 0, idx);
+            System.arraycopy(labels, idx + 1, newLabels, idx, length - idx - 1);
+            System.arraycopy(children, idx + 1, newChildren, idx, length - idx - 1);
+
+            labels = newLabels;
+            children = newChildren;
+            return this;
+        }
+    }
+
+    /**
+     * Depth-first, pre-order walk over the value nodes.
+     */
+    private static final class EntryIterator<V> implements Iterator<Entry<String, V>> {
+        private final ArrayDeque<Node<V>> stack = new ArrayDeque<>();
+        private Node<V> next;
+
+        private EntryIterator(Node<V> root) {
+            stack.push(root);
+            next = advance();
+        }
+
+        private Node<V> advance() {
+            while (!stack.isEmpty()) {
+                final Node<V> node = stack.pop();
+
+                for (int i = node.children.length - 1; i >= 0; --i)
+                    stack.push(node.children[i]);
+
+                if (node.value != null)
+                    return node;
+            }
+
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry<String, V> next() {
+            if (next == null)
+                throw new NoSuchElementException();
+
+            final Node<V> node = next;
+            next = advance();
+            return new AbstractMap.SimpleImmutableEntry<>(node.ref.substring(0, node.end), node.value);
+        }
+    }
+}
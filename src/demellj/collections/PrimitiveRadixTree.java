@@ -0,0 +1,310 @@
+package demellj.collections;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * The nodes and walks shared by IntRadixTree and LongRadixTree. A subclass
+ * only adds the primitive value slot to Node, see newNode(..), and reads
+ * and writes it around the walks here.
+ *
+ * This class is not thread-safe.
+ */
+abstract class PrimitiveRadixTree {
+    private static final int LINEAR_SCAN = 8; // linear scan up to this many children, binary search above
+
+    private Node root = newNode("", 0, 0);
+    private int size = 0;
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size <= 0;
+    }
+
+    public void clear() {
+        root = newNode("", 0, 0);
+        size = 0;
+    }
+
+    public boolean containsKey(CharSequence key) {
+        final Node node = findNode(key);
+        return node != null && node.present;
+    }
+
+    public boolean containsPrefix(CharSequence prefix) {
+        return findPrefixNode(prefix) != null;
+    }
+
+    /**
+     * @return a node, of the subclass's own kind, holding no value
+     */
+    abstract Node newNode(String ref, int start, int end);
+
+    /**
+     * @return the node whose key is exactly key, which may have no value, or null
+     */
+    final Node findNode(CharSequence key) {
+        final int keyLength = key.length();
+        Node node = root;
+
+        while (node.end < keyLength) {
+            node = node.child(key.charAt(node.end));
+
+            if (node == null || !node.labelMatches(key))
+                return null;
+        }
+
+        return node.end == keyLength ? node : null;
+    }
+
+    /**
+     * @return the node whose key is exactly key, splitting or adding nodes as needed
+     */
+    final Node findOrCreateNode(String key) {
+        final int keyLength = key.length();
+        Node node = root;
+
+        while (node.end < keyLength) {
+            final int idx = node.indexOf(key.charAt(node.end));
+
+            if (idx < 0) {
+                final Node leaf = newNode(key, node.end, keyLength);
+                node.insertChild(-(idx + 1), leaf);
+                return leaf;
+            }
+
+            final Node child = node.children[idx];
+            final int end = Math.min(child.end, keyLength);
+            int i = child.start + 1;
+            while (i < end && child.ref.charAt(i) == key.charAt(i))
+                i++;
+
+            if (i < child.end) {
+                // split the child at i, its tail keeps its identity and subtree
+                final Node head = newNode(child.ref, child.start, i);
+                child.start = i;
+                head.insertChild(0, child);
+                node.children[idx] = head;
+            }
+
+            node = node.children[idx];
+        }
+
+        return node;
+    }
+
+    /**
+     * Counts the key of node in, if it was absent. The caller sets the value.
+     */
+    final void addKey(Node node) {
+        if (!node.present) {
+            node.present = true;
+            size++;
+        }
+    }
+
+    /**
+     * Takes key out of the tree, merging the nodes left without a value and
+     * with a single child. The caller reads and clears the value.
+     *
+     * @return the node of key, or null if key was absent
+     */
+    final Node removeNode(CharSequence key) {
+        final int keyLength = key.length();
+        Node grandParent = null;
+        Node parent = null;
+        Node node = root;
+
+        while (node.end < keyLength) {
+            final Node child = node.child(key.charAt(node.end));
+
+            if (child == null || !child.labelMatches(key))
+                return null;
+
+            grandParent = parent;
+            parent = node;
+            node = child;
+        }
+
+        if (node.end != keyLength || !node.present)
+            return null;
+
+        node.present = false;
+        size--;
+
+        if (node != root) {
+            if (node.childCount() == 0) {
+                parent.removeChild(node);
+                if (parent != root && !parent.present && parent.childCount() == 1)
+                    grandParent.replaceChild(parent, parent.mergeWithOnlyChild());
+            } else if (node.childCount() == 1) {
+                parent.replaceChild(node, node.mergeWithOnlyChild());
+            }
+        }
+
+        return node;
+    }
+
+    /**
+     * Calls action with the node of every key starting with prefix, in
+     * lexicographic order of the keys.
+     */
+    final void forEachNode(String prefix, Consumer<? super Node> action) {
+        final Node start = findPrefixNode(prefix);
+
+        if (start == null)
+            return;
+
+        final ArrayDeque<Node> stack = new ArrayDeque<>();
+        stack.push(start);
+
+        while (!stack.isEmpty()) {
+            final Node node = stack.pop();
+
+            for (int i = node.childCount() - 1; i >= 0; --i)
+                stack.push(node.children[i]);
+
+            if (node.present)
+                action.accept(node);
+        }
+    }
+
+    /**
+     * @return the node holding all keys starting with prefix, or null
+     */
+    private Node findPrefixNode(CharSequence prefix) {
+        final int prefixLength = prefix.length();
+        Node node = root;
+
+        while (node.end < prefixLength) {
+            node = node.child(prefix.charAt(node.end));
+
+            if (node == null)
+                return null;
+
+            final int end = Math.min(node.end, prefixLength);
+            for (int i = node.start + 1; i < end; ++i) {
+                if (node.ref.charAt(i) != prefix.charAt(i))
+                    return null;
+            }
+        }
+
+        return node;
+    }
+
+    static class Node {
+        private final String ref; // a key going through this node
+        private int start; // inclusive
+        private final int end; // exclusive
+
+        boolean present;
+
+        // first chars of the children, sorted, and the children, in exact-size
+        // arrays, or null for a leaf: no spare slots and no count to store
+        private char[] labels;
+        private Node[] children;
+
+        Node(String ref, int start, int end) {
+            this.ref = ref;
+            this.start = start;
+            this.end = end;
+        }
+
+        String key() {
+            return ref.substring(0, end);
+        }
+
+        private boolean labelMatches(CharSequence key) {
+            if (end > key.length())
+                return false;
+
+            for (int i = start + 1; i < end; ++i) {
+                if (ref.charAt(i) != key.charAt(i))
+                    return false;
+            }
+
+            return true;
+        }
+
+        private int childCount() {
+            return children == null ? 0 : children.length;
+        }
+
+        private int indexOf(char c) {
+            final int childCount = childCount();
+
+            if (childCount <= LINEAR_SCAN) {
+                for (int i = 0; i < childCount; ++i) {
+                    if (labels[i] == c)
+                        return i;
+                    if (labels[i] > c)
+                        return -(i + 1);
+                }
+                return -(childCount + 1);
+            }
+
+            return Arrays.binarySearch(labels, 0, childCount, c);
+        }
+
+        private Node child(char c) {
+            final int idx = indexOf(c);
+            return idx >= 0 ? children[idx] : null;
+        }
+
+        private void insertChild(int pos, Node child) {
+            final int childCount = childCount();
+            final char[] newLabels = new char[childCount + 1];
+            final Node[] newChildren = new Node[childCount + 1];
+
+            if (childCount > 0) {
+                System.arraycopy(labels, 0, newLabels, 0, pos);
+                System.arraycopy(children, 0, newChildren, 0, pos);
+                System.arraycopy(labels, pos, newLabels, pos + 1, childCount - pos);
+                System.arraycopy(children, pos, newChildren, pos + 1, childCount - pos);
+            }
+
+            newLabels[pos] = child.ref.charAt(child.start);
+            newChildren[pos] = child;
+            labels = newLabels;
+            children = newChildren;
+        }
+
+        private void replaceChild(Node child, Node replacement) {
+            children[indexOf(child.ref.charAt(child.start))] = replacement;
+        }
+
+        private void removeChild(Node child) {
+            final int childCount = children.length - 1;
+            final int idx = indexOf(child.ref.charAt(child.start));
+
+            if (childCount == 0) {
+                labels = null;
+                children = null;
+                return;
+            }
+
+            final char[] newLabels = new char[childCount];
+            final Node[] newChildren = new Node[childCount];
+            System.arraycopy(labels, 0, newLabels, 0, idx);
+            System.arraycopy(children, 0, newChildren, 0, idx);
+            System.arraycopy(labels, idx + 1, newLabels, idx, childCount - idx);
+            System.arraycopy(children, idx + 1, newChildren, idx, childCount - idx);
+            labels = newLabels;
+            children = newChildren;
+        }
+
+        /**
+         * The only child takes over this valueless node's substring.
+         *
+         * @return the only child, to put in place of this node
+         */
+        private Node mergeWithOnlyChild() {
+            final Node child = children[0];
+            child.start = start;
+            return child;
+        }
+    }
+}
@@ -1,270 +1,4329 @@
 package demellj.collections;
 
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ObjLongConsumer;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+public class RadixTree<V> implements NavigableMap<String, V> {
+    // child layout thresholds, see Node
+    private static final int SPARSE_MIN = 2;   // initial capacity of the sparse layout
+    private static final int SPARSE_SCAN = 8;  // linear scan up to this many children, binary search above
+    private static final int SPARSE_MAX = 16;  // try the dense layout beyond this many children
+    private static final int DENSE_MIN = 12;   // fall back to the sparse layout below this many children
+    private static final int DENSE_SPAN = 256; // max number of slots of the dense layout
+
+    private static final int PARALLEL_CHUNK = 1 << 14; // max number of text offsets matched by one task
 
-public class RadixTree<V> implements Map<String, V> {
     private Node root = null;
     private int size = 0;
 
+    private int modCount = 0; // number of structural modifications, see Iterator
+
+    private Automaton automaton = null; // built lazily by findAllKeys(..)
+
+    private final ToDoubleFunction<? super V> scorer; // null unless scored, see topK(..)
+
+    // bounded mode, see RadixTree(int, Eviction); eviction is null when unbounded
+    private static final int EVICTION_SAMPLES = 5;  // keys sampled to pick each one to evict
+    private static final int EVICTION_BATCH = 16;   // a subtree evicted whole holds at most size / EVICTION_BATCH keys
+    private static final int ENTRY_BYTES = 112;     // estimated overhead of an entry: node, key string, child slot
+
+    private final Eviction eviction;
+    private final long capacity;                     // max weight of the entries
+    private final ToLongFunction<? super V> weigher; // bytes of a value, or null when every entry weighs 1
+    private final LongAdder hits;                    // striped, so that gets do not contend on a shared field
+    private final LongAdder misses;
+    private long weight = 0;
+    private long evictions = 0;
+    private int clock = 0; // goes up on every put of a bounded tree, see CacheNode.stamp
+
+    private Metrics metrics = null; // see setMetrics(..)
+
+    // estimated sizes of the objects making up a tree, with compressed oops, see stats();
+    // JDK 8 lays the fields of a CacheNode out past the padding of its Node part,
+    // which later JDKs fill, so there it costs 16 bytes more than a Node rather than 8
+    private static final int NODE_BYTES = 56;
+    private static final int CACHE_NODE_BYTES = NODE_BYTES
+            + (System.getProperty("java.specification.version").startsWith("1.") ? 16 : 8);
+    private static final int OBJECT_BYTES = 12;
+    private static final int ARRAY_BYTES = 16;
+
     public RadixTree() {
+        this(null, null, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Constructs a scored radix tree, whose nodes keep track of the best
+     * score in their subtree so that topK(..) can find the best completions
+     * of a prefix without visiting all of them.
+     *
+     * Scores are computed when values are put, so a value's score must not
+     * change while it is in the tree.
+     *
+     * @param scorer the function giving the score of a value
+     */
+    public RadixTree(ToDoubleFunction<? super V> scorer) {
+        this(Objects.requireNonNull(scorer), null, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Constructs a tree bounded to maxEntries keys, to be used as a cache. A
+     * put that takes the tree over its bound evicts cold keys, chosen by
+     * eviction among a few sampled ones, or whole subtrees of keys that were
+     * not accessed since; the key just put is never evicted by its own put.
+     *
+     * Accesses are recorded by get(..) and put(..), on the nodes of the key
+     * only, without writing to any field shared by all gets. See cacheStats()
+     * for the hit, miss and eviction counts.
+     *
+     * @param maxEntries the max number of keys
+     * @param eviction   how to pick the keys to evict
+     * @throws IllegalArgumentException if maxEntries is not positive
+     */
+    public RadixTree(int maxEntries, Eviction eviction) {
+        this(null, Objects.requireNonNull(eviction), checkCapacity(maxEntries), null);
+    }
+
+    /**
+     * Constructs a tree bounded to an estimated maxBytes, to be used as a
+     * cache, as RadixTree(maxEntries, eviction). An entry is estimated to
+     * take a fixed overhead for its node and its key, two bytes per char of
+     * its key, and the bytes given by valueBytes for its value.
+     *
+     * @param maxBytes   the max estimated bytes of the entries
+     * @param valueBytes the estimated bytes of a value
+     * @param eviction   how to pick the keys to evict
+     * @throws IllegalArgumentException if maxBytes is not positive
+     */
+    public RadixTree(long maxBytes, ToLongFunction<? super V> valueBytes, Eviction eviction) {
+        this(null, Objects.requireNonNull(eviction), checkCapacity(maxBytes), Objects.requireNonNull(valueBytes));
+    }
+
+    private RadixTree(ToDoubleFunction<? super V> scorer, Eviction eviction, long capacity, ToLongFunction<? super V> weigher) {
+        this.scorer = scorer;
+        this.eviction = eviction;
+        this.capacity = capacity;
+        this.weigher = weigher;
+        this.hits = eviction != null ? new LongAdder() : null;
+        this.misses = eviction != null ? new LongAdder() : null;
         this.clear();
     }
 
-    @Override
-    public int size() {
-        return size;
+    private static long checkCapacity(long capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity: " + capacity);
+
+        return capacity;
     }
 
-    @Override
-    public boolean isEmpty() {
-        return size <= 0;
+    /**
+     * How a bounded tree picks the keys to evict, among sampled ones.
+     */
+    public enum Eviction {
+        /**
+         * The least recently read or written key. A key counts as accessed
+         * whenever a key below it is, so prefixes of hot keys stay.
+         */
+        LRU,
+        /**
+         * The least frequently read or written key. Counts are halved for
+         * every size() puts that go by without an access to the key.
+         */
+        LFU
     }
 
-    @Override
-    public boolean containsKey(Object key) {
-        return get(key) != null;
+    /**
+     * Builds a tree from entries in strictly ascending order of their keys,
+     * in one linear pass: nodes are created bottom-up from a stack of the
+     * path of the last key, each exactly once and with its final children
+     * storage, instead of being split and grown by successive puts.
+     *
+     * @param entries the entries, sorted by key, without duplicate keys
+     * @return a new tree holding the entries
+     * @throws IllegalArgumentException if the keys are not strictly ascending
+     * @throws NullPointerException     if a key or a value is null
+     */
+    public static <V> RadixTree<V> fromSorted(Iterator<? extends Entry<String, ? extends V>> entries) {
+        final RadixTree<V> tree = new RadixTree<>();
+        tree.root = tree.buildSorted(entries);
+        tree.size = tree.root.count;
+        return tree;
     }
 
     /**
-     * O(n) search value stored in this radix tree. Where n is the number of values stored
-     * in this tree.
+     * Builds a tree from entries in strictly ascending order of their keys,
+     * as fromSorted(entries.iterator()). In parallel mode, the subtrees of the
+     * distinct first chars of the keys are built as separate tasks on the
+     * common fork-join pool, then attached to the root.
      *
-     * @param value the value to search
-     * @return true if value is stored somewhere in the tree
+     * @param entries  the entries, sorted by key, without duplicate keys
+     * @param parallel whether to build the first-char subtrees in parallel
+     * @return a new tree holding the entries
+     * @throws IllegalArgumentException if the keys are not strictly ascending
+     * @throws NullPointerException     if a key or a value is null
      */
-    @Override
-    public boolean containsValue(Object value) {
-        if (value == null) return false;
+    public static <V> RadixTree<V> fromSorted(List<? extends Entry<String, ? extends V>> entries, boolean parallel) {
+        if (!parallel)
+            return fromSorted(entries.iterator());
 
-        for (final V v : values()) {
-            if (value.equals(v))
-                return true;
+        final RadixTree<V> tree = new RadixTree<>();
+        tree.root = tree.buildSortedParallel(entries);
+        tree.size = tree.root.count;
+        return tree;
+    }
+
+    /**
+     * The parallel construction behind fromSorted(entries, true).
+     *
+     * @return the root of the built tree
+     */
+    private Node buildSortedParallel(List<? extends Entry<String, ? extends V>> entries) {
+        final int entryCount = entries.size();
+        int from = 0;
+        V rootValue = null;
+
+        if (entryCount > 0 && entries.get(0).getKey().isEmpty()) {
+            rootValue = entries.get(0).getValue();
+            if (rootValue == null)
+                throw new NullPointerException();
+            from = 1;
         }
 
-        return false;
+        // one task per run of keys sharing their first char
+        final List<ForkJoinTask<Node>> tasks = new ArrayList<>();
+        char previous = 0;
+
+        while (from < entryCount) {
+            final String key = entries.get(from).getKey();
+            if (key.isEmpty() || (!tasks.isEmpty() && key.charAt(0) <= previous))
+                throw new IllegalArgumentException("keys are not in strictly ascending order");
+
+            previous = key.charAt(0);
+            int to = from + 1;
+            while (to < entryCount && startsWith(entries.get(to).getKey(), previous))
+                to++;
+
+            final List<? extends Entry<String, ? extends V>> run = entries.subList(from, to);
+            tasks.add(ForkJoinTask.adapt(() -> buildSorted(run.iterator())).fork());
+            from = to;
+        }
+
+        // each task built a root whose only child is the subtree of its char
+        final ArrayList<Node> subtrees = new ArrayList<>(tasks.size());
+        for (final ForkJoinTask<Node> task : tasks)
+            subtrees.add(task.join().children[0]);
+
+        return newSortedNode("", 0, 0, rootValue, subtrees, 0);
     }
 
-    public boolean containsPrefix(String key) {
-        return findMatchingPrefixEnd(key, 0).matchEnd == key.length();
+    private static boolean startsWith(String key, char c) {
+        return !key.isEmpty() && key.charAt(0) == c;
     }
 
     /**
-     * O(|text|^2) worst-case search for all keys occurring the
-     * specified text.
-     *
-     * Worst case occurs when all the keys form a power set of substrings,
-     * and 'text' is the longest such string in the power set.
+     * The bottom-up construction behind fromSorted(..). The stack holds the
+     * path of the last key, with strictly increasing ends; the children of
+     * the nodes on the path already built are kept, in order, in finished.
      *
-     * @param text the text in which find all key occurrences
-     * @return an unsorted list of complete key matches
+     * @return the root of the built subtree
      */
-    public ArrayList<Match> findKeys(String text) {
-        final ArrayList<Match> result = new ArrayList<>();
+    private Node buildSorted(Iterator<? extends Entry<String, ? extends V>> entries) {
+        final ArrayList<SortedFrame> stack = new ArrayList<>();
+        final ArrayList<Node> finished = new ArrayList<>();
+        stack.add(new SortedFrame("", 0, null, 0));
+        String previous = null;
 
-        if (root.isValueNode()) // account of empty prefix
-            result.add(new Match(root, null, 0, 0));
+        while (entries.hasNext()) {
+            final Entry<String, ? extends V> entry = entries.next();
+            final String key = entry.getKey();
+            final V value = entry.getValue();
 
-        final List<Match> matches = findAllNonemptyPrefixMatches(text);
+            if (key == null || value == null)
+                throw new NullPointerException();
 
-        for (final Match match : matches) {
-            if (match.node.end == match.matchEnd - match.matchStart &&
-                    match.node.isValueNode())
-                result.add(match);
+            final int keyLength = key.length();
+            int common = 0;
+
+            if (previous != null) {
+                final int limit = Math.min(keyLength, previous.length());
+                while (common < limit && key.charAt(common) == previous.charAt(common))
+                    common++;
+
+                if (common == keyLength || (common < previous.length() && key.charAt(common) < previous.charAt(common)))
+                    throw new IllegalArgumentException("keys are not in strictly ascending order");
+            }
+
+            // finish the nodes of the previous key below the common prefix
+            while (stack.get(stack.size() - 1).end > common) {
+                final SortedFrame frame = stack.remove(stack.size() - 1);
+                final SortedFrame parent = stack.get(stack.size() - 1);
+                final int start = Math.max(parent.end, common);
+                final Node node = newSortedNode(frame.ref, start, frame.end, frame.value, finished, frame.firstChild);
+
+                if (parent.end < common) {
+                    // branch in the middle of the finished node's label
+                    stack.add(new SortedFrame(frame.ref, common, null, finished.size()));
+                    finished.add(node);
+                    break;
+                }
+
+                finished.add(node);
+            }
+
+            if (keyLength == 0)
+                stack.get(0).value = value;
+            else
+                stack.add(new SortedFrame(key, keyLength, value, finished.size()));
+
+            previous = key;
         }
 
-        return result;
+        while (stack.size() > 1) {
+            final SortedFrame frame = stack.remove(stack.size() - 1);
+            final int start = stack.get(stack.size() - 1).end;
+            finished.add(newSortedNode(frame.ref, start, frame.end, frame.value, finished, frame.firstChild));
+        }
+
+        final SortedFrame top = stack.get(0);
+        return newSortedNode(top.ref, 0, 0, top.value, finished, top.firstChild);
     }
 
-    @Override
-    public V get(Object o) {
-        if (!(o instanceof String))
-            return null;
+    /**
+     * Creates a node of buildSorted(..) or readNodes(..), taking its children
+     * from the tail of finished, from firstChild on, in the layout put(..)
+     * would give them.
+     */
+    private Node newSortedNode(String ref, int start, int end, V value, ArrayList<Node> finished, int firstChild) {
+        final Node node = newNode(ref, start, end);
+        final int childCount = finished.size() - firstChild;
+        node.value = value;
+        node.count = value != null ? 1 : 0;
 
-        final String key = (String) o;
-        final Match match = findMatchingPrefixEnd(key, 0);
+        if (scorer != null && value != null)
+            node.best = upperBound(scorer.applyAsDouble(value));
 
-        if (match.matchEnd == key.length() &&
-                match.matchEnd == match.node.end &&
-                match.node.value != null)
-            return match.node.value;
+        if (childCount > 0) {
+            final Node first = finished.get(firstChild);
+            final Node last = finished.get(finished.size() - 1);
+            final char low = first.ref.charAt(first.start);
+            final char high = last.ref.charAt(last.start);
 
-        return null;
+            if (childCount > SPARSE_MAX && high - low < DENSE_SPAN) {
+                node.children = newNodeArray(high - low + 1);
+                node.base = low;
+            } else {
+                node.labels = new char[childCount];
+                node.children = newNodeArray(childCount);
+            }
+            node.childCount = childCount;
+
+            for (int i = 0; i < childCount; ++i) {
+                final Node child = finished.get(firstChild + i);
+                final char c = child.ref.charAt(child.start);
+
+                if (node.labels == null) {
+                    node.children[c - low] = child;
+                } else {
+                    node.labels[i] = c;
+                    node.children[i] = child;
+                }
+
+                node.count += child.count;
+                if (child.best > node.best)
+                    node.best = child.best;
+            }
+
+            finished.subList(firstChild, finished.size()).clear();
+        }
+
+        return node;
     }
 
-    @Override
-    public V put(String key, V value) {
-        if (value == null || key == null)
-            return null;
+    /**
+     * A node of buildSorted(..) whose children are not all known yet.
+     */
+    private class SortedFrame {
+        private final String ref;
+        private final int end;
+        private V value;
+        private final int firstChild; // index of its first child in finished
 
-        final int keyLength = key.length();
+        private SortedFrame(String ref, int end, V value, int firstChild) {
+            this.ref = ref;
+            this.end = end;
+            this.value = value;
+            this.firstChild = firstChild;
+        }
+    }
 
-        final Match match = findMatchingPrefixEnd(key, 0);
+    /**
+     * Returns a new tree with the keys of this tree and of other. A key in
+     * both maps to merger(this value, other value), or is left out if that
+     * is null. Neither tree is modified. The new tree is configured as this
+     * one, see newTreeLike(..).
+     *
+     * The trees are walked in lockstep, comparing edge labels in bulk: a
+     * subtree found in one tree only is copied without any lookup in the
+     * other, and the result is built bottom-up as by fromSorted(..).
+     *
+     * @param other  the tree to merge with this one
+     * @param merger the function merging the values of a key in both trees
+     * @return the merged tree
+     */
+    public RadixTree<V> mergeWith(RadixTree<? extends V> other, BiFunction<? super V, ? super V, ? extends V> merger) {
+        return mergeWith(other, merger, false);
+    }
 
-        if (match.node.end != match.matchEnd) {
-            // match ends within but not at end of node substring
-            // NOTE: a match cannot end before node substring start, by nature
-            // of how findMatchingPrefixEnd(..) works
+    /**
+     * mergeWith(other, merger), with the subtrees of the distinct first
+     * chars of the keys merged as separate tasks on the common fork-join
+     * pool in parallel mode. merger may be called from pool threads.
+     */
+    public RadixTree<V> mergeWith(RadixTree<? extends V> other, BiFunction<? super V, ? super V, ? extends V> merger,
+                                  boolean parallel) {
+        Objects.requireNonNull(merger);
+        return combine(other, parallel, out -> new Lockstep<V, V>() {
+            @Override
+            void both(RadixTree<V>.Node a, RadixTree<? extends V>.Node b) {
+                final V merged = merger.apply(a.value, b.value);
+                if (merged != null)
+                    out.add(new AbstractMap.SimpleImmutableEntry<>(a.getKey(), merged));
+            }
 
-            match.node.splitAt(match.matchEnd); // this changes match.node.end
+            @Override
+            void left(RadixTree<V>.Node a) {
+                out.add(a);
+            }
 
-            if (match.node.end == keyLength) {
-                // key is fully matched
-                match.node.value = value;
-            } else {
-                // key is longer than node substring
-                final Node extension = new Node(key, match.matchEnd, keyLength);
-                match.node.add(extension);
-                extension.value = value;
+            @Override
+            void right(RadixTree<? extends V>.Node b) {
+                out.add(b);
             }
+        });
+    }
 
-            size++;
-        } else {
-            // match is complete (ends at end of this node substring)
-            if (match.matchEnd == keyLength) {
-                // key is fully matched
-                final V presentValue = match.node.value;
-                if (presentValue == null)
-                    size++;
-                match.node.value = value;
-                return presentValue;
-            } else {
-                // key is partially matched (key is longer than the matched prefix)
-                final Node extension = new Node(key, match.matchEnd, keyLength);
-                match.node.add(extension);
-                extension.value = value;
-                size++;
+    /**
+     * Returns a new tree with the entries of this tree whose keys are also
+     * in other. Neither tree is modified. Subtrees found in one tree only
+     * are skipped without being visited. The new tree is configured as this
+     * one, see newTreeLike(..).
+     *
+     * @param other the tree whose keys to keep
+     * @return the intersection, with the values of this tree
+     */
+    public RadixTree<V> intersect(RadixTree<?> other) {
+        return intersect(other, false);
+    }
+
+    /**
+     * intersect(other), in parallel mode as mergeWith(.., true).
+     */
+    public RadixTree<V> intersect(RadixTree<?> other, boolean parallel) {
+        return combine(other, parallel, out -> new Lockstep<V, Object>() {
+            @Override
+            void both(RadixTree<V>.Node a, RadixTree<?>.Node b) {
+                out.add(a);
+            }
+
+            @Override
+            void leftSubtree(RadixTree<V>.Node a) {
+            }
+
+            @Override
+            void rightSubtree(RadixTree<?>.Node b) {
+            }
+        });
+    }
+
+    /**
+     * Returns a new tree with the entries of this tree whose keys are not in
+     * other. Neither tree is modified. Subtrees found in this tree only are
+     * copied without any lookup in other, and subtrees found in other only
+     * are skipped. The new tree is configured as this one, see
+     * newTreeLike(..).
+     *
+     * @param other the tree whose keys to leave out
+     * @return the difference, with the values of this tree
+     */
+    public RadixTree<V> difference(RadixTree<?> other) {
+        return difference(other, false);
+    }
+
+    /**
+     * difference(other), in parallel mode as mergeWith(.., true).
+     */
+    public RadixTree<V> difference(RadixTree<?> other, boolean parallel) {
+        return combine(other, parallel, out -> new Lockstep<V, Object>() {
+            @Override
+            void both(RadixTree<V>.Node a, RadixTree<?>.Node b) {
+            }
+
+            @Override
+            void left(RadixTree<V>.Node a) {
+                out.add(a);
+            }
+
+            @Override
+            void rightSubtree(RadixTree<?>.Node b) {
+            }
+        });
+    }
+
+    /**
+     * Reports the differences from this tree to other, in key order: keys
+     * only in other as added, keys only in this tree as removed, and keys
+     * in both whose values are not equal as changed. The trees are walked
+     * in lockstep, as by mergeWith(..), and nothing is collected.
+     *
+     * @param other    the newer tree
+     * @param consumer the callback receiving the differences
+     */
+    public void diff(RadixTree<? extends V> other, DiffConsumer<? super V> consumer) {
+        new Lockstep<V, V>() {
+            @Override
+            void both(RadixTree<V>.Node a, RadixTree<? extends V>.Node b) {
+                if (!a.value.equals(b.value))
+                    consumer.changed(a.getKey(), a.value, b.value);
             }
+
+            @Override
+            void left(RadixTree<V>.Node a) {
+                consumer.removed(a.getKey(), a.value);
+            }
+
+            @Override
+            void right(RadixTree<? extends V>.Node b) {
+                consumer.added(b.getKey(), b.value);
+            }
+        }.visit(root, other.root, 0);
+    }
+
+    /**
+     * Receives the differences between two trees, see diff(..). Every method
+     * does nothing by default.
+     */
+    public interface DiffConsumer<V> {
+        default void added(String key, V value) {
+        }
+
+        default void removed(String key, V value) {
+        }
+
+        default void changed(String key, V oldValue, V newValue) {
+        }
+    }
+
+    /**
+     * Walks this tree and other in lockstep with the Lockstep made by ops,
+     * which adds the entries of the result to the list it is given, in key
+     * order. In parallel mode, each subtree below the roots gets its own
+     * Lockstep and list, run as a task, and the lists are concatenated.
+     */
+    private <B> RadixTree<V> combine(RadixTree<B> other, boolean parallel,
+                                     Function<ArrayList<Entry<String, ? extends V>>, Lockstep<V, ? super B>> ops) {
+        final ArrayList<Entry<String, ? extends V>> out = new ArrayList<>();
+
+        if (!parallel) {
+            ops.apply(out).visit(root, other.root, 0);
+            return newTreeLike(out, false);
+        }
+
+        final Lockstep<V, ? super B> head = ops.apply(out);
+        final ArrayList<ArrayList<Entry<String, ? extends V>>> segments = new ArrayList<>();
+        final ArrayList<ForkJoinTask<?>> tasks = new ArrayList<>();
+
+        new Lockstep<V, B>() {
+            @Override
+            void both(RadixTree<V>.Node a, RadixTree<? extends B>.Node b) {
+                head.both(a, b);
+            }
+
+            @Override
+            void left(RadixTree<V>.Node a) {
+                head.left(a);
+            }
+
+            @Override
+            void right(RadixTree<? extends B>.Node b) {
+                head.right(b);
+            }
+
+            @Override
+            void leftSubtree(RadixTree<V>.Node a) {
+                fork(lockstep -> lockstep.leftSubtree(a));
+            }
+
+            @Override
+            void rightSubtree(RadixTree<? extends B>.Node b) {
+                fork(lockstep -> lockstep.rightSubtree(b));
+            }
+
+            @Override
+            void pair(RadixTree<V>.Node a, RadixTree<? extends B>.Node b, int depth) {
+                fork(lockstep -> lockstep.pair(a, b, depth));
+            }
+
+            private void fork(Consumer<Lockstep<V, ? super B>> task) {
+                final ArrayList<Entry<String, ? extends V>> segment = new ArrayList<>();
+                segments.add(segment);
+                tasks.add(ForkJoinTask.adapt(() -> task.accept(ops.apply(segment))));
+            }
+        }.visit(root, other.root, 0);
+
+        ForkJoinTask.invokeAll(tasks);
+
+        for (final ArrayList<Entry<String, ? extends V>> segment : segments)
+            out.addAll(segment);
+
+        return newTreeLike(out, true);
+    }
+
+    /**
+     * Builds a tree from entries sorted by key, with the scorer and the
+     * capacity and eviction policy of this tree. A scored tree is built as
+     * by fromSorted(..). A bounded tree gets the entries put in key order,
+     * so it is within capacity, as a cache would be after those puts, and
+     * starts with no hits, misses or evictions.
+     */
+    private RadixTree<V> newTreeLike(List<? extends Entry<String, ? extends V>> entries, boolean parallel) {
+        final RadixTree<V> tree = new RadixTree<>(scorer, eviction, capacity, weigher);
+
+        if (eviction != null) {
+            for (final Entry<String, ? extends V> entry : entries)
+                tree.put(entry.getKey(), entry.getValue());
+            tree.evictions = 0;
+            return tree;
+        }
+
+        tree.root = parallel ? tree.buildSortedParallel(entries) : tree.buildSorted(entries.iterator());
+        tree.size = tree.root.count;
+        return tree;
+    }
+
+    /**
+     * Walks two trees in lockstep, in key order, from a pair of nodes at the
+     * same key. A node may be entered within its label, when the other tree
+     * branches there: it then has no value there, and is its own only child.
+     *
+     * @param <A> the type of the values of the left tree
+     * @param <B> the type of the values of the right tree
+     */
+    private abstract static class Lockstep<A, B> {
+        /**
+         * A key with a value in both trees.
+         */
+        abstract void both(RadixTree<A>.Node a, RadixTree<? extends B>.Node b);
+
+        /**
+         * A key with a value in the left tree only.
+         */
+        void left(RadixTree<A>.Node a) {
+        }
+
+        /**
+         * A key with a value in the right tree only.
+         */
+        void right(RadixTree<? extends B>.Node b) {
+        }
+
+        /**
+         * A subtree of the left tree sharing no key with the right tree.
+         * Calls left(..) for each of its keys by default.
+         */
+        void leftSubtree(RadixTree<A>.Node a) {
+            if (a.isLeafNode())
+                left(a);
+            else
+                forEachValueNode(a, this::left);
         }
 
-        return null;
-    }
+        /**
+         * A subtree of the right tree sharing no key with the left tree.
+         * Calls right(..) for each of its keys by default.
+         */
+        void rightSubtree(RadixTree<? extends B>.Node b) {
+            if (b.isLeafNode())
+                right(b);
+            else
+                forEachValueNode(b, this::right);
+        }
+
+        /**
+         * Visits the keys of a and b from depth on, where a and b each end
+         * at depth or go through it.
+         */
+        final void visit(RadixTree<A>.Node a, RadixTree<? extends B>.Node b, int depth) {
+            final boolean aEnds = a.end == depth;
+            final boolean bEnds = b.end == depth;
+            final A aValue = aEnds ? a.value : null;
+            final B bValue = bEnds ? b.value : null;
+
+            if (aValue != null && bValue != null)
+                both(a, b);
+            else if (aValue != null)
+                left(a);
+            else if (bValue != null)
+                right(b);
+
+            // merge the children of a and b by first char; a node going
+            // through depth is its own only child, at slot 0
+            int aSlot = aEnds ? nextSlot(a, 0) : 0;
+            int bSlot = bEnds ? nextSlot(b, 0) : 0;
+
+            while (aSlot >= 0 || bSlot >= 0) {
+                final RadixTree<A>.Node aChild = aSlot < 0 ? null : aEnds ? a.children[aSlot] : a;
+                final RadixTree<? extends B>.Node bChild = bSlot < 0 ? null : bEnds ? b.children[bSlot] : b;
+                final int aChar = aChild != null ? aChild.ref.charAt(depth) : Integer.MAX_VALUE;
+                final int bChar = bChild != null ? bChild.ref.charAt(depth) : Integer.MAX_VALUE;
+
+                if (aChar < bChar) {
+                    leftSubtree(aChild);
+                } else if (bChar < aChar) {
+                    rightSubtree(bChild);
+                } else {
+                    pair(aChild, bChild, depth);
+                }
+
+                if (aChar <= bChar)
+                    aSlot = aEnds ? nextSlot(a, aSlot + 1) : -1;
+                if (bChar <= aChar)
+                    bSlot = bEnds ? nextSlot(b, bSlot + 1) : -1;
+            }
+        }
+
+        /**
+         * Visits children a and b, starting with the same char at depth: down
+         * to where the shorter label ends if the labels match up to there, or
+         * as two disjoint subtrees, in key order, if they do not.
+         */
+        void pair(RadixTree<A>.Node a, RadixTree<? extends B>.Node b, int depth) {
+            final int end = Math.min(a.end, b.end);
+
+            if (a.ref.regionMatches(depth + 1, b.ref, depth + 1, end - depth - 1)) {
+                visit(a, b, end);
+                return;
+            }
+
+            int i = depth + 1;
+            while (a.ref.charAt(i) == b.ref.charAt(i))
+                i++;
+
+            if (a.ref.charAt(i) < b.ref.charAt(i)) {
+                leftSubtree(a);
+                rightSubtree(b);
+            } else {
+                rightSubtree(b);
+                leftSubtree(a);
+            }
+        }
+
+        /**
+         * @return the first slot at or after from holding a child of node, or -1
+         */
+        private static int nextSlot(RadixTree<?>.Node node, int from) {
+            if (node.isLeafNode())
+                return -1;
+
+            for (int i = from; i < node.children.length; ++i) {
+                if (node.children[i] != null)
+                    return i;
+            }
+
+            return -1;
+        }
+
+        /**
+         * Calls action with every node holding a value in node's subtree, in key order.
+         */
+        private static <T> void forEachValueNode(RadixTree<T>.Node node, Consumer<? super RadixTree<T>.Node> action) {
+            final ArrayDeque<RadixTree<T>.Node> stack = new ArrayDeque<>();
+            stack.push(node);
+
+            while (!stack.isEmpty()) {
+                final RadixTree<T>.Node current = stack.pop();
+
+                if (current.value != null)
+                    action.accept(current);
+
+                if (!current.isLeafNode()) {
+                    for (int i = current.children.length - 1; i >= 0; --i) {
+                        if (current.children[i] != null)
+                            stack.push(current.children[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final int STREAM_MAGIC = 0x52445853; // "RDXS"
+    private static final int STREAM_VERSION = 1;
+    private static final int STREAM_BUFFER = 1 << 16;
+
+    /**
+     * Writes the structure of this tree to out, in a compact binary format
+     * that readFrom(..) loads without searching the tree for any key: each
+     * node is written once, with its edge label rather than its full key.
+     *
+     * Stream layout, ints big-endian, varints unsigned LEB128:
+     * <pre>
+     *   header: int MAGIC, int VERSION, int size
+     *   node:   varint labelLength, varint[labelLength] label chars,
+     *           varint (childCount &lt;&lt; 1 | hasValue),
+     *           if hasValue: varint valueLength, byte[valueLength] value,
+     *           then its children, in order
+     * </pre>
+     * The stream is written through a bounded buffer, and is flushed but not
+     * closed.
+     *
+     * @param out   the stream to write to
+     * @param codec the codec of the values
+     * @throws IOException if writing fails
+     */
+    public void writeTo(OutputStream out, ValueCodec<? super V> codec) throws IOException {
+        writeTo(Channels.newChannel(out), codec);
+        out.flush();
+    }
+
+    /**
+     * Writes the structure of this tree to channel, see writeTo(OutputStream, ..).
+     * The channel is not closed.
+     */
+    public void writeTo(WritableByteChannel channel, ValueCodec<? super V> codec) throws IOException {
+        final ByteSink sink = new ByteSink(channel);
+        sink.writeInt(STREAM_MAGIC);
+        sink.writeInt(STREAM_VERSION);
+        sink.writeInt(size);
+
+        final ArrayDeque<Node> stack = new ArrayDeque<>();
+        stack.push(root);
+
+        while (!stack.isEmpty()) {
+            final Node node = stack.pop();
+
+            sink.writeVarint(node.end - node.start);
+            for (int i = node.start; i < node.end; ++i)
+                sink.writeVarint(node.ref.charAt(i));
+
+            sink.writeVarint(node.childCount << 1 | (node.value != null ? 1 : 0));
+
+            if (node.value != null) {
+                final byte[] value = codec.encode(node.value);
+                sink.writeVarint(value.length);
+                sink.write(value);
+            }
+
+            if (!node.isLeafNode()) {
+                for (int i = node.children.length - 1; i >= 0; --i) {
+                    if (node.children[i] != null)
+                        stack.push(node.children[i]);
+                }
+            }
+        }
+
+        sink.flush();
+    }
+
+    /**
+     * Reads a tree written by writeTo(..). The stream is read through a
+     * bounded buffer, so it may be read past the end of the tree by up to
+     * that buffer's size, and it is not closed.
+     *
+     * @param in    the stream to read from
+     * @param codec the codec the values were written with
+     * @return a new tree
+     * @throws IOException if reading fails or the stream is not a valid tree
+     */
+    public static <V> RadixTree<V> readFrom(InputStream in, ValueCodec<V> codec) throws IOException {
+        return readFrom(Channels.newChannel(in), codec);
+    }
+
+    /**
+     * Reads a tree written by writeTo(..) from channel, see readFrom(InputStream, ..).
+     * A FileChannel is memory-mapped from its position instead of being
+     * copied through a buffer, and is left positioned just past the tree.
+     */
+    public static <V> RadixTree<V> readFrom(ReadableByteChannel channel, ValueCodec<V> codec) throws IOException {
+        final ByteSource source;
+        long position = -1;
+
+        if (channel instanceof FileChannel && ((FileChannel) channel).size() - ((FileChannel) channel).position() <= Integer.MAX_VALUE) {
+            final FileChannel file = (FileChannel) channel;
+            position = file.position();
+            source = new ByteSource(null, file.map(FileChannel.MapMode.READ_ONLY, position, file.size() - position));
+        } else {
+            final ByteBuffer buffer = ByteBuffer.allocate(STREAM_BUFFER);
+            buffer.flip();
+            source = new ByteSource(channel, buffer);
+        }
+
+        if (source.readInt() != STREAM_MAGIC)
+            throw new IOException("Not a radix tree stream");
+        final int version = source.readInt();
+        if (version != STREAM_VERSION)
+            throw new IOException("Unsupported radix tree stream version " + version);
+        final int size = source.readInt();
+
+        final RadixTree<V> tree = new RadixTree<>();
+        tree.root = tree.readNodes(source, codec);
+        tree.size = tree.root.count;
+
+        if (tree.size != size)
+            throw new IOException("Corrupt radix tree stream");
+
+        if (position >= 0)
+            ((FileChannel) channel).position(position + source.buffer.position());
+
+        return tree;
+    }
+
+    /**
+     * Reads the nodes written in pre-order by writeTo(..), and creates each
+     * one, bottom-up, once all its children are. The current key is kept in
+     * path; a value node takes it as its ref, and any other node the ref of
+     * its first child, so only one String is created per key.
+     *
+     * @return the root
+     */
+    private Node readNodes(ByteSource source, ValueCodec<V> codec) throws IOException {
+        final StringBuilder path = new StringBuilder();
+        final ArrayList<StreamFrame> stack = new ArrayList<>();
+        final ArrayList<Node> finished = new ArrayList<>();
+        byte[] bytes = new byte[64];
+
+        while (true) {
+            final int start = path.length();
+            final int labelLength = source.readVarint();
+            for (int i = 0; i < labelLength; ++i)
+                path.append(source.readChar());
+
+            final int flags = source.readVarint();
+            final int childCount = flags >>> 1;
+            V value = null;
+
+            if ((flags & 1) != 0) {
+                final int valueLength = source.readVarint();
+                if (valueLength > bytes.length)
+                    bytes = new byte[Math.max(valueLength, bytes.length * 2)];
+                source.readFully(bytes, valueLength);
+                try {
+                    value = codec.decode(ByteBuffer.wrap(bytes, 0, valueLength));
+                } catch (BufferUnderflowException e) {
+                    value = null;
+                }
+                if (value == null)
+                    throw new IOException("Corrupt radix tree stream");
+            }
+
+            if (stack.isEmpty() ? labelLength != 0 : labelLength == 0 || (value == null && childCount < 2))
+                throw new IOException("Corrupt radix tree stream");
+
+            if (!stack.isEmpty()) {
+                final StreamFrame parent = stack.get(stack.size() - 1);
+                final char first = path.charAt(start);
+                if (finished.size() > parent.firstChild && first <= parent.lastChar)
+                    throw new IOException("Corrupt radix tree stream");
+                parent.lastChar = first;
+                parent.remaining--;
+            }
+
+            stack.add(new StreamFrame(start, path.length(), value, childCount, finished.size()));
+
+            // create the nodes whose children are all read
+            while (stack.get(stack.size() - 1).remaining == 0) {
+                final StreamFrame frame = stack.remove(stack.size() - 1);
+                final String ref = frame.value != null || finished.size() == frame.firstChild
+                        ? path.toString()
+                        : finished.get(frame.firstChild).ref;
+                final Node node = newSortedNode(ref, frame.start, frame.end, frame.value, finished, frame.firstChild);
+                path.setLength(frame.start);
+
+                if (stack.isEmpty())
+                    return node;
+
+                finished.add(node);
+            }
+        }
+    }
+
+    /**
+     * A node of readNodes(..) whose children are not all read yet.
+     */
+    private class StreamFrame {
+        private final int start;
+        private final int end;
+        private final V value;
+        private int remaining;        // number of children left to read
+        private final int firstChild; // index of its first child in finished
+        private char lastChar;        // first char of its last child read
+
+        private StreamFrame(int start, int end, V value, int remaining, int firstChild) {
+            this.start = start;
+            this.end = end;
+            this.value = value;
+            this.remaining = remaining;
+            this.firstChild = firstChild;
+        }
+    }
+
+    /**
+     * Buffered big-endian writes to a channel.
+     */
+    private static final class ByteSink {
+        private final WritableByteChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(STREAM_BUFFER);
+
+        private ByteSink(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        private void writeInt(int value) throws IOException {
+            if (buffer.remaining() < 4)
+                flush();
+            buffer.putInt(value);
+        }
+
+        private void writeVarint(int value) throws IOException {
+            if (buffer.remaining() < 5)
+                flush();
+            while ((value & ~0x7F) != 0) {
+                buffer.put((byte) (value & 0x7F | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte) value);
+        }
+
+        private void write(byte[] bytes) throws IOException {
+            int offset = 0;
+            while (offset < bytes.length) {
+                if (!buffer.hasRemaining())
+                    flush();
+                final int length = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Big-endian reads from a buffer, refilled from a channel unless it holds
+     * all the input.
+     */
+    private static final class ByteSource {
+        private final ReadableByteChannel channel; // null if buffer holds all the input
+        private final ByteBuffer buffer;
+
+        private ByteSource(ReadableByteChannel channel, ByteBuffer buffer) {
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        private byte readByte() throws IOException {
+            if (!buffer.hasRemaining())
+                fill();
+            return buffer.get();
+        }
+
+        private int readInt() throws IOException {
+            int value = 0;
+            for (int i = 0; i < 4; ++i)
+                value = value << 8 | readByte() & 0xFF;
+            return value;
+        }
+
+        private int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                final byte b = readByte();
+                value |= (b & 0x7F) << shift;
+                if (b >= 0)
+                    return value;
+            }
+            throw new IOException("Corrupt radix tree stream");
+        }
+
+        private char readChar() throws IOException {
+            final int value = readVarint();
+            if (value > Character.MAX_VALUE)
+                throw new IOException("Corrupt radix tree stream");
+            return (char) value;
+        }
+
+        private void readFully(byte[] bytes, int length) throws IOException {
+            int offset = 0;
+            while (offset < length) {
+                if (!buffer.hasRemaining())
+                    fill();
+                final int count = Math.min(buffer.remaining(), length - offset);
+                buffer.get(bytes, offset, count);
+                offset += count;
+            }
+        }
+
+        private void fill() throws IOException {
+            if (channel == null)
+                throw new EOFException();
+
+            buffer.clear();
+            int read;
+            do {
+                read = channel.read(buffer);
+            } while (read == 0);
+            buffer.flip();
+
+            if (read < 0)
+                throw new EOFException();
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size <= 0;
+    }
+
+    @Override
+    public boolean containsKey(Object o) {
+        if (!(o instanceof String))
+            return false;
+
+        final String key = (String) o;
+        final Node node = findNode(key, 0, key.length()); // not an access, in a bounded tree
+
+        return node != null && node.value != null;
+    }
+
+    /**
+     * O(n) search value stored in this radix tree. Where n is the number of values stored
+     * in this tree.
+     *
+     * @param value the value to search
+     * @return true if value is stored somewhere in the tree
+     */
+    @Override
+    public boolean containsValue(Object value) {
+        if (value == null) return false;
+
+        for (final V v : values()) {
+            if (value.equals(v))
+                return true;
+        }
+
+        return false;
+    }
+
+    public boolean containsPrefix(String key) {
+        return findPrefixNode(key, 0, key.length()) != null;
+    }
+
+    /**
+     * Same as containsKey(key.subSequence(from, to)), without allocating.
+     *
+     * @throws IndexOutOfBoundsException if from or to are out of key's bounds
+     */
+    public boolean containsKey(CharSequence key, int from, int to) {
+        checkRange(key, from, to);
+
+        final Node node = findNode(key, from, to);
+
+        return node != null && node.value != null;
+    }
+
+    /**
+     * Same as containsPrefix(key.subSequence(from, to).toString()), without allocating.
+     *
+     * @throws IndexOutOfBoundsException if from or to are out of key's bounds
+     */
+    public boolean containsPrefix(CharSequence key, int from, int to) {
+        checkRange(key, from, to);
+        return findPrefixNode(key, from, to) != null;
+    }
+
+    /**
+     * O(|text|^2) worst-case search for all keys occurring the
+     * specified text.
+     *
+     * Worst case occurs when all the keys form a power set of substrings,
+     * and 'text' is the longest such string in the power set.
+     *
+     * @param text the text in which find all key occurrences
+     * @return an unsorted list of complete key matches
+     * @see #findAllKeys(String)
+     */
+    public ArrayList<Match> findKeys(String text) {
+        final ArrayList<Match> result = new ArrayList<>();
+
+        if (root.isValueNode()) // account of empty prefix
+            result.add(new Match(root, null, 0, 0));
+
+        findKeys(text, 0, text.length(), result);
+
+        if (metrics != null)
+            metrics.matched(result.size());
+
+        return result;
+    }
+
+    /**
+     * findKeys(text), with the start offsets of text split into chunks that
+     * are matched in parallel on pool. Each chunk's matches may run past its
+     * end into the next one, so no match is lost or duplicated at the seams.
+     * The tree must not be modified during the call.
+     *
+     * @param text the text in which find all key occurrences
+     * @param pool the pool running the chunks, e.g. ForkJoinPool.commonPool()
+     * @return the complete key matches, ordered by matchStart
+     */
+    public ArrayList<Match> findKeys(String text, ForkJoinPool pool) {
+        assert text != null;
+
+        final ArrayList<Match> result = pool.invoke(new FindKeysTask(text, 0, text.length()));
+
+        if (root.isValueNode()) // account of empty prefix
+            result.add(0, new Match(root, null, 0, 0));
+
+        if (metrics != null)
+            metrics.matched(result.size());
+
+        return result;
+    }
+
+    /**
+     * Adds the complete key matches starting at an offset in [from, to) of
+     * text to result, in order of offset.
+     */
+    private void findKeys(String text, int from, int to, ArrayList<Match> result) {
+        for (int offset = from; offset < to; ++offset) {
+            final Match match = findMatchingPrefixEnd(text, offset);
+
+            if (match.node != root && match.node.end == match.matchEnd - match.matchStart &&
+                    match.node.isValueNode())
+                result.add(match);
+        }
+    }
+
+    /**
+     * Matches the start offsets [from, to) of text, splitting them in halves
+     * down to PARALLEL_CHUNK offsets.
+     */
+    private class FindKeysTask extends RecursiveTask<ArrayList<Match>> {
+        private static final long serialVersionUID = 1L;
+
+        private final String text;
+        private final int from;
+        private final int to;
+
+        private FindKeysTask(String text, int from, int to) {
+            this.text = text;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected ArrayList<Match> compute() {
+            if (to - from <= PARALLEL_CHUNK) {
+                final ArrayList<Match> result = new ArrayList<>();
+                findKeys(text, from, to, result);
+                return result;
+            }
+
+            final int middle = (from + to) >>> 1;
+            final FindKeysTask head = new FindKeysTask(text, from, middle);
+            head.fork();
+            final ArrayList<Match> tail = new FindKeysTask(text, middle, to).compute();
+            final ArrayList<Match> result = head.join();
+            result.addAll(tail);
+            return result;
+        }
+    }
+
+    /**
+     * O(|text| + m) search for every occurrence of every key in the
+     * specified text, where m is the number of occurrences reported.
+     *
+     * Unlike findKeys(..), a key that is a proper prefix or suffix of another
+     * matched key is reported as well, e.g. both "test" and "testing" are
+     * reported for the text "testing". The empty key, when present, is
+     * reported once at offset 0.
+     *
+     * The matching automaton is compiled on first use and is rebuilt lazily
+     * after the tree's key set is modified.
+     *
+     * @param text the text in which find all key occurrences
+     * @return a list of complete key matches, ordered by matchEnd and, for
+     * the same matchEnd, by decreasing key length
+     */
+    public ArrayList<Match> findAllKeys(String text) {
+        assert text != null;
+
+        final ArrayList<Match> result = new ArrayList<>();
+
+        if (root.isValueNode()) // account of empty prefix
+            result.add(new Match(root, null, 0, 0));
+
+        automaton().scan(text, result);
+
+        if (metrics != null)
+            metrics.matched(result.size());
+
+        return result;
+    }
+
+    /**
+     * Returns a scanner reporting every occurrence of every key, as
+     * findAllKeys(..) does, in text fed to it piece by piece. Matches spanning
+     * the boundary between two pieces are found, and the scanner keeps no
+     * more than its automaton state and position, however long the input.
+     *
+     * The empty key, when present, is reported once, at offset 0, when the
+     * scanner is created.
+     *
+     * @param action called with the entry of each match and the absolute
+     *               offset at which the match starts, in order of match end
+     * @return a scanner positioned at offset 0
+     */
+    public KeyScanner scanner(ObjLongConsumer<? super Entry<String, V>> action) {
+        assert action != null;
+
+        return new KeyScanner(action);
+    }
+
+    /**
+     * Reports every occurrence of every key in the chars read from reader,
+     * through a scanner(action), reading a buffer at a time.
+     *
+     * @param reader the input, read to its end but not closed
+     * @param action called with the entry of each match and its start offset
+     * @return the number of chars read
+     * @throws IOException if reading fails
+     */
+    public long findAllKeys(Reader reader, ObjLongConsumer<? super Entry<String, V>> action) throws IOException {
+        final KeyScanner scanner = scanner(action);
+        final char[] buffer = new char[8192];
+        int read;
+
+        while ((read = reader.read(buffer)) >= 0)
+            scanner.feed(buffer, 0, read);
+
+        return scanner.position();
+    }
+
+    /**
+     * @return the matching automaton of the current key set
+     */
+    private Automaton automaton() {
+        if (automaton == null || automaton.modCount != modCount)
+            automaton = new Automaton();
+
+        return automaton;
+    }
+
+    /**
+     * An incremental key scanner, see scanner(..). The tree must not be
+     * structurally modified while it is in use.
+     */
+    public class KeyScanner {
+        private final Automaton automaton = automaton();
+        private final ObjLongConsumer<? super Entry<String, V>> action;
+
+        private int state = 0;     // automaton state after the chars fed so far
+        private long position = 0; // number of chars fed so far
+
+        private KeyScanner(ObjLongConsumer<? super Entry<String, V>> action) {
+            this.action = action;
+
+            if (root.isValueNode()) // account of empty prefix
+                action.accept(root, 0);
+        }
+
+        /**
+         * @return the absolute offset of the next char to be fed
+         */
+        public long position() {
+            return position;
+        }
+
+        public void feed(char[] chars) {
+            feed(chars, 0, chars.length);
+        }
+
+        public void feed(char[] chars, int offset, int length) {
+            if (offset < 0 || length < 0 || offset > chars.length - length)
+                throw new IndexOutOfBoundsException();
+
+            checkForComodification();
+
+            for (int i = offset; i < offset + length; ++i)
+                accept(chars[i]);
+        }
+
+        /**
+         * Feeds the remaining chars of buffer, leaving it at its limit.
+         */
+        public void feed(CharBuffer buffer) {
+            if (buffer.hasArray()) {
+                feed(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                buffer.position(buffer.limit());
+                return;
+            }
+
+            checkForComodification();
+
+            while (buffer.hasRemaining())
+                accept(buffer.get());
+        }
+
+        private void checkForComodification() {
+            if (automaton.modCount != modCount)
+                throw new ConcurrentModificationException();
+        }
+
+        private void accept(char c) {
+            state = automaton.step(state, c);
+            position++;
+
+            int s = automaton.terminal[state] != null ? state : automaton.output[state];
+            while (s >= 0) {
+                final Node node = automaton.terminal[s];
+                action.accept(node, position - node.end);
+                s = automaton.output[s];
+            }
+        }
+    }
+
+    /**
+     * Returns the k entries with the highest scores among the keys starting
+     * with prefix, in a scored tree.
+     *
+     * This is a best-first search guided by the best score cached in every
+     * node, so it only visits the nodes on the paths to the results, and
+     * their siblings, rather than the whole subtree of prefix.
+     *
+     * @param prefix the prefix of the keys to complete
+     * @param k the maximum number of entries to return
+     * @return the live entries found, by decreasing score
+     * @throws IllegalStateException if this tree was constructed without scorer
+     */
+    public ArrayList<Entry<String, V>> topK(String prefix, int k) {
+        if (scorer == null)
+            throw new IllegalStateException("Not a scored tree");
+        if (k < 0)
+            throw new IllegalArgumentException("k: " + k);
+
+        final ArrayList<Entry<String, V>> result = new ArrayList<>();
+        final Node start = findPrefixNode(prefix);
+
+        if (start == null || k == 0)
+            return result;
+
+        // subtrees by the bound of their best score, and values by their exact
+        // score, ahead of subtrees of the same score
+        final PriorityQueue<ScoredNode> queue = new PriorityQueue<>();
+        queue.add(new ScoredNode(start, start.best, false));
+
+        while (!queue.isEmpty() && result.size() < k) {
+            final ScoredNode next = queue.poll();
+            final Node node = next.node;
+
+            if (next.isValue) {
+                result.add(node);
+                continue;
+            }
+
+            if (node.value != null)
+                queue.add(new ScoredNode(node, scorer.applyAsDouble(node.value), true));
+
+            if (!node.isLeafNode()) {
+                for (final Node child : node.children) {
+                    if (child != null)
+                        queue.add(new ScoredNode(child, child.best, false));
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private class ScoredNode implements Comparable<ScoredNode> {
+        private final Node node;
+        private final double score;
+        private final boolean isValue;
+
+        private ScoredNode(Node node, double score, boolean isValue) {
+            this.node = node;
+            this.score = score;
+            this.isValue = isValue;
+        }
+
+        @Override
+        public int compareTo(ScoredNode other) {
+            final int byScore = Double.compare(other.score, score);
+            return byScore != 0 ? byScore : Boolean.compare(other.isValue, isValue);
+        }
+    }
+
+    /**
+     * @return the smallest float not below score
+     */
+    private static float upperBound(double score) {
+        final float bound = (float) score;
+        return bound < score ? Math.nextUp(bound) : bound;
+    }
+
+    /**
+     * Raises the best score of the nodes on the path of key to at least
+     * score, after it was put with a score no lower than the one it replaced.
+     */
+    private void raiseBest(String key, double score) {
+        final float bound = upperBound(score);
+        final int keyLength = key.length();
+        Node node = root;
+
+        while (true) {
+            if (node.best < bound)
+                node.best = bound;
+
+            if (node.end >= keyLength)
+                return;
+
+            node = node.findChildNodeStartsWith(key.charAt(node.end));
+        }
+    }
+
+    /**
+     * Recomputes the best score of the nodes on the path of key[from, to),
+     * from the deepest one up to node.
+     */
+    private void rescore(Node node, CharSequence key, int from, int to) {
+        if (node.end < to - from) {
+            final Node child = node.findChildNodeStartsWith(key.charAt(from + node.end));
+            if (child != null)
+                rescore(child, key, from, to);
+        }
+
+        float best = node.value != null ? upperBound(scorer.applyAsDouble(node.value)) : Float.NEGATIVE_INFINITY;
+
+        if (!node.isLeafNode()) {
+            for (final Node child : node.children) {
+                if (child != null && child.best > best)
+                    best = child.best;
+            }
+        }
+
+        node.best = best;
+    }
+
+    /**
+     * Points the valueless nodes on the path of key[from, to) back at live
+     * keys, from the deepest one up to node, after keys were removed below
+     * them: see Node.ref.
+     */
+    private void relinkRefs(Node node, CharSequence key, int from, int to) {
+        if (node.end < to - from) {
+            final Node child = node.findChildNodeStartsWith(key.charAt(from + node.end));
+            if (child != null)
+                relinkRefs(child, key, from, to);
+        }
+
+        if (node.value != null)
+            return;
+
+        if (node == root || node.isLeafNode()) {
+            node.ref = "";
+            return;
+        }
+
+        for (final Node child : node.children) {
+            if (child != null) {
+                node.ref = child.ref;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the entries whose keys are within maxEdits insertions,
+     * deletions or substitutions of query, i.e. within Levenshtein distance
+     * maxEdits, in lexicographic order of their keys.
+     *
+     * @see #fuzzyEntries(String, int, boolean)
+     */
+    public ArrayList<Entry<String, V>> fuzzyEntries(String query, int maxEdits) {
+        return fuzzyEntries(query, maxEdits, false);
+    }
+
+    /**
+     * Returns the entries whose keys are within Levenshtein distance maxEdits
+     * of query or, in prefix mode, whose keys start with a string within that
+     * distance of query, e.g. for autocompletion of a misspelled input.
+     *
+     * The tree is walked along with one row of the edit distance table per
+     * char of the edges, so rows are shared by all the keys below an edge.
+     * A subtree is skipped as soon as every cell of its row exceeds maxEdits.
+     *
+     * @param query the string to match
+     * @param maxEdits the maximum edit distance
+     * @param prefix true to match the prefixes of the keys rather than the keys
+     * @return the live entries matched, in lexicographic order of their keys
+     */
+    public ArrayList<Entry<String, V>> fuzzyEntries(String query, int maxEdits, boolean prefix) {
+        if (maxEdits < 0)
+            throw new IllegalArgumentException("maxEdits: " + maxEdits);
+
+        final ArrayList<Entry<String, V>> result = new ArrayList<>();
+        final int queryLength = query.length();
+        final int[] firstRow = new int[queryLength + 1];
+        for (int j = 0; j <= queryLength; ++j)
+            firstRow[j] = j;
+
+        final ArrayList<int[]> rows = new ArrayList<>();
+        rows.add(firstRow);
+
+        if (prefix && queryLength <= maxEdits) {
+            collectValueNodes(root, result);
+        } else {
+            if (root.value != null && queryLength <= maxEdits)
+                result.add(root);
+            fuzzySearch(root, query, maxEdits, prefix, rows, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Matches the children of node, rows.get(d) holding the edit distances
+     * between the first d chars of the keys and every prefix of query.
+     */
+    private void fuzzySearch(Node node, String query, int maxEdits, boolean prefix,
+                             ArrayList<int[]> rows, ArrayList<Entry<String, V>> result) {
+        if (node.isLeafNode())
+            return;
+
+        final int queryLength = query.length();
+
+        for (final Node child : node.children) {
+            if (child == null)
+                continue;
+
+            boolean pruned = false;
+            boolean completed = false;
+
+            for (int i = child.start; i < child.end && !pruned && !completed; ++i) {
+                if (rows.size() <= i + 1)
+                    rows.add(new int[queryLength + 1]);
+
+                final int[] previous = rows.get(i);
+                final int[] row = rows.get(i + 1);
+                final char c = child.ref.charAt(i);
+
+                row[0] = i + 1;
+                int min = row[0];
+
+                for (int j = 1; j <= queryLength; ++j) {
+                    final int substitution = previous[j - 1] + (query.charAt(j - 1) == c ? 0 : 1);
+                    row[j] = Math.min(substitution, Math.min(previous[j], row[j - 1]) + 1);
+                    min = Math.min(min, row[j]);
+                }
+
+                pruned = min > maxEdits;
+                completed = prefix && row[queryLength] <= maxEdits;
+            }
+
+            if (pruned)
+                continue;
+
+            if (completed) {
+                collectValueNodes(child, result);
+                continue;
+            }
+
+            if (child.value != null && rows.get(child.end)[queryLength] <= maxEdits)
+                result.add(child);
+
+            fuzzySearch(child, query, maxEdits, prefix, rows, result);
+        }
+    }
+
+    /**
+     * Adds the value nodes of the subtree of node to result, in order.
+     */
+    private void collectValueNodes(Node node, ArrayList<Entry<String, V>> result) {
+        if (node.value != null)
+            result.add(node);
+
+        if (!node.isLeafNode()) {
+            for (final Node child : node.children) {
+                if (child != null)
+                    collectValueNodes(child, result);
+            }
+        }
+    }
+
+    @Override
+    public V get(Object o) {
+        if (!(o instanceof String))
+            return null;
+
+        final String key = (String) o;
+        final Node node = findNode(key, 0, key.length());
+
+        if (eviction != null)
+            return recordAccess(node, key, 0, key.length());
+
+        return node != null ? node.value : null;
+    }
+
+    /**
+     * Same as get(key.subSequence(from, to).toString()), without allocating.
+     * Useful for keys that are slices of a larger buffer.
+     *
+     * @throws IndexOutOfBoundsException if from or to are out of key's bounds
+     */
+    public V get(CharSequence key, int from, int to) {
+        checkRange(key, from, to);
+
+        final Node node = findNode(key, from, to);
+
+        if (eviction != null)
+            return recordAccess(node, key, from, to);
+
+        return node != null ? node.value : null;
+    }
+
+    /**
+     * Looks up keys in one pass, into values: values[i] is set to the value
+     * of keys.get(i), or to null. The nodes on the path of each key are kept
+     * on a stack, so the next key only backtracks to the longest prefix it
+     * shares with the previous one, instead of descending again from the
+     * root. Any order works; sorted keys share the longest prefixes.
+     *
+     * @param keys   the keys to look up
+     * @param values the array receiving the values, at least as long as keys
+     * @return the number of keys found
+     * @throws IllegalArgumentException if values is shorter than keys
+     */
+    public int getAll(List<? extends CharSequence> keys, V[] values) {
+        final int keyCount = keys.size();
+
+        if (values.length < keyCount)
+            throw new IllegalArgumentException("values: " + values.length + ", keys: " + keyCount);
+
+        final PathFinder finder = new PathFinder();
+        int found = 0;
+
+        for (int i = 0; i < keyCount; ++i) {
+            values[i] = finder.get(keys.get(i));
+            if (values[i] != null)
+                found++;
+        }
+
+        return found;
+    }
+
+    /**
+     * Looks up keys in one pass, as getAll(keys, values), and calls action
+     * with each key and its value, or null, in the order of keys.
+     *
+     * @param keys   the keys to look up, best in sorted order
+     * @param action the callback receiving the keys and their values
+     */
+    public void getAll(Iterable<? extends CharSequence> keys, BiConsumer<? super CharSequence, ? super V> action) {
+        final PathFinder finder = new PathFinder();
+
+        for (final CharSequence key : keys)
+            action.accept(key, finder.get(key));
+    }
+
+    /**
+     * Successive lookups keeping the path of the previous key, see getAll(..).
+     * The tree must not be modified in between.
+     */
+    private class PathFinder {
+        private Node[] path = newNodeArray(16); // root, then the nodes matched by the previous key
+        private int top = 0;
+        private CharSequence previous = "";
+
+        private PathFinder() {
+            path[0] = root;
+        }
+
+        private V get(CharSequence key) {
+            if (eviction != null) // records the access
+                return RadixTree.this.get(key, 0, key.length());
+
+            final int keyLength = key.length();
+            final int common = commonPrefixLength(previous, key);
+            previous = key;
+
+            while (path[top].end > common)
+                top--;
+
+            Node node = path[top];
+            int visited = 1;
+
+            while (node.end < keyLength) {
+                final Node child = node.findChildNodeStartsWith(key.charAt(node.end));
+
+                if (child == null || !child.labelMatches(key, 0, keyLength)) {
+                    node = null;
+                    break;
+                }
+
+                if (++top == path.length)
+                    path = Arrays.copyOf(path, top * 2);
+                path[top] = node = child;
+                visited++;
+            }
+
+            if (metrics != null)
+                metrics.descended(visited);
+
+            return node != null && node.end == keyLength ? node.value : null;
+        }
+    }
+
+    private static int commonPrefixLength(CharSequence a, CharSequence b) {
+        final int length = Math.min(a.length(), b.length());
+        int i = 0;
+
+        while (i < length && a.charAt(i) == b.charAt(i))
+            i++;
+
+        return i;
+    }
+
+    /**
+     * O(|input|) search for the longest key that is a prefix of input, e.g.
+     * the most specific route for a URL.
+     *
+     * @param input the string whose prefixes to look up
+     * @return the live entry of the longest key prefixing input, or null
+     */
+    public Entry<String, V> longestPrefixEntry(CharSequence input) {
+        return longestPrefixEntry(input, 0, input.length());
+    }
+
+    /**
+     * Same as longestPrefixEntry(input.subSequence(from, to)), without
+     * allocating.
+     *
+     * @throws IndexOutOfBoundsException if from or to are out of input's bounds
+     */
+    public Entry<String, V> longestPrefixEntry(CharSequence input, int from, int to) {
+        checkRange(input, from, to);
+
+        Node longest = null;
+
+        for (Node node = root; node != null; node = nextPrefixNode(node, input, from, to)) {
+            if (node.value != null)
+                longest = node;
+        }
+
+        return longest;
+    }
+
+    /**
+     * Returns the entries whose keys are prefixes of input, shortest first.
+     * The path is walked lazily as the iterator advances, in a single
+     * O(|input|) descent overall.
+     *
+     * @param input the string whose prefixes to look up
+     * @return the live entries of the keys prefixing input
+     */
+    public Iterable<Entry<String, V>> allPrefixEntries(CharSequence input) {
+        return () -> new PrefixEntryIterator(input);
+    }
+
+    /**
+     * Calls action with the live entry of every key that is a prefix of
+     * input, shortest first, in a single O(|input|) descent.
+     *
+     * @param input the string whose prefixes to look up
+     * @param action the callback receiving the entries
+     */
+    public void forEachPrefixEntry(CharSequence input, Consumer<? super Entry<String, V>> action) {
+        final int length = input.length();
+
+        for (Node node = root; node != null; node = nextPrefixNode(node, input, 0, length)) {
+            if (node.value != null)
+                action.accept(node);
+        }
+    }
+
+    /**
+     * @return the child of node on the path of input[from, to), or null if
+     * none of node's children is a prefix of input[from, to)
+     */
+    private Node nextPrefixNode(Node node, CharSequence input, int from, int to) {
+        final int inputLength = to - from;
+
+        if (node.end >= inputLength)
+            return null;
+
+        final Node child = node.findChildNodeStartsWith(input.charAt(from + node.end));
+
+        return child != null && child.labelMatches(input, from, inputLength) ? child : null;
+    }
+
+    @Override
+    public V put(String key, V value) {
+        final V presentValue = insert(key, value);
+
+        if (presentValue == null && key != null && value != null)
+            adjustCounts(key, 0, key.length(), 1);
+
+        if (scorer != null && key != null && value != null) {
+            final double score = scorer.applyAsDouble(value);
+
+            if (presentValue == null || score >= scorer.applyAsDouble(presentValue))
+                raiseBest(key, score);
+            else
+                rescore(root, key, 0, key.length());
+        }
+
+        if (eviction != null && key != null && value != null)
+            admit(key, value, presentValue);
+
+        return presentValue;
+    }
+
+    private V insert(String key, V value) {
+        if (value == null || key == null)
+            return null;
+
+        final int keyLength = key.length();
+
+        final Match match = findMatchingPrefixEnd(key, 0);
+
+        if (match.node.end != match.matchEnd) {
+            // match ends within but not at end of node substring
+            // NOTE: a match cannot end before node substring start, by nature
+            // of how findMatchingPrefixEnd(..) works
+
+            final Node head = match.node.splitAt(match.matchEnd);
+            match.nodeParent.add(head); // replaces match.node
+
+            if (head.end == keyLength) {
+                // key is fully matched
+                head.ref = key;
+                head.value = value;
+            } else {
+                // key is longer than node substring
+                final Node extension = newNode(key, match.matchEnd, keyLength);
+                head.add(extension);
+                extension.value = value;
+            }
+
+            size++;
+            modCount++;
+        } else {
+            // match is complete (ends at end of this node substring)
+            if (match.matchEnd == keyLength) {
+                // key is fully matched
+                final V presentValue = match.node.value;
+                if (presentValue == null) {
+                    match.node.ref = key;
+                    size++;
+                    modCount++;
+                }
+                match.node.value = value;
+                return presentValue;
+            } else {
+                // key is partially matched (key is longer than the matched prefix)
+                final Node extension = newNode(key, match.matchEnd, keyLength);
+                match.node.add(extension);
+                extension.value = value;
+                size++;
+                modCount++;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public V remove(Object o) {
+        if (!(o instanceof String))
+            return null;
+
+        final String key = (String) o;
+
+        return remove(key, 0, key.length());
+    }
+
+    /**
+     * Same as remove(key.subSequence(from, to).toString()). It does not
+     * allocate either, unless the layout of a node's children changes.
+     *
+     * @throws IndexOutOfBoundsException if from or to are out of key's bounds
+     */
+    public V remove(CharSequence key, int from, int to) {
+        checkRange(key, from, to);
+
+        final int keyLength = to - from;
+        Node grandParent = null;
+        Node parent = null;
+        Node node = root;
+        int visited = 1;
+
+        while (node.end < keyLength) {
+            final Node child = node.findChildNodeStartsWith(key.charAt(from + node.end));
+
+            if (child == null || !child.labelMatches(key, from, keyLength)) {
+                node = null;
+                break;
+            }
+
+            grandParent = parent;
+            parent = node;
+            node = child;
+            visited++;
+        }
+
+        if (metrics != null)
+            metrics.descended(visited);
+
+        if (node == null || node.end != keyLength || node.value == null)
+            return null;
+
+        adjustCounts(key, from, to, -1);
+
+        final V value = node.value;
+        node.value = null;
+
+        if (eviction != null)
+            weight -= weigh(keyLength, value);
+
+        if (node != root) {
+            if (node.isLeafNode()) {
+                parent.removeChild(node);
+                if (parent != root)
+                    grandParent.add(parent.tryMerge());
+            } else {
+                parent.add(node.tryMerge());
+            }
+        }
+
+        relinkRefs(root, key, from, to);
+        if (scorer != null)
+            rescore(root, key, from, to);
+
+        size--;
+        modCount++;
+        return value;
+    }
+
+    /**
+     * Removes all the keys starting with prefix, in O(|prefix|): the subtree
+     * holding them is detached as a whole.
+     *
+     * @param prefix the prefix of the keys to remove
+     * @return the entries removed, read from the detached subtree
+     */
+    public Set<Entry<String, V>> removePrefix(String prefix) {
+        final Match match = findMatchingPrefixEnd(prefix, 0);
+
+        if (match.matchEnd != prefix.length())
+            return Collections.emptySet();
+
+        final Node removed = match.node;
+        final int count = removed.count;
+
+        if (removed == root) {
+            clear();
+        } else {
+            // the keys leave every ancestor, from the root down to the parent
+            adjustCounts(prefix, 0, match.nodeParent.end, -count);
+
+            if (eviction != null)
+                weight -= weigh(removed);
+
+            match.nodeParent.removeChild(removed);
+            if (match.nodeParent != root)
+                match.nodeGrandParent.add(match.nodeParent.tryMerge());
+            relinkRefs(root, prefix, 0, prefix.length());
+            if (scorer != null)
+                rescore(root, prefix, 0, prefix.length());
+
+            size -= count;
+            modCount++;
+        }
+
+        return new DetachedEntrySet(removed, count);
+    }
+
+    /**
+     * Computes the shape of the tree and an estimate of its footprint, in
+     * one traversal: node and key counts, depth and fanout histograms,
+     * average edge label length, and the bytes taken by the nodes, their
+     * children arrays and the key strings they refer to, each counted once.
+     * Values are not included.
+     *
+     * @return a snapshot of the tree structure
+     */
+    public TreeStats stats() {
+        final Set<String> refs = Collections.newSetFromMap(new IdentityHashMap<>());
+        int[] depths = new int[8];
+        int[] fanouts = new int[8];
+        int nodeCount = 0;
+        int sparseCount = 0;
+        int denseCount = 0;
+        int maxDepth = 0;
+        long labelChars = 0;
+        long childArrayBytes = 0;
+        long keyBytes = 0;
+
+        final ArrayDeque<Node> stack = new ArrayDeque<>();
+        final ArrayDeque<Integer> stackDepths = new ArrayDeque<>();
+        stack.push(root);
+        stackDepths.push(0);
+
+        while (!stack.isEmpty()) {
+            final Node node = stack.pop();
+            final int depth = stackDepths.pop();
+
+            nodeCount++;
+            labelChars += node.branchLength();
+
+            if (refs.add(node.ref))
+                keyBytes += stringBytes(node.ref);
+
+            if (node.value != null) {
+                if (depth >= depths.length)
+                    depths = Arrays.copyOf(depths, Math.max(depth + 1, depths.length * 2));
+                depths[depth]++;
+                maxDepth = Math.max(maxDepth, depth);
+            }
+
+            if (node.childCount >= fanouts.length)
+                fanouts = Arrays.copyOf(fanouts, Math.max(node.childCount + 1, fanouts.length * 2));
+            fanouts[node.childCount]++;
+
+            if (node.isLeafNode())
+                continue;
+
+            if (node.labels != null) {
+                sparseCount++;
+                childArrayBytes += arrayBytes(node.labels.length, Character.BYTES);
+            } else {
+                denseCount++;
+            }
+            childArrayBytes += arrayBytes(node.children.length, Integer.BYTES);
+
+            for (final Node child : node.children) {
+                if (child != null) {
+                    stack.push(child);
+                    stackDepths.push(depth + 1);
+                }
+            }
+        }
+
+        int maxFanout = fanouts.length - 1;
+        while (maxFanout > 0 && fanouts[maxFanout] == 0)
+            maxFanout--;
+
+        return new TreeStats(nodeCount, size, sparseCount, denseCount,
+                nodeCount > 1 ? (double) labelChars / (nodeCount - 1) : 0.0,
+                maxDepth, (long) nodeCount * (eviction != null ? CACHE_NODE_BYTES : NODE_BYTES), childArrayBytes, keyBytes,
+                Arrays.copyOf(depths, maxDepth + 1), Arrays.copyOf(fanouts, maxFanout + 1));
+    }
+
+    private static long arrayBytes(int length, int elementBytes) {
+        return align(ARRAY_BYTES + (long) length * elementBytes);
+    }
+
+    /**
+     * @return the bytes of a String, stored one byte per char if they all fit, as compact strings are
+     */
+    private static long stringBytes(String string) {
+        int elementBytes = 1;
+        for (int i = 0; i < string.length() && elementBytes == 1; ++i) {
+            if (string.charAt(i) > 0xFF)
+                elementBytes = 2;
+        }
+
+        return align(OBJECT_BYTES + 2 * Integer.BYTES) + arrayBytes(string.length(), elementBytes);
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    /**
+     * Installs a hook receiving the counts of the work done by lookups,
+     * updates and searches, or removes it with null. When none is installed,
+     * the instrumented paths do no more than check for one.
+     *
+     * The hook is called from the calling thread, and from pool threads by
+     * findKeys(text, pool).
+     *
+     * @param metrics the hook, or null
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Receives the counts of the work done in a tree, see setMetrics(..).
+     * Every method does nothing by default.
+     */
+    public interface Metrics {
+        /**
+         * A lookup, update or search went down from the root through nodes,
+         * the root included, to find a key or the longest prefix of it.
+         */
+        default void descended(int nodes) {
+        }
+
+        /**
+         * A put split a node to insert a key branching off within its label.
+         */
+        default void split() {
+        }
+
+        /**
+         * A removal merged a node without a value with its only child.
+         */
+        default void merged() {
+        }
+
+        /**
+         * A findKeys(..) or findAllKeys(..) call found matches.
+         */
+        default void matched(int matches) {
+        }
+    }
+
+    /**
+     * Metrics summed in striped counters, cheap to update from many threads.
+     */
+    public static class CountingMetrics implements Metrics {
+        private final LongAdder descents = new LongAdder();
+        private final LongAdder nodesVisited = new LongAdder();
+        private final LongAdder splits = new LongAdder();
+        private final LongAdder merges = new LongAdder();
+        private final LongAdder searches = new LongAdder();
+        private final LongAdder matches = new LongAdder();
+
+        @Override
+        public void descended(int nodes) {
+            descents.increment();
+            nodesVisited.add(nodes);
+        }
+
+        @Override
+        public void split() {
+            splits.increment();
+        }
+
+        @Override
+        public void merged() {
+            merges.increment();
+        }
+
+        @Override
+        public void matched(int count) {
+            searches.increment();
+            matches.add(count);
+        }
+
+        public long descents() {
+            return descents.sum();
+        }
+
+        public long nodesVisited() {
+            return nodesVisited.sum();
+        }
+
+        public double averageNodesVisited() {
+            final long count = descents.sum();
+            return count == 0 ? 0.0 : (double) nodesVisited.sum() / count;
+        }
+
+        public long splits() {
+            return splits.sum();
+        }
+
+        public long merges() {
+            return merges.sum();
+        }
+
+        public long searches() {
+            return searches.sum();
+        }
+
+        public long matches() {
+            return matches.sum();
+        }
+
+        @Override
+        public String toString() {
+            return "CountingMetrics{descents=" + descents() + ", nodesVisited=" + nodesVisited()
+                    + ", splits=" + splits() + ", merges=" + merges()
+                    + ", searches=" + searches() + ", matches=" + matches() + "}";
+        }
+    }
+
+    /**
+     * Returns the hit, miss and eviction counts of a bounded tree, and its
+     * current weight against its capacity. Counts are zero for an unbounded
+     * tree, whose weight is its size.
+     *
+     * @return a snapshot of the cache statistics
+     */
+    public CacheStats cacheStats() {
+        if (eviction == null)
+            return new CacheStats(0, 0, 0, size, Long.MAX_VALUE);
+
+        return new CacheStats(hits.sum(), misses.sum(), evictions, weight, capacity);
+    }
+
+    /**
+     * Counts a get in a bounded tree as a hit or a miss, and records the
+     * access on the nodes of a hit key.
+     *
+     * @return the value of node, or null
+     */
+    private V recordAccess(Node node, CharSequence key, int from, int to) {
+        if (node == null || node.value == null) {
+            misses.increment();
+            return null;
+        }
+
+        hits.increment();
+
+        if (eviction == Eviction.LFU)
+            cache(node).hits = (char) Math.min(decayedHits(node) + 1, Character.MAX_VALUE);
+
+        // a get is newer than the latest put without writing the clock;
+        // stamps only go up the path once per tick, not on repeated gets
+        final int stamp = eviction == Eviction.LRU ? later(clock + 1, now()) : clock + 1;
+        if (cache(node).stamp != stamp)
+            touch(key, from, to, stamp);
+
+        return node.value;
+    }
+
+    /**
+     * Accounts for the put of key in a bounded tree as an access, then
+     * evicts cold keys, other than key, until the tree is within capacity.
+     */
+    private void admit(String key, V value, V presentValue) {
+        weight += weigh(key.length(), value);
+        if (presentValue != null)
+            weight -= weigh(key.length(), presentValue);
+
+        final Node node = findNode(key, 0, key.length());
+        if (eviction == Eviction.LFU)
+            cache(node).hits = (char) Math.min(decayedHits(node) + 1, Character.MAX_VALUE);
+
+        // newer than any get before it, whose stamp is at most clock + 1 or the time
+        clock = eviction == Eviction.LRU ? later(clock + 2, now() + 1) : clock + 2;
+        touch(key, 0, key.length(), clock);
+
+        while (weight > capacity && size > 1)
+            evictColdest(key, node);
+    }
+
+    /**
+     * Evicts the coldest of a few sampled keys other than keep or, if the
+     * victim's subtree or one above it is small, was not accessed since the
+     * victim was and does not hold keep, that whole subtree.
+     *
+     * @param keep     the key being admitted
+     * @param keepNode the node of keep
+     */
+    private void evictColdest(String keep, Node keepNode) {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        Node victim = null;
+
+        // a tree with no more keys than samples is looked over whole
+        final boolean sampled = size > EVICTION_SAMPLES;
+
+        for (int i = 0; sampled ? i < EVICTION_SAMPLES || victim == null : i < size; ++i) {
+            final Node candidate = selectNode(sampled ? random.nextInt(size) : i);
+
+            if (candidate != keepNode && (victim == null || isColder(candidate, victim)))
+                victim = candidate;
+        }
+
+        final String key = victim.ref;
+
+        if (victim == root) {
+            // the empty key, whose subtree is the whole tree
+            remove(key, 0, 0);
+            evictions++;
+            return;
+        }
+
+        // the highest subtree on the victim's path that can go whole; stamps
+        // only grow up the path, so keep's ancestors never qualify by their
+        // stamp, but in LFU the victim itself may be one of them
+        final int batch = Math.max(1, size / EVICTION_BATCH);
+        Node node = root;
+
+        do {
+            node = node.findChildNodeStartsWith(key.charAt(node.end));
+        } while (node != victim && (node.count > batch || cache(node).stamp - cache(victim).stamp > 0));
+
+        if (node.count <= batch && !keep.startsWith(key.substring(0, node.end))) {
+            final int count = node.count;
+            removePrefix(key.substring(0, node.end));
+            evictions += count;
+        } else {
+            remove(key, 0, key.length());
+            evictions++;
+        }
+    }
+
+    private boolean isColder(Node node, Node other) {
+        if (eviction == Eviction.LFU) {
+            final int diff = decayedHits(node) - decayedHits(other);
+            if (diff != 0)
+                return diff < 0;
+        }
+
+        return cache(node).stamp - cache(other).stamp < 0; // the clock may wrap around
+    }
+
+    /**
+     * @return the access count of node, halved for every size() puts since its last access
+     */
+    private int decayedHits(Node node) {
+        final int periods = (clock - cache(node).stamp) / (2 * Math.max(size, 1));
+        return periods < Character.SIZE ? cache(node).hits >>> periods : 0;
+    }
+
+    /**
+     * @return node, with the access bookkeeping it has in a bounded tree
+     */
+    private CacheNode cache(Node node) {
+        return (CacheNode) node;
+    }
+
+    /**
+     * @return the time in units of about a millisecond; stamps compare right within 24 days
+     */
+    private static int now() {
+        return (int) (System.nanoTime() >>> 20);
+    }
+
+    /**
+     * @return the later of two stamps, either of which may have wrapped around
+     */
+    private static int later(int stamp, int other) {
+        return stamp - other >= 0 ? stamp : other;
+    }
+
+    private long weigh(int keyLength, V value) {
+        return weigher == null ? 1 : ENTRY_BYTES + 2L * keyLength + weigher.applyAsLong(value);
+    }
+
+    /**
+     * @return the total weight of the entries of node's subtree
+     */
+    private long weigh(Node node) {
+        if (weigher == null)
+            return node.count;
+
+        long total = 0;
+        final ArrayDeque<Node> stack = new ArrayDeque<>();
+        stack.push(node);
+
+        while (!stack.isEmpty()) {
+            final Node current = stack.pop();
+
+            if (current.value != null)
+                total += weigh(current.end, current.value);
+
+            if (!current.isLeafNode()) {
+                for (final Node child : current.children) {
+                    if (child != null)
+                        stack.push(child);
+                }
+            }
+        }
+
+        return total;
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends V> map) {
+        putAll(map.entrySet().iterator());
+    }
+
+    /**
+     * Puts entries as put(..) does, in one pass: the nodes on the path of
+     * each key are kept on a stack, so the next key only backtracks to the
+     * longest prefix it shares with the previous one, then inserts from
+     * there, and adds itself to the key counts of the nodes on the stack
+     * instead of walking down again. Any order works; sorted entries, e.g.
+     * from a SortedMap, share the longest prefixes.
+     *
+     * Scored and bounded trees put the entries one by one.
+     *
+     * @param entries the entries to put, best in sorted order
+     */
+    public void putAll(Iterator<? extends Entry<? extends String, ? extends V>> entries) {
+        if (scorer != null || eviction != null) {
+            while (entries.hasNext()) {
+                final Entry<? extends String, ? extends V> entry = entries.next();
+                put(entry.getKey(), entry.getValue());
+            }
+            return;
+        }
+
+        Node[] path = newNodeArray(16); // root, then the nodes on the path of the previous key
+        path[0] = root;
+        int top = 0;
+        String previous = "";
+
+        while (entries.hasNext()) {
+            final Entry<? extends String, ? extends V> entry = entries.next();
+            final String key = entry.getKey();
+            final V value = entry.getValue();
+
+            if (key == null || value == null)
+                continue;
+
+            final int keyLength = key.length();
+            final int common = commonPrefixLength(previous, key);
+            previous = key;
+
+            while (path[top].end > common)
+                top--;
+
+            // descend as findMatchingPrefixEnd(..) does, from the deepest node shared with the previous key
+            Node node = path[top];
+            int matched = node.end;
+            int visited = 1;
+
+            while (matched == node.end && matched < keyLength) {
+                final Node child = node.findChildNodeStartsWith(key.charAt(matched));
+
+                if (child == null)
+                    break;
+
+                final int end = Math.min(child.end, keyLength);
+                matched++;
+                while (matched < end && child.ref.charAt(matched) == key.charAt(matched))
+                    matched++;
+
+                if (++top == path.length)
+                    path = Arrays.copyOf(path, top * 2);
+                path[top] = node = child;
+                visited++;
+            }
+
+            if (metrics != null)
+                metrics.descended(visited);
+
+            if (matched < node.end) {
+                // match ends within the node's label, as in insert(..)
+                final Node head = node.splitAt(matched);
+                path[top - 1].add(head); // replaces node
+                path[top] = node = head;
+            }
+
+            if (matched < keyLength) {
+                final Node extension = newNode(key, matched, keyLength);
+                node.add(extension);
+                if (++top == path.length)
+                    path = Arrays.copyOf(path, top * 2);
+                path[top] = node = extension;
+            } else if (node.value != null) {
+                node.value = value; // replaces the value of a present key
+                continue;
+            }
+
+            node.ref = key;
+            node.value = value;
+            for (int i = 0; i <= top; ++i)
+                path[i].count++;
+
+            size++;
+            modCount++;
+        }
+    }
+
+    @Override
+    public void clear() {
+        root = newNode("", 0, 0);
+        size = 0;
+        weight = 0;
+        modCount++;
+    }
+
+    /**
+     * Returns a live view of the keys of this tree, in lexicographic order.
+     * The view is backed by the tree and its iterator walks the tree on demand.
+     *
+     * @return a view of all keys
+     */
+    @Override
+    public Set<String> keySet() {
+        return navigableKeySet();
+    }
+
+    /**
+     * Returns a live view of the values of this tree, in the lexicographic
+     * order of their keys.
+     *
+     * @return a view of all values
+     */
+    @Override
+    public Collection<V> values() {
+        return values("");
+    }
+
+    /**
+     * Returns a live view of the entries of this tree, in lexicographic order
+     * of their keys. Iterating does not copy any entry; the entries returned
+     * are the tree's own, and setValue(..) writes through.
+     *
+     * @return a view of all entries
+     */
+    @Override
+    public Set<Entry<String, V>> entrySet() {
+        return entrySet("");
+    }
+
+    /**
+     * Keys are ordered lexicographically by char, i.e. by String.compareTo(..),
+     * which is the order of a pre-order walk of the tree.
+     *
+     * @return null, as keys are in natural order
+     */
+    @Override
+    public Comparator<? super String> comparator() {
+        return null;
+    }
+
+    @Override
+    public String firstKey() {
+        return key(firstNode());
+    }
+
+    @Override
+    public String lastKey() {
+        return key(lastNode());
+    }
+
+    @Override
+    public Entry<String, V> firstEntry() {
+        return snapshot(firstNode());
+    }
+
+    @Override
+    public Entry<String, V> lastEntry() {
+        return snapshot(lastNode());
+    }
+
+    @Override
+    public Entry<String, V> pollFirstEntry() {
+        return poll(firstNode());
+    }
+
+    @Override
+    public Entry<String, V> pollLastEntry() {
+        return poll(lastNode());
+    }
+
+    /**
+     * O(|key|) search for the greatest key strictly less than the given key.
+     */
+    @Override
+    public Entry<String, V> lowerEntry(String key) {
+        return snapshot(floorNode(key, false));
+    }
+
+    @Override
+    public String lowerKey(String key) {
+        return keyOrNull(floorNode(key, false));
+    }
+
+    /**
+     * O(|key|) search for the greatest key less than or equal to the given key.
+     */
+    @Override
+    public Entry<String, V> floorEntry(String key) {
+        return snapshot(floorNode(key, true));
+    }
+
+    @Override
+    public String floorKey(String key) {
+        return keyOrNull(floorNode(key, true));
+    }
+
+    /**
+     * O(|key|) search for the least key greater than or equal to the given key.
+     */
+    @Override
+    public Entry<String, V> ceilingEntry(String key) {
+        return snapshot(ceilingNode(key, true));
+    }
+
+    @Override
+    public String ceilingKey(String key) {
+        return keyOrNull(ceilingNode(key, true));
+    }
+
+    /**
+     * O(|key|) search for the least key strictly greater than the given key.
+     */
+    @Override
+    public Entry<String, V> higherEntry(String key) {
+        return snapshot(ceilingNode(key, false));
+    }
+
+    @Override
+    public String higherKey(String key) {
+        return keyOrNull(ceilingNode(key, false));
+    }
+
+    @Override
+    public NavigableMap<String, V> descendingMap() {
+        return new SubMap(null, false, null, false, true);
+    }
+
+    @Override
+    public NavigableSet<String> navigableKeySet() {
+        return new NavigableKeySet(this);
+    }
+
+    @Override
+    public NavigableSet<String> descendingKeySet() {
+        return new NavigableKeySet(descendingMap());
+    }
+
+    /**
+     * Returns a live view of the keys in the given range. The range is not
+     * copied, its iterators start and stop at the bounds in O(|key|) each.
+     */
+    @Override
+    public NavigableMap<String, V> subMap(String fromKey, boolean fromInclusive, String toKey, boolean toInclusive) {
+        if (fromKey == null || toKey == null)
+            throw new NullPointerException();
+
+        return new SubMap(fromKey, fromInclusive, toKey, toInclusive, false);
+    }
+
+    @Override
+    public NavigableMap<String, V> headMap(String toKey, boolean inclusive) {
+        if (toKey == null)
+            throw new NullPointerException();
+
+        return new SubMap(null, false, toKey, inclusive, false);
+    }
+
+    @Override
+    public NavigableMap<String, V> tailMap(String fromKey, boolean inclusive) {
+        if (fromKey == null)
+            throw new NullPointerException();
+
+        return new SubMap(fromKey, inclusive, null, false, false);
+    }
+
+    @Override
+    public SortedMap<String, V> subMap(String fromKey, String toKey) {
+        return subMap(fromKey, true, toKey, false);
+    }
+
+    @Override
+    public SortedMap<String, V> headMap(String toKey) {
+        return headMap(toKey, false);
+    }
+
+    @Override
+    public SortedMap<String, V> tailMap(String fromKey) {
+        return tailMap(fromKey, true);
+    }
+
+    private Node firstNode() {
+        return new EntryIterator(null, false, null, false).peek();
+    }
+
+    private Node lastNode() {
+        return new EntryIterator(null, false, null, true).peek();
+    }
+
+    private Node ceilingNode(String key, boolean inclusive) {
+        if (key == null)
+            throw new NullPointerException();
+
+        return new EntryIterator(key, inclusive, null, false).peek();
+    }
+
+    private Node floorNode(String key, boolean inclusive) {
+        if (key == null)
+            throw new NullPointerException();
+
+        return new EntryIterator(key, inclusive, null, true).peek();
+    }
+
+    /**
+     * @return an immutable copy of the entry of node, as NavigableMap
+     *         expects from its navigation methods, or null
+     */
+    private Entry<String, V> snapshot(Node node) {
+        return node == null ? null : new AbstractMap.SimpleImmutableEntry<>(node.getKey(), node.value);
+    }
+
+    private Entry<String, V> poll(Node node) {
+        if (node == null)
+            return null;
+
+        final String key = node.getKey();
+        return new AbstractMap.SimpleImmutableEntry<>(key, remove(key));
+    }
+
+    private static String keyOrNull(Entry<String, ?> entry) {
+        return entry == null ? null : entry.getKey();
+    }
+
+    private static String key(Entry<String, ?> entry) {
+        if (entry == null)
+            throw new NoSuchElementException();
+
+        return entry.getKey();
+    }
+
+    /**
+     * Returns a live view of the keys starting with the specified prefix.
+     *
+     * @param prefix the prefix of the keys in the view
+     * @return a view of the matching keys
+     */
+    public Set<String> keySet(String prefix) {
+        assert prefix != null;
+
+        return new KeySetView(prefix);
+    }
+
+    /**
+     * Returns a live view of the values whose keys start with the specified prefix.
+     *
+     * @param prefix the prefix of the keys in the view
+     * @return a view of the matching values
+     */
+    public Collection<V> values(String prefix) {
+        assert prefix != null;
+
+        return new ValuesView(prefix);
+    }
+
+    /**
+     * Returns a live view of the entries whose keys start with the specified prefix.
+     *
+     * @param prefix the prefix of the keys in the view
+     * @return a view of the matching entries
+     */
+    public Set<Entry<String, V>> entrySet(String prefix) {
+        assert prefix != null;
+
+        return new EntrySetView(prefix);
+    }
+
+    /**
+     * Returns a sequential stream of the entries of this tree, in
+     * lexicographic order of their keys, see stream(prefix).
+     *
+     * @return a stream of all entries
+     */
+    public Stream<Entry<String, V>> stream() {
+        return stream("");
+    }
+
+    /**
+     * Returns a sequential stream of the entries whose keys start with prefix,
+     * in lexicographic order of their keys. Nothing is copied: the stream
+     * walks the tree, and in parallel it is split along child subtrees,
+     * whose exact sizes are known from the subtree counts.
+     *
+     * @param prefix the prefix of the keys to stream
+     * @return a stream of the matching entries
+     */
+    public Stream<Entry<String, V>> stream(String prefix) {
+        assert prefix != null;
+
+        return StreamSupport.stream(new EntrySpliterator(prefix), false);
+    }
+
+    /**
+     * Returns the node holding all keys starting with prefix, which is the
+     * root of the subtree to iterate.
+     *
+     * @param prefix the prefix of the keys in the subtree
+     * @return the subtree root, or null when no key starts with prefix
+     */
+    private Node findPrefixNode(String prefix) {
+        return findPrefixNode(prefix, 0, prefix.length());
+    }
+
+    /**
+     * Allocation-free walk to the node holding all keys starting with
+     * key[from, to).
+     *
+     * @return the subtree root, or null when no key starts with key[from, to)
+     */
+    private Node findPrefixNode(CharSequence key, int from, int to) {
+        final int keyLength = to - from;
+        Node node = root;
+
+        while (node.end < keyLength) {
+            final Node child = node.findChildNodeStartsWith(key.charAt(from + node.end));
+
+            if (child == null)
+                return null;
+
+            final int end = Math.min(child.end, keyLength);
+            for (int i = child.start + 1; i < end; ++i) {
+                if (child.ref.charAt(i) != key.charAt(from + i))
+                    return null;
+            }
+
+            node = child;
+        }
+
+        return node;
+    }
+
+    /**
+     * Allocation-free walk to the node whose key is exactly key[from, to).
+     *
+     * @return the node, which may have no value, or null
+     */
+    private Node findNode(CharSequence key, int from, int to) {
+        final int keyLength = to - from;
+        Node node = root;
+        int visited = 1;
+
+        while (node != null && node.end < keyLength) {
+            final Node child = node.findChildNodeStartsWith(key.charAt(from + node.end));
+
+            node = child != null && child.labelMatches(key, from, keyLength) ? child : null;
+            visited++;
+        }
+
+        if (metrics != null)
+            metrics.descended(visited);
+
+        return node != null && node.end == keyLength ? node : null;
+    }
+
+    private static void checkRange(CharSequence key, int from, int to) {
+        if (from < 0 || to > key.length() || from > to)
+            throw new IndexOutOfBoundsException("from: " + from + ", to: " + to + ", length: " + key.length());
+    }
+
+    /**
+     * O(|prefix|) count of the keys starting with prefix.
+     *
+     * @param prefix the prefix of the keys to count
+     * @return the number of keys starting with prefix
+     */
+    public int countPrefix(String prefix) {
+        final Node node = findPrefixNode(prefix);
+
+        return node != null ? node.count : 0;
+    }
+
+    /**
+     * O(|key| * fanout) lexicographic position of key: the number of keys
+     * lower than key, whether key is in the tree or not.
+     *
+     * @param key the key to rank
+     * @return the index of key in keySet(), or the one it would have if present
+     */
+    public int rank(String key) {
+        return countBelow(key, false);
+    }
+
+    /**
+     * O(|key| * fanout) lookup of the entry at the specified index, in
+     * lexicographic order of the keys.
+     *
+     * @param index the index of the entry in entrySet()
+     * @return the live entry at index
+     * @throws IndexOutOfBoundsException if index is negative or not below size()
+     */
+    public Entry<String, V> select(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+
+        return selectNode(index);
+    }
+
+    private Node selectNode(int index) {
+        Node node = root;
+
+        descent:
+        while (true) {
+            if (node.value != null) {
+                if (index == 0)
+                    return node;
+                index--;
+            }
+
+            // node.count > index, so one of the children holds the entry
+            for (final Node child : node.children) {
+                if (child == null)
+                    continue;
+
+                if (index < child.count) {
+                    node = child;
+                    continue descent;
+                }
+
+                index -= child.count;
+            }
+
+            throw new IllegalStateException("Inconsistent subtree counts");
+        }
+    }
+
+    /**
+     * @return the number of keys lower than key, or not greater than key if inclusive
+     */
+    private int countBelow(String key, boolean inclusive) {
+        final int keyLength = key.length();
+        Node node = root;
+        int result = 0;
+
+        while (true) {
+            if (node.end == keyLength) // every key below is greater
+                return inclusive && node.value != null ? result + 1 : result;
+
+            if (node.value != null) // a proper prefix of key is lower
+                result++;
+
+            if (node.isLeafNode())
+                return result;
+
+            final char c = key.charAt(node.end);
+            Node next = null;
+
+            for (final Node child : node.children) {
+                if (child == null)
+                    continue;
+
+                final char label = child.ref.charAt(child.start);
+                if (label >= c) {
+                    if (label == c)
+                        next = child;
+                    break;
+                }
+
+                result += child.count;
+            }
+
+            if (next == null)
+                return result;
+
+            final int end = Math.min(next.end, keyLength);
+            for (int i = next.start + 1; i < end; ++i) {
+                final char k = next.ref.charAt(i);
+
+                if (k != key.charAt(i)) // the whole subtree is either lower or greater
+                    return k < key.charAt(i) ? result + next.count : result;
+            }
+
+            if (next.end > keyLength) // key is a proper prefix of every key below
+                return result;
+
+            node = next;
+        }
+    }
+
+    /**
+     * Adds delta to the key count of every node whose key is a prefix of
+     * key[from, to), from the root down.
+     */
+    private void adjustCounts(CharSequence key, int from, int to, int delta) {
+        final int keyLength = to - from;
+        Node node = root;
+        node.count += delta;
+
+        while (node.end < keyLength) {
+            node = node.findChildNodeStartsWith(key.charAt(from + node.end));
+
+            if (node == null || !node.labelMatches(key, from, keyLength))
+                return;
+
+            node.count += delta;
+        }
+    }
+
+    /**
+     * Stamps every node whose key is a prefix of key[from, to), from the
+     * root down, with stamp.
+     */
+    private void touch(CharSequence key, int from, int to, int stamp) {
+        final int keyLength = to - from;
+        Node node = root;
+        cache(node).stamp = stamp;
+
+        while (node.end < keyLength) {
+            node = node.findChildNodeStartsWith(key.charAt(from + node.end));
+
+            if (node == null || !node.labelMatches(key, from, keyLength))
+                return;
+
+            cache(node).stamp = stamp;
+        }
+    }
+
+    private class EntrySetView extends AbstractSet<Entry<String, V>> {
+        private final String prefix;
+
+        private EntrySetView(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Iterator<Entry<String, V>> iterator() {
+            return new EntryIterator(prefix);
+        }
+
+        @Override
+        public Spliterator<Entry<String, V>> spliterator() {
+            return new EntrySpliterator(prefix);
+        }
+
+        @Override
+        public int size() {
+            return countPrefix(prefix);
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return !new EntryIterator(prefix).hasNext();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Entry))
+                return false;
+
+            final Entry<?, ?> entry = (Entry<?, ?>) o;
+            final Object key = entry.getKey();
+            final Object value = entry.getValue();
+
+            return key instanceof String && ((String) key).startsWith(prefix) &&
+                    value != null && value.equals(get(key));
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!contains(o))
+                return false;
+
+            RadixTree.this.remove(((Entry<?, ?>) o).getKey());
+            return true;
+        }
+
+        @Override
+        public void clear() {
+            removePrefix(prefix);
+        }
+    }
+
+    private class KeySetView extends AbstractSet<String> {
+        private final String prefix;
+
+        private KeySetView(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return new KeyIterator(prefix);
+        }
+
+        @Override
+        public int size() {
+            return countPrefix(prefix);
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return !new EntryIterator(prefix).hasNext();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof String && ((String) o).startsWith(prefix) && containsKey(o);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            return contains(o) && RadixTree.this.remove(o) != null;
+        }
+
+        @Override
+        public void clear() {
+            removePrefix(prefix);
+        }
+    }
+
+    private class ValuesView extends AbstractCollection<V> {
+        private final String prefix;
+
+        private ValuesView(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Iterator<V> iterator() {
+            return new ValueIterator(prefix);
+        }
+
+        @Override
+        public int size() {
+            return countPrefix(prefix);
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return !new EntryIterator(prefix).hasNext();
+        }
+
+        @Override
+        public void clear() {
+            removePrefix(prefix);
+        }
+    }
+
+    /**
+     * A live view of the keys of the tree within a range, in ascending or
+     * descending order. A null bound leaves that side of the range open.
+     */
+    private class SubMap extends AbstractMap<String, V> implements NavigableMap<String, V> {
+        private final String lo;
+        private final boolean loInclusive;
+        private final String hi;
+        private final boolean hiInclusive;
+        private final boolean descending;
+
+        private SubMap(String lo, boolean loInclusive, String hi, boolean hiInclusive, boolean descending) {
+            if (lo != null && hi != null && lo.compareTo(hi) > 0)
+                throw new IllegalArgumentException("fromKey > toKey");
+
+            this.lo = lo;
+            this.loInclusive = loInclusive;
+            this.hi = hi;
+            this.hiInclusive = hiInclusive;
+            this.descending = descending;
+        }
+
+        private boolean tooLow(String key) {
+            if (lo == null)
+                return false;
+
+            final int c = key.compareTo(lo);
+            return c < 0 || (c == 0 && !loInclusive);
+        }
+
+        private boolean tooHigh(String key) {
+            if (hi == null)
+                return false;
+
+            final int c = key.compareTo(hi);
+            return c > 0 || (c == 0 && !hiInclusive);
+        }
+
+        private boolean tooLow(Node node) {
+            if (lo == null)
+                return false;
+
+            final int c = node.compareKeyTo(lo);
+            return c < 0 || (c == 0 && !loInclusive);
+        }
+
+        private boolean tooHigh(Node node) {
+            if (hi == null)
+                return false;
+
+            final int c = node.compareKeyTo(hi);
+            return c > 0 || (c == 0 && !hiInclusive);
+        }
+
+        private boolean inRange(Object key) {
+            return key instanceof String && !tooLow((String) key) && !tooHigh((String) key);
+        }
+
+        /**
+         * Checks that a bound of a nested range lies within this range.
+         */
+        private boolean inRange(String key, boolean inclusive) {
+            if (inclusive)
+                return inRange(key);
+
+            return (lo == null || key.compareTo(lo) >= 0) && (hi == null || key.compareTo(hi) <= 0);
+        }
+
+        private Node lowest() {
+            final Node node = lo == null ? firstNode() : ceilingNode(lo, loInclusive);
+            return node == null || tooHigh(node) ? null : node;
+        }
+
+        private Node highest() {
+            final Node node = hi == null ? lastNode() : floorNode(hi, hiInclusive);
+            return node == null || tooLow(node) ? null : node;
+        }
+
+        private Node ceiling(String key, boolean inclusive) {
+            if (tooLow(key))
+                return lowest();
+
+            final Node node = ceilingNode(key, inclusive);
+            return node == null || tooHigh(node) ? null : node;
+        }
+
+        private Node floor(String key, boolean inclusive) {
+            if (tooHigh(key))
+                return highest();
+
+            final Node node = floorNode(key, inclusive);
+            return node == null || tooLow(node) ? null : node;
+        }
+
+        private EntryIterator entryIterator() {
+            if (descending) {
+                Node fence = lo == null ? null : floorNode(lo, !loInclusive);
+                if (fence != null && tooHigh(fence)) // empty range, e.g. (k, k)
+                    fence = floorNode(hi, hiInclusive);
+                return new EntryIterator(hi, hiInclusive, fence, true);
+            }
+
+            Node fence = hi == null ? null : ceilingNode(hi, !hiInclusive);
+            if (fence != null && tooLow(fence)) // empty range, e.g. (k, k)
+                fence = ceilingNode(lo, loInclusive);
+            return new EntryIterator(lo, loInclusive, fence, false);
+        }
+
+        @Override
+        public Set<Entry<String, V>> entrySet() {
+            return new AbstractSet<Entry<String, V>>() {
+                @Override
+                public Iterator<Entry<String, V>> iterator() {
+                    return entryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return SubMap.this.size();
+                }
+
+                @Override
+                public boolean isEmpty() {
+                    return SubMap.this.isEmpty();
+                }
+
+                @Override
+                public boolean contains(Object o) {
+                    if (!(o instanceof Entry))
+                        return false;
+
+                    final Entry<?, ?> entry = (Entry<?, ?>) o;
+                    final Object value = entry.getValue();
+
+                    return value != null && value.equals(get(entry.getKey()));
+                }
+
+                @Override
+                public boolean remove(Object o) {
+                    if (!contains(o))
+                        return false;
+
+                    SubMap.this.remove(((Entry<?, ?>) o).getKey());
+                    return true;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            final int below = lo == null ? 0 : countBelow(lo, !loInclusive);
+            final int upTo = hi == null ? size : countBelow(hi, hiInclusive);
+
+            return Math.max(0, upTo - below);
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return lowest() == null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return inRange(key) && RadixTree.this.containsKey(key);
+        }
+
+        @Override
+        public V get(Object key) {
+            return inRange(key) ? RadixTree.this.get(key) : null;
+        }
+
+        @Override
+        public V put(String key, V value) {
+            if (!inRange(key))
+                throw new IllegalArgumentException("key out of range");
+
+            return RadixTree.this.put(key, value);
+        }
+
+        @Override
+        public V remove(Object key) {
+            return inRange(key) ? RadixTree.this.remove(key) : null;
+        }
+
+        @Override
+        public Comparator<? super String> comparator() {
+            return descending ? Collections.reverseOrder() : null;
+        }
+
+        @Override
+        public String firstKey() {
+            return key(firstEntry());
+        }
+
+        @Override
+        public String lastKey() {
+            return key(lastEntry());
+        }
+
+        @Override
+        public Entry<String, V> firstEntry() {
+            return snapshot(descending ? highest() : lowest());
+        }
+
+        @Override
+        public Entry<String, V> lastEntry() {
+            return snapshot(descending ? lowest() : highest());
+        }
+
+        @Override
+        public Entry<String, V> pollFirstEntry() {
+            return poll(descending ? highest() : lowest());
+        }
+
+        @Override
+        public Entry<String, V> pollLastEntry() {
+            return poll(descending ? lowest() : highest());
+        }
+
+        @Override
+        public Entry<String, V> lowerEntry(String key) {
+            return snapshot(descending ? ceiling(key, false) : floor(key, false));
+        }
+
+        @Override
+        public String lowerKey(String key) {
+            return keyOrNull(lowerEntry(key));
+        }
+
+        @Override
+        public Entry<String, V> floorEntry(String key) {
+            return snapshot(descending ? ceiling(key, true) : floor(key, true));
+        }
+
+        @Override
+        public String floorKey(String key) {
+            return keyOrNull(floorEntry(key));
+        }
+
+        @Override
+        public Entry<String, V> ceilingEntry(String key) {
+            return snapshot(descending ? floor(key, true) : ceiling(key, true));
+        }
+
+        @Override
+        public String ceilingKey(String key) {
+            return keyOrNull(ceilingEntry(key));
+        }
+
+        @Override
+        public Entry<String, V> higherEntry(String key) {
+            return snapshot(descending ? floor(key, false) : ceiling(key, false));
+        }
+
+        @Override
+        public String higherKey(String key) {
+            return keyOrNull(higherEntry(key));
+        }
+
+        @Override
+        public NavigableMap<String, V> descendingMap() {
+            return new SubMap(lo, loInclusive, hi, hiInclusive, !descending);
+        }
+
+        @Override
+        public NavigableSet<String> navigableKeySet() {
+            return new NavigableKeySet(this);
+        }
+
+        @Override
+        public Set<String> keySet() {
+            return navigableKeySet();
+        }
+
+        @Override
+        public NavigableSet<String> descendingKeySet() {
+            return new NavigableKeySet(descendingMap());
+        }
+
+        @Override
+        public NavigableMap<String, V> subMap(String fromKey, boolean fromInclusive, String toKey, boolean toInclusive) {
+            if (!inRange(fromKey, fromInclusive))
+                throw new IllegalArgumentException("fromKey out of range");
+            if (!inRange(toKey, toInclusive))
+                throw new IllegalArgumentException("toKey out of range");
+
+            if (descending)
+                return new SubMap(toKey, toInclusive, fromKey, fromInclusive, true);
+
+            return new SubMap(fromKey, fromInclusive, toKey, toInclusive, false);
+        }
+
+        @Override
+        public NavigableMap<String, V> headMap(String toKey, boolean inclusive) {
+            if (!inRange(toKey, inclusive))
+                throw new IllegalArgumentException("toKey out of range");
+
+            if (descending)
+                return new SubMap(toKey, inclusive, hi, hiInclusive, true);
+
+            return new SubMap(lo, loInclusive, toKey, inclusive, false);
+        }
+
+        @Override
+        public NavigableMap<String, V> tailMap(String fromKey, boolean inclusive) {
+            if (!inRange(fromKey, inclusive))
+                throw new IllegalArgumentException("fromKey out of range");
+
+            if (descending)
+                return new SubMap(lo, loInclusive, fromKey, inclusive, true);
+
+            return new SubMap(fromKey, inclusive, hi, hiInclusive, false);
+        }
+
+        @Override
+        public SortedMap<String, V> subMap(String fromKey, String toKey) {
+            return subMap(fromKey, true, toKey, false);
+        }
+
+        @Override
+        public SortedMap<String, V> headMap(String toKey) {
+            return headMap(toKey, false);
+        }
+
+        @Override
+        public SortedMap<String, V> tailMap(String fromKey) {
+            return tailMap(fromKey, true);
+        }
+    }
+
+    /**
+     * The keys of a tree or of one of its ranges, as a live NavigableSet.
+     */
+    private class NavigableKeySet extends AbstractSet<String> implements NavigableSet<String> {
+        private final NavigableMap<String, V> map;
+
+        private NavigableKeySet(NavigableMap<String, V> map) {
+            this.map = map;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            final Iterator<Entry<String, V>> entries = map.entrySet().iterator();
+
+            return new Iterator<String>() {
+                @Override
+                public boolean hasNext() {
+                    return entries.hasNext();
+                }
+
+                @Override
+                public String next() {
+                    return entries.next().getKey();
+                }
+
+                @Override
+                public void remove() {
+                    entries.remove();
+                }
+            };
+        }
+
+        @Override
+        public Iterator<String> descendingIterator() {
+            return descendingSet().iterator();
+        }
+
+        @Override
+        public int size() {
+            return map.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return map.isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return map.containsKey(o);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            return map.remove(o) != null;
+        }
+
+        @Override
+        public void clear() {
+            map.clear();
+        }
+
+        @Override
+        public Comparator<? super String> comparator() {
+            return map.comparator();
+        }
+
+        @Override
+        public String first() {
+            return map.firstKey();
+        }
+
+        @Override
+        public String last() {
+            return map.lastKey();
+        }
+
+        @Override
+        public String lower(String key) {
+            return map.lowerKey(key);
+        }
+
+        @Override
+        public String floor(String key) {
+            return map.floorKey(key);
+        }
+
+        @Override
+        public String ceiling(String key) {
+            return map.ceilingKey(key);
+        }
+
+        @Override
+        public String higher(String key) {
+            return map.higherKey(key);
+        }
+
+        @Override
+        public String pollFirst() {
+            return keyOrNull(map.pollFirstEntry());
+        }
+
+        @Override
+        public String pollLast() {
+            return keyOrNull(map.pollLastEntry());
+        }
+
+        @Override
+        public NavigableSet<String> descendingSet() {
+            return new NavigableKeySet(map.descendingMap());
+        }
+
+        @Override
+        public NavigableSet<String> subSet(String fromElement, boolean fromInclusive, String toElement, boolean toInclusive) {
+            return new NavigableKeySet(map.subMap(fromElement, fromInclusive, toElement, toInclusive));
+        }
+
+        @Override
+        public NavigableSet<String> headSet(String toElement, boolean inclusive) {
+            return new NavigableKeySet(map.headMap(toElement, inclusive));
+        }
+
+        @Override
+        public NavigableSet<String> tailSet(String fromElement, boolean inclusive) {
+            return new NavigableKeySet(map.tailMap(fromElement, inclusive));
+        }
+
+        @Override
+        public SortedSet<String> subSet(String fromElement, String toElement) {
+            return subSet(fromElement, true, toElement, false);
+        }
+
+        @Override
+        public SortedSet<String> headSet(String toElement) {
+            return headSet(toElement, false);
+        }
+
+        @Override
+        public SortedSet<String> tailSet(String fromElement) {
+            return tailSet(fromElement, true);
+        }
+    }
+
+    /**
+     * Depth-first walk over the value nodes of the subtree holding all keys
+     * that start with prefix. Since children are kept sorted, an ascending walk
+     * (pre-order) returns nodes in lexicographic order of their keys, and a
+     * descending walk (reverse post-order) in the reverse order.
+     *
+     * A walk may start at a bound, found by descending along the bound only,
+     * and stops at a fence, the first node past the opposite bound.
+     *
+     * The walk keeps the current path on an explicit stack and allocates
+     * nothing per node visited. Like the iterators of java.util, it fails fast
+     * on a concurrent structural modification of the tree.
+     */
+    private abstract class NodeIterator<T> implements Iterator<T> {
+        private final String prefix;
+        private final boolean descending;
+        private final Node fence; // the walk ends at this node, null to walk the whole subtree
+
+        private Node[] path = newNodeArray(8); // path[0] is the subtree root
+        private int[] slots = new int[8];      // next child slot to visit for each node on the path
+        private int depth = -1;                // index of the last node on the path
+        private Node pending;                  // next node to enter, not on the path yet
+
+        private Node next;
+        private Node lastReturned;
+        private int expectedModCount = modCount;
+
+        private NodeIterator(String prefix) {
+            this(prefix, null, false, null, false);
+        }
+
+        /**
+         * @param prefix the prefix of the keys to walk
+         * @param from the key to start at, or null to start at the first key of the walk
+         * @param fromInclusive true to start at from itself, when present
+         * @param fence the node to stop at, or null
+         * @param descending true to walk keys in descending order
+         */
+        private NodeIterator(String prefix, String from, boolean fromInclusive, Node fence, boolean descending) {
+            this.prefix = prefix;
+            this.descending = descending;
+            this.fence = fence;
+
+            if (from == null)
+                pending = findPrefixNode(prefix);
+            else if (descending)
+                seekDescending(from, fromInclusive);
+            else
+                seek(from, fromInclusive);
+
+            next = advance();
+        }
+
+        /**
+         * Moves to the next value node of the walk.
+         *
+         * @return the next value node, or null when the walk is done
+         */
+        private Node advance() {
+            final Node node = descending ? advanceDescending() : advanceAscending();
+
+            return node == fence ? null : node;
+        }
+
+        private Node advanceAscending() {
+            while (true) {
+                if (pending != null) {
+                    final Node node = pending;
+                    pending = null;
+                    push(node);
+                    if (node.value != null)
+                        return node;
+                }
+
+                if (depth < 0)
+                    return null;
+
+                final Node[] children = path[depth].children;
+                int slot = slots[depth];
+
+                if (children != null) {
+                    while (slot < children.length && children[slot] == null)
+                        slot++;
+                }
+
+                if (children == null || slot >= children.length) {
+                    path[depth--] = null;
+                    continue;
+                }
+
+                slots[depth] = slot + 1;
+                pending = children[slot];
+            }
+        }
+
+        private Node advanceDescending() {
+            while (true) {
+                if (pending != null) {
+                    push(pending);
+                    pending = null;
+                }
+
+                if (depth < 0)
+                    return null;
+
+                final Node node = path[depth];
+                final Node[] children = node.children;
+                int slot = slots[depth];
+
+                if (children != null) {
+                    while (slot >= 0 && children[slot] == null)
+                        slot--;
+                }
+
+                if (children == null || slot < 0) {
+                    // children are done, a node comes before all its descendants
+                    path[depth--] = null;
+                    if (node.value != null)
+                        return node;
+                    continue;
+                }
+
+                slots[depth] = slot - 1;
+                pending = children[slot];
+            }
+        }
+
+        private void push(Node node) {
+            if (++depth == path.length) {
+                path = Arrays.copyOf(path, depth * 2);
+                slots = Arrays.copyOf(slots, depth * 2);
+            }
+
+            path[depth] = node;
+            slots[depth] = !descending ? 0 : node.isLeafNode() ? -1 : node.children.length - 1;
+        }
+
+        private void reset() {
+            while (depth >= 0)
+                path[depth--] = null;
+
+            pending = null;
+        }
+
+        /**
+         * Positions an ascending walk at the smallest key greater than (or
+         * equal to) the specified key.
+         *
+         * @param key the key to seek
+         * @param inclusive true if the walk should start with key itself
+         */
+        private void seek(String key, boolean inclusive) {
+            reset();
+
+            final int keyLength = key.length();
+            Node node = findPrefixNode(prefix);
+            int offset = 0; // key[0, offset) matches the key of the parent of node
+
+            while (node != null) {
+                final int labelEnd = Math.min(node.end, keyLength);
+
+                for (int i = offset; i < labelEnd; ++i) {
+                    final int diff = node.ref.charAt(i) - key.charAt(i);
+
+                    if (diff > 0)
+                        pending = node; // every key of the subtree comes after key
+                    if (diff != 0)
+                        return;
+                }
+
+                if (keyLength < node.end) {
+                    pending = node; // key is a proper prefix of every key of the subtree
+                    return;
+                }
+
+                if (keyLength == node.end) {
+                    if (inclusive)
+                        pending = node;
+                    else
+                        push(node); // resume with the children of node
+                    return;
+                }
+
+                push(node);
+
+                final char c = key.charAt(node.end);
+                final Node child = node.findChildNodeStartsWith(c);
+
+                slots[depth] = node.slotOf(c) + (child != null ? 1 : 0);
+                offset = node.end;
+                node = child;
+            }
+        }
+
+        /**
+         * Positions a descending walk at the greatest key less than (or
+         * equal to) the specified key.
+         *
+         * @param key the key to seek
+         * @param inclusive true if the walk should start with key itself
+         */
+        private void seekDescending(String key, boolean inclusive) {
+            reset();
+
+            final int keyLength = key.length();
+            Node node = findPrefixNode(prefix);
+            int offset = 0; // key[0, offset) matches the key of the parent of node
+
+            while (node != null) {
+                final int labelEnd = Math.min(node.end, keyLength);
+
+                for (int i = offset; i < labelEnd; ++i) {
+                    final int diff = node.ref.charAt(i) - key.charAt(i);
+
+                    if (diff < 0)
+                        pending = node; // every key of the subtree comes before key
+                    if (diff != 0)
+                        return;
+                }
+
+                if (keyLength < node.end)
+                    return; // every key of the subtree comes after key
+
+                if (keyLength == node.end) {
+                    if (inclusive) {
+                        push(node);
+                        slots[depth] = -1; // skip the children, all of them come after key
+                    }
+                    return;
+                }
+
+                push(node);
+
+                final char c = key.charAt(node.end);
+                final Node child = node.findChildNodeStartsWith(c);
+
+                slots[depth] = node.slotOf(c) - 1;
+                offset = node.end;
+                node = child;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        Node peek() {
+            return next;
+        }
+
+        Node nextNode() {
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            if (next == null)
+                throw new NoSuchElementException();
+
+            lastReturned = next;
+            next = advance();
+            return lastReturned;
+        }
+
+        @Override
+        public void remove() {
+            if (lastReturned == null)
+                throw new IllegalStateException();
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+
+            final String key = lastReturned.getKey();
+            RadixTree.this.remove(key);
+            lastReturned = null;
+            expectedModCount = modCount;
+
+            // removal may split or merge nodes along the path, so find our way back
+            if (descending)
+                seekDescending(key, false);
+            else
+                seek(key, false);
+            next = advance();
+        }
+    }
+
+    private class EntryIterator extends NodeIterator<Entry<String, V>> {
+        private EntryIterator(String prefix) {
+            super(prefix);
+        }
+
+        private EntryIterator(String from, boolean fromInclusive, Node fence, boolean descending) {
+            super("", from, fromInclusive, fence, descending);
+        }
+
+        @Override
+        public Entry<String, V> next() {
+            return nextNode();
+        }
+    }
+
+    /**
+     * A spliterator over the value nodes of the subtree of a prefix, bound to
+     * the tree on first use. Its remaining entries are the value of head, if
+     * any, then those of the walk in progress on the stack, then those of the
+     * subtrees in roots[index, fence), in order.
+     *
+     * Splitting hands out a prefix of the subtrees, opening a lone subtree
+     * into its children first, so a split never copies nor walks entries.
+     * Like the iterators, it fails fast on a concurrent structural
+     * modification of the tree.
+     */
+    private class EntrySpliterator implements Spliterator<Entry<String, V>> {
+        private final String prefix;
+
+        private Node head;      // the node whose own entry comes first, or null
+        private Node[] roots;   // null until bound, may hold null slots as children do
+        private int index;
+        private int fence;
+        private final ArrayDeque<Node> stack = new ArrayDeque<>();
+
+        private long remaining; // exact number of entries left
+        private int expectedModCount;
+
+        private EntrySpliterator(String prefix) {
+            this.prefix = prefix;
+        }
+
+        private EntrySpliterator(Node head, Node[] roots, int index, int fence, long remaining) {
+            this.prefix = null;
+            this.head = head;
+            this.roots = roots;
+            this.index = index;
+            this.fence = fence;
+            this.remaining = remaining;
+            this.expectedModCount = modCount;
+        }
+
+        private void bind() {
+            if (roots != null)
+                return;
+
+            final Node node = findPrefixNode(prefix);
+            roots = newNodeArray(node != null ? 1 : 0);
+            fence = roots.length;
+            if (node != null) {
+                roots[0] = node;
+                remaining = node.count;
+            }
+            expectedModCount = modCount;
+        }
+
+        /**
+         * @return the first non-null slot of roots from slot on, or fence
+         */
+        private int nextRoot(int slot) {
+            while (slot < fence && roots[slot] == null)
+                slot++;
+            return slot;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Entry<String, V>> action) {
+            bind();
+
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+
+            if (head != null) {
+                final Node node = head;
+                head = null;
+                remaining--;
+                action.accept(node);
+                return true;
+            }
+
+            while (true) {
+                if (stack.isEmpty()) {
+                    index = nextRoot(index);
+                    if (index >= fence)
+                        return false;
+                    stack.push(roots[index++]);
+                }
+
+                final Node node = stack.pop();
+
+                if (!node.isLeafNode()) {
+                    for (int i = node.children.length - 1; i >= 0; --i) {
+                        if (node.children[i] != null)
+                            stack.push(node.children[i]);
+                    }
+                }
+
+                if (node.value != null) {
+                    remaining--;
+                    action.accept(node);
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super Entry<String, V>> action) {
+            bind();
+
+            if (head != null) {
+                action.accept(head);
+                head = null;
+            }
+
+            final ArrayDeque<Node> stack = this.stack;
+            while (true) {
+                if (stack.isEmpty()) {
+                    index = nextRoot(index);
+                    if (index >= fence)
+                        break;
+                    stack.push(roots[index++]);
+                }
+
+                final Node node = stack.pop();
+                final Node[] children = node.children;
+
+                if (children != null) {
+                    for (int i = children.length - 1; i >= 0; --i) {
+                        if (children[i] != null)
+                            stack.push(children[i]);
+                    }
+                }
+
+                if (node.value != null)
+                    action.accept(node);
+            }
+
+            remaining = 0;
+
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+        }
+
+        @Override
+        public Spliterator<Entry<String, V>> trySplit() {
+            bind();
+
+            if (!stack.isEmpty())
+                return null;
+
+            int first = nextRoot(index);
+            int second = nextRoot(first + 1);
+
+            // open a lone subtree, its value becoming the head
+            while (head == null && first < fence && second >= fence) {
+                final Node node = roots[first];
+                if (node.isLeafNode())
+                    return null;
+
+                head = node.value != null ? node : null;
+                roots = node.children;
+                index = 0;
+                fence = roots.length;
+                first = nextRoot(0);
+                second = nextRoot(first + 1);
+            }
+
+            if (first >= fence)
+                return null;
+
+            if (second >= fence) {
+                // the head then a single subtree: hand out the head alone
+                final EntrySpliterator split = new EntrySpliterator(head, roots, first, first, 1);
+                head = null;
+                remaining--;
+                return split;
+            }
 
-    @Override
-    public V remove(Object o) {
-        if (!(o instanceof String))
-            return null;
+            // a prefix of the subtrees, at least the first one, with the head
+            final int middle = Math.max((first + fence) >>> 1, second);
+            long count = head != null ? 1 : 0;
+            for (int i = first; i < middle; ++i) {
+                if (roots[i] != null)
+                    count += roots[i].count;
+            }
 
-        final String key = (String) o;
-        final Match match = findMatchingPrefixEnd(key, 0);
+            final EntrySpliterator split = new EntrySpliterator(head, roots, first, middle, count);
+            head = null;
+            index = middle;
+            remaining -= count;
+            return split;
+        }
 
-        if (match.matchEnd == key.length() &&
-                match.matchEnd == match.node.end &&
-                match.node.value != null) {
-            final V value = match.node.value;
-            match.node.value = null;
+        @Override
+        public long estimateSize() {
+            bind();
 
-            if (match.node != root && match.node.isLeafNode())
-                match.nodeParent.removeChild(match.node);
-            else if (match.nodeParent != null && match.nodeParent != root)
-                match.nodeParent.tryMerge();
+            return remaining;
+        }
 
-            size--;
-            return value;
+        @Override
+        public int characteristics() {
+            return ORDERED | SORTED | DISTINCT | NONNULL | SIZED | SUBSIZED;
         }
 
-        return null;
+        @Override
+        public Comparator<? super Entry<String, V>> getComparator() {
+            return Entry.comparingByKey();
+        }
     }
 
-    public Set<Entry<String, V>> removePrefix(String prefix) {
-        final Match match = findMatchingPrefixEnd(prefix, 0);
+    private class KeyIterator extends NodeIterator<String> {
+        private KeyIterator(String prefix) {
+            super(prefix);
+        }
 
-        Set<Entry<String, V>> result = null;
+        @Override
+        public String next() {
+            return nextNode().getKey();
+        }
+    }
 
-        if (match.matchEnd == prefix.length()) {
-            if (match.node == root) {
-                result = collectEntries(match.node);
-                clear();
-            } else {
-                if (match.nodeParent.removeChild(match.node)) {
-                    result = collectEntries(match.node);
-                    size -= result.size();
-                }
-            }
+    private class ValueIterator extends NodeIterator<V> {
+        private ValueIterator(String prefix) {
+            super(prefix);
         }
 
-        return result == null ? new HashSet<>() : result;
+        @Override
+        public V next() {
+            return nextNode().value;
+        }
     }
 
-    @Override
-    public void putAll(Map<? extends String, ? extends V> map) {
-        for (Entry<? extends String, ? extends V> entry : map.entrySet()) {
-            put(entry.getKey(), entry.getValue());
+    /**
+     * Walks down the path of input, one value node at a time.
+     */
+    private class PrefixEntryIterator implements Iterator<Entry<String, V>> {
+        private final CharSequence input;
+        private final int expectedModCount = modCount;
+        private Node next;
+
+        private PrefixEntryIterator(CharSequence input) {
+            this.input = input;
+            this.next = root.value != null ? root : advance(root);
         }
-    }
 
-    @Override
-    public void clear() {
-        root = new Node("", 0, 0);
-        size = 0;
-    }
+        private Node advance(Node node) {
+            final int length = input.length();
 
-    @Override
-    public Set<String> keySet() {
-        final HashSet<String> keys = new HashSet<>();
-        for (final Entry<String, V> entry : entrySet())
-            keys.add(entry.getKey());
-        return keys;
-    }
+            do {
+                node = nextPrefixNode(node, input, 0, length);
+            } while (node != null && node.value == null);
 
-    @Override
-    public Collection<V> values() {
-        final ArrayList<V> values = new ArrayList<>();
-        for (final Entry<String, V> entry : entrySet())
-            values.add(entry.getValue());
-        return values;
-    }
+            return node;
+        }
 
-    @Override
-    public Set<Entry<String, V>> entrySet() {
-        return collectEntries(root);
-    }
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
 
-    public Set<String> keySet(String prefix) {
-        final HashSet<String> keys = new HashSet<>();
-        for (final Entry<String, V> entry : entrySet(prefix))
-            keys.add(entry.getKey());
-        return keys;
-    }
+        @Override
+        public Entry<String, V> next() {
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            if (next == null)
+                throw new NoSuchElementException();
 
-    public Collection<V> values(String prefix) {
-        final ArrayList<V> values = new ArrayList<>();
-        for (final Entry<String, V> entry : entrySet(prefix))
-            values.add(entry.getValue());
-        return values;
+            final Node node = next;
+            next = advance(node);
+            return node;
+        }
     }
 
-    public Set<Entry<String, V>> entrySet(String prefix) {
-        assert prefix != null;
+    /**
+     * The entries of a subtree detached by removePrefix(..), in order, as
+     * immutable snapshots: the tree no longer accounts for them.
+     */
+    private class DetachedEntrySet extends AbstractSet<Entry<String, V>> {
+        private final Node subtree;
+        private final int count;
 
-        final Match match = findMatchingPrefixEnd(prefix, 0);
+        private DetachedEntrySet(Node subtree, int count) {
+            this.subtree = subtree;
+            this.count = count;
+        }
 
-        if (match.matchEnd == prefix.length())
-            return collectEntries(match.node);
+        @Override
+        public Iterator<Entry<String, V>> iterator() {
+            final ArrayDeque<Node> stack = new ArrayDeque<>();
+            stack.push(subtree);
 
-        return new HashSet<>();
-    }
+            return new Iterator<Entry<String, V>>() {
+                private Node next = advance();
 
-    private Set<Entry<String, V>> collectEntries(Node start) {
-        assert start != null;
+                private Node advance() {
+                    while (!stack.isEmpty()) {
+                        final Node node = stack.pop();
 
-        final HashSet<Entry<String, V>> result = new HashSet<>();
+                        if (!node.isLeafNode()) {
+                            for (int i = node.children.length - 1; i >= 0; --i) {
+                                if (node.children[i] != null)
+                                    stack.push(node.children[i]);
+                            }
+                        }
 
-        final Queue<Node> queue = new LinkedList<>();
-        queue.offer(start);
+                        if (node.value != null)
+                            return node;
+                    }
 
-        while (!queue.isEmpty()) {
-            final Node node = queue.poll();
+                    return null;
+                }
 
-            if (node.value != null)
-                result.add(node);
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
 
-            if (node.children != null) {
-                for (final Node child : node.children.values())
-                    queue.offer(child);
-            }
+                @Override
+                public Entry<String, V> next() {
+                    if (next == null)
+                        throw new NoSuchElementException();
+
+                    final Node node = next;
+                    next = advance();
+                    return new AbstractMap.SimpleImmutableEntry<>(node.getKey(), node.value);
+                }
+            };
         }
 
-        return result;
+        @Override
+        public int size() {
+            return count;
+        }
     }
 
     /**
@@ -280,9 +4339,11 @@ public class RadixTree<V> implements Map<String, V> {
         assert key != null;
         assert key.length() == 0 || (startOffset >= 0 && startOffset < key.length());
 
+        Node grandParent = null;
         Node parent = null;
         Node node = root;
         int offset = startOffset;
+        int visited = 1;
 
         final int keyLength = key.length();
 
@@ -294,7 +4355,7 @@ public class RadixTree<V> implements Map<String, V> {
                 final int diff = node.ref.charAt(node.start + i) - key.charAt(offset + i);
 
                 if (diff != 0) // partial match
-                    return new Match(node, parent, startOffset, offset + i);
+                    return descended(new Match(node, parent, grandParent, startOffset, offset + i), visited);
             }
 
             // NOTE: offset + minLength <= keyLength
@@ -302,43 +4363,301 @@ public class RadixTree<V> implements Map<String, V> {
 
             // Might have matched up to somewhere within this node
             if (offset == keyLength || offset < node.end)
-                return new Match(node, parent, startOffset, offset);
+                return descended(new Match(node, parent, grandParent, startOffset, offset), visited);
 
             // Need to find if there is a child to continue matching
             final Node child = node.findChildNodeStartsWith(key.charAt(offset));
 
             if (child == null)
-                return new Match(node, parent, startOffset, offset);
+                return descended(new Match(node, parent, grandParent, startOffset, offset), visited);
 
+            grandParent = parent;
             parent = node;
             node = child;
+            visited++;
         }
     }
 
+    private Match descended(Match match, int visited) {
+        if (metrics != null)
+            metrics.descended(visited);
+
+        return match;
+    }
+
+    /**
+     * @return a node of this tree, with the access bookkeeping of a bounded tree if it is one
+     */
+    private Node newNode(String ref, int start, int end) {
+        return eviction != null ? new CacheNode(ref, start, end) : new Node(ref, start, end);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Node[] newNodeArray(int length) {
+        return (Node[]) new RadixTree.Node[length];
+    }
+
     /**
-     * Finds the location all non-empty prefixes that are contained in text.
+     * An Aho-Corasick automaton compiled from the current structure of the tree.
      *
-     * @param text the text to search for prefixes
-     * @return a list of KeyMatches, which is empty when nothing matched.
+     * Every character along every node substring becomes one state; states are
+     * numbered in breadth-first order, so state 0 is the root. Transitions are
+     * stored as one flat array of (sorted) edges per state.
      */
-    private List<Match> findAllNonemptyPrefixMatches(String text) {
-        assert text != null;
+    private class Automaton {
+        private final int modCount = RadixTree.this.modCount; // tree version this was compiled from
 
-        final List<Match> result = new LinkedList<>();
+        private int[] edgeStart; // edges of state s are in [edgeStart[s], edgeStart[s + 1])
+        private char[] edgeChar;
+        private int[] edgeTarget;
 
-        for (int offset = 0; offset < text.length(); ++offset) {
-            final Match match = findMatchingPrefixEnd(text, offset);
+        private int[] fail;      // longest proper suffix of state s that is also a state
+        private int[] output;    // nearest state in the fail chain of s that ends a key, or -1
+        private Node[] terminal; // value node whose key ends exactly at state s, or null
 
-            if (match.node == root)
-                continue;
+        private Automaton() {
+            // breadth-first enumeration of states as (node, depth) pairs
+            Node[] stateNode = newNodeArray(16);
+            int[] stateDepth = new int[16];
+            int stateCount = 1;
+            stateNode[0] = root;
+
+            edgeStart = new int[17];
+            edgeChar = new char[16];
+            edgeTarget = new int[16];
+            int edgeCount = 0;
+
+            for (int s = 0; s < stateCount; ++s) {
+                final Node node = stateNode[s];
+                final int depth = stateDepth[s];
+
+                Node[] targets;
+                if (depth < node.end) {
+                    targets = newNodeArray(1);
+                    targets[0] = node;
+                } else if (node.isLeafNode()) {
+                    targets = newNodeArray(0);
+                } else {
+                    targets = newNodeArray(node.childCount);
+                    int t = 0;
+                    for (final Node child : node.children) {
+                        if (child != null)
+                            targets[t++] = child;
+                    }
+                }
+
+                if (stateCount + targets.length > stateNode.length) {
+                    final int capacity = Math.max(stateNode.length * 2, stateCount + targets.length);
+                    stateNode = Arrays.copyOf(stateNode, capacity);
+                    stateDepth = Arrays.copyOf(stateDepth, capacity);
+                    edgeStart = Arrays.copyOf(edgeStart, capacity + 1);
+                }
+
+                if (edgeCount + targets.length > edgeChar.length) {
+                    final int capacity = Math.max(edgeChar.length * 2, edgeCount + targets.length);
+                    edgeChar = Arrays.copyOf(edgeChar, capacity);
+                    edgeTarget = Arrays.copyOf(edgeTarget, capacity);
+                }
+
+                edgeStart[s] = edgeCount;
+                for (final Node target : targets) {
+                    final int targetDepth = target == node ? depth : target.start;
+                    edgeChar[edgeCount] = target.ref.charAt(targetDepth);
+                    edgeTarget[edgeCount] = stateCount;
+                    edgeCount++;
+
+                    stateNode[stateCount] = target;
+                    stateDepth[stateCount] = targetDepth + 1;
+                    stateCount++;
+                }
+            }
+            edgeStart[stateCount] = edgeCount;
+
+            // failure and output links, in breadth-first order
+            fail = new int[stateCount];
+            output = new int[stateCount];
+            terminal = newNodeArray(stateCount);
+            output[0] = -1;
+
+            for (int s = 0; s < stateCount; ++s) {
+                for (int e = edgeStart[s]; e < edgeStart[s + 1]; ++e) {
+                    final int child = edgeTarget[e];
+                    final char c = edgeChar[e];
+
+                    int f = fail[s];
+                    int next = -1;
+                    if (s != 0) {
+                        while ((next = transition(f, c)) < 0 && f != 0)
+                            f = fail[f];
+                    }
+                    fail[child] = next < 0 ? 0 : next;
+
+                    final Node node = stateNode[child];
+                    if (stateDepth[child] == node.end && node.isValueNode())
+                        terminal[child] = node;
+
+                    final int suffix = fail[child];
+                    output[child] = terminal[suffix] != null ? suffix : output[suffix];
+                }
+            }
+        }
+
+        private int transition(int state, char c) {
+            int lo = edgeStart[state];
+            int hi = edgeStart[state + 1] - 1;
+
+            while (lo <= hi) {
+                final int mid = (lo + hi) >>> 1;
+                final char midChar = edgeChar[mid];
 
-            result.add(match);
+                if (midChar < c)
+                    lo = mid + 1;
+                else if (midChar > c)
+                    hi = mid - 1;
+                else
+                    return edgeTarget[mid];
+            }
+
+            return -1;
         }
 
-        return result;
+        /**
+         * @return the state reached from state on char c
+         */
+        private int step(int state, char c) {
+            int next;
+            while ((next = transition(state, c)) < 0 && state != 0)
+                state = fail[state];
+            return next < 0 ? 0 : next;
+        }
+
+        private void scan(String text, List<Match> result) {
+            final int textLength = text.length();
+            int state = 0;
+
+            for (int i = 0; i < textLength; ++i) {
+                state = step(state, text.charAt(i));
+
+                int s = terminal[state] != null ? state : output[state];
+                while (s >= 0) {
+                    final Node node = terminal[s];
+                    result.add(new Match(node, null, i + 1 - node.end, i + 1));
+                    s = output[s];
+                }
+            }
+        }
+    }
+
+    /**
+     * A snapshot of the shape and estimated footprint of a tree, see stats().
+     */
+    public static final class TreeStats {
+        public final int nodeCount;
+        public final int keyCount;
+        public final int sparseNodeCount;        // nodes keeping their children in sorted arrays
+        public final int denseNodeCount;         // nodes keeping their children in a table indexed by char
+        public final double averageLabelLength;  // chars per edge, the root's excluded
+        public final int maxDepth;               // edges from the root down to the deepest key
+        public final long nodeBytes;             // estimated bytes of the nodes
+        public final long childArrayBytes;       // estimated bytes of the labels and children arrays
+        public final long keyBytes;              // estimated bytes of the distinct key strings referred to
+
+        private final int[] depths;  // number of keys at each depth
+        private final int[] fanouts; // number of nodes with each number of children
+
+        private TreeStats(int nodeCount, int keyCount, int sparseNodeCount, int denseNodeCount,
+                          double averageLabelLength, int maxDepth,
+                          long nodeBytes, long childArrayBytes, long keyBytes, int[] depths, int[] fanouts) {
+            this.nodeCount = nodeCount;
+            this.keyCount = keyCount;
+            this.sparseNodeCount = sparseNodeCount;
+            this.denseNodeCount = denseNodeCount;
+            this.averageLabelLength = averageLabelLength;
+            this.maxDepth = maxDepth;
+            this.nodeBytes = nodeBytes;
+            this.childArrayBytes = childArrayBytes;
+            this.keyBytes = keyBytes;
+            this.depths = depths;
+            this.fanouts = fanouts;
+        }
+
+        /**
+         * @return the number of keys at each depth, in edges from the root, up to maxDepth
+         */
+        public int[] depthHistogram() {
+            return depths.clone();
+        }
+
+        /**
+         * @return the number of nodes with each number of children, up to the largest one
+         */
+        public int[] fanoutHistogram() {
+            return fanouts.clone();
+        }
+
+        public double averageDepth() {
+            long total = 0;
+            for (int depth = 0; depth < depths.length; ++depth)
+                total += (long) depth * depths[depth];
+            return keyCount == 0 ? 0.0 : (double) total / keyCount;
+        }
+
+        /**
+         * @return the estimated bytes retained by the tree, but for its values
+         */
+        public long estimatedBytes() {
+            return nodeBytes + childArrayBytes + keyBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "TreeStats{nodes=" + nodeCount + ", keys=" + keyCount
+                    + ", sparse=" + sparseNodeCount + ", dense=" + denseNodeCount
+                    + ", averageLabelLength=" + String.format("%.2f", averageLabelLength)
+                    + ", averageDepth=" + String.format("%.2f", averageDepth()) + ", maxDepth=" + maxDepth
+                    + ", fanouts=" + Arrays.toString(fanouts) + ", estimatedBytes=" + estimatedBytes() + "}";
+        }
+    }
+
+    /**
+     * A snapshot of the statistics of a bounded tree, see cacheStats().
+     */
+    public static final class CacheStats {
+        public final long hitCount;
+        public final long missCount;
+        public final long evictionCount; // keys evicted, one by one or in subtrees
+        public final long weight;        // keys, or estimated bytes when bounded by bytes
+        public final long capacity;      // max weight
+
+        private CacheStats(long hitCount, long missCount, long evictionCount, long weight, long capacity) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.evictionCount = evictionCount;
+            this.weight = weight;
+            this.capacity = capacity;
+        }
+
+        public long requestCount() {
+            return hitCount + missCount;
+        }
+
+        /**
+         * @return the ratio of gets that found their key, or 1 if there were none
+         */
+        public double hitRate() {
+            final long requests = requestCount();
+            return requests == 0 ? 1.0 : (double) hitCount / requests;
+        }
+
+        @Override
+        public String toString() {
+            return "CacheStats{hits=" + hitCount + ", misses=" + missCount + ", evictions=" + evictionCount
+                    + ", weight=" + weight + "/" + capacity + "}";
+        }
     }
 
     public class Match {
+        private final Node nodeGrandParent;
         private final Node nodeParent;
         private final Node node;
 
@@ -346,8 +4665,13 @@ public class RadixTree<V> implements Map<String, V> {
         public final int matchEnd;   // exclusive
 
         private Match(Node node, Node nodeParent, int matchStart, int matchEnd) {
+            this(node, nodeParent, null, matchStart, matchEnd);
+        }
+
+        private Match(Node node, Node nodeParent, Node nodeGrandParent, int matchStart, int matchEnd) {
             this.node = node;
             this.nodeParent = nodeParent;
+            this.nodeGrandParent = nodeGrandParent;
             this.matchStart = matchStart;
             this.matchEnd = matchEnd;
         }
@@ -362,13 +4686,40 @@ public class RadixTree<V> implements Map<String, V> {
     }
 
     private class Node implements Entry<String, V> {
+        /*
+         * A key going through this node, whose chars [start, end) are the
+         * edge label. A value node's ref is its own key, so getKey() returns
+         * it without copying; any other node shares the ref of a node below
+         * it, or "" at the root. So refs hold no chars beyond the keys in the
+         * tree, and a removed key is not kept alive by the nodes it went
+         * through.
+         */
         private String ref;
         private int start; //inclusive
         private int end;   //exclusive
 
-        private HashMap<Character, Node> children = null;
+        /*
+         * Children are kept in one of three layouts, chosen by fanout:
+         *   - none:   children == null, this is a leaf;
+         *   - sparse: labels[i] is the first char of children[i], both sorted
+         *             and filled up to childCount, the rest of the slots are null;
+         *   - dense:  labels == null, children[c - base] is the child starting
+         *             with char c or null, for a span of at most DENSE_SPAN chars.
+         * In every layout the non-null slots of children are in sorted order.
+         */
+        private char[] labels = null;
+        private Node[] children = null;
+        private int childCount = 0;
+        private char base = 0;
+
         private V value;
 
+        // upper bound of the scores in this subtree, in a scored tree; a float
+        // rounded up rather than a double, so that a Node takes no more space
+        private float best = Float.NEGATIVE_INFINITY;
+
+        private int count = 0; // number of keys in this subtree, see countPrefix(..)
+
         /**
          * Construct a Node object.
          *
@@ -387,44 +4738,165 @@ public class RadixTree<V> implements Map<String, V> {
             assert !child.ref.isEmpty();
             assert child.start < child.ref.length();
 
-            if (children == null)
-                children = new HashMap<>();
+            final char c = child.ref.charAt(child.start);
+
+            if (children == null) {
+                labels = new char[SPARSE_MIN];
+                children = newNodeArray(SPARSE_MIN);
+            }
+
+            if (labels == null) {
+                if (c >= base && c - base < children.length) {
+                    if (children[c - base] == null)
+                        childCount++;
+                    children[c - base] = child;
+                    return;
+                }
+                toSparse(childCount + 1);
+            }
+
+            final int idx = indexOf(c);
+            if (idx >= 0) {
+                children[idx] = child;
+                return;
+            }
+
+            if (childCount == labels.length) {
+                if (childCount >= SPARSE_MAX && toDense(c)) {
+                    add(child);
+                    return;
+                }
+                labels = Arrays.copyOf(labels, childCount * 2);
+                children = Arrays.copyOf(children, childCount * 2);
+            }
+
+            final int pos = -(idx + 1);
+            System.arraycopy(labels, pos, labels, pos + 1, childCount - pos);
+            System.arraycopy(children, pos, children, pos + 1, childCount - pos);
+            labels[pos] = c;
+            children[pos] = child;
+            childCount++;
+        }
+
+        /**
+         * Locate a char in the sparse layout.
+         *
+         * @param c the first char of the child
+         * @return the index of the child if found, otherwise (-(insertion point) - 1)
+         */
+        private int indexOf(char c) {
+            if (childCount <= SPARSE_SCAN) {
+                for (int i = 0; i < childCount; ++i) {
+                    final char label = labels[i];
+                    if (label == c)
+                        return i;
+                    if (label > c)
+                        return -(i + 1);
+                }
+                return -(childCount + 1);
+            }
+
+            return Arrays.binarySearch(labels, 0, childCount, c);
+        }
+
+        /**
+         * Switch from the sparse to the dense layout, if the children and the
+         * additional char c fit within DENSE_SPAN.
+         *
+         * @param c the char about to be added
+         * @return true if the layout was changed
+         */
+        private boolean toDense(char c) {
+            final char low = (char) Math.min(labels[0], c);
+            final char high = (char) Math.max(labels[childCount - 1], c);
+
+            if (high - low >= DENSE_SPAN)
+                return false;
+
+            final Node[] table = newNodeArray(high - low + 1);
+            for (int i = 0; i < childCount; ++i)
+                table[labels[i] - low] = children[i];
 
-            children.put(child.ref.charAt(child.start), child);
+            labels = null;
+            children = table;
+            base = low;
+            return true;
         }
 
         /**
-         * Split this Node into two, at the specified index
+         * Switch from the dense to the sparse layout.
          *
-         * @param index at which to split this node, must be within range or the operation is aborted
-         * @return returns the node that contains the rest of the split, while this node remains
-         * the head of the split. Will return null if index is not in range.
+         * @param capacity the minimum capacity of the sparse arrays
+         */
+        private void toSparse(int capacity) {
+            int length = SPARSE_MIN;
+            while (length < capacity)
+                length *= 2;
+
+            final char[] sparseLabels = new char[length];
+            final Node[] sparseChildren = newNodeArray(length);
+            int count = 0;
+
+            for (int i = 0; i < children.length; ++i) {
+                if (children[i] != null) {
+                    sparseLabels[count] = (char) (base + i);
+                    sparseChildren[count] = children[i];
+                    count++;
+                }
+            }
+
+            labels = sparseLabels;
+            children = sparseChildren;
+            base = 0;
+        }
+
+        /**
+         * Split this Node into two, at the specified index. This node keeps its
+         * key, value and children, so entries handed out stay valid; the caller
+         * must replace it with the returned head in its parent.
+         *
+         * @param index at which to split this node, must be within range
+         * @return returns the new head of the split, whose only child is this node
          */
         private Node splitAt(int index) {
-            assert index >= start && index < end;
+            assert index > start && index < end;
 
-            final Node rest = new Node(ref, index, end);
-            rest.children = children;
-            rest.value = value;
-            children = null;
-            value = null;
-            end = index;
-            add(rest);
-            return rest;
+            final Node head = newNode(ref, start, index);
+            head.best = best;
+            head.count = count;
+            if (eviction != null)
+                cache(head).stamp = cache(this).stamp;
+            start = index;
+            head.add(this);
+
+            if (metrics != null)
+                metrics.split();
+            return head;
         }
 
         /**
-         * Attempt to merge an only-child with this node
+         * Attempt to merge this node with its only child, when this node has no
+         * value. The child takes over this node's substring, so entries handed
+         * out stay valid; the caller must replace this node with the returned
+         * node in its parent.
+         *
+         * @return the only child when merged, otherwise this node
          */
-        private void tryMerge() {
-            if (value == null && children != null && children.size() == 1) {
-                Node onlyChild = null;
-                for (Character key : children.keySet())
-                    onlyChild = children.get(key);
-                ref = onlyChild.ref; // child may have a ref that is longer
-                end = onlyChild.end;
-                children = null;
+        private Node tryMerge() {
+            if (value == null && childCount == 1) {
+                for (final Node child : children) {
+                    if (child != null) {
+                        child.start = start;
+
+                        if (metrics != null)
+                            metrics.merged();
+
+                        return child;
+                    }
+                }
             }
+
+            return this;
         }
 
         private boolean isLeafNode() {
@@ -439,16 +4911,43 @@ public class RadixTree<V> implements Map<String, V> {
             assert child != null;
             assert child.start < child.ref.length();
 
-            final Character idx = child.ref.charAt(child.start);
+            if (isLeafNode())
+                return false;
+
+            final char c = child.ref.charAt(child.start);
+
+            if (labels == null) {
+                final int idx = c - base;
+                if (idx < 0 || idx >= children.length || children[idx] != child)
+                    return false;
+
+                children[idx] = null;
+                childCount--;
+
+                if (childCount < DENSE_MIN)
+                    toSparse(childCount);
+            } else {
+                final int idx = indexOf(c);
+                if (idx < 0 || children[idx] != child)
+                    return false;
+
+                childCount--;
+                System.arraycopy(labels, idx + 1, labels, idx, childCount - idx);
+                System.arraycopy(children, idx + 1, children, idx, childCount - idx);
+                children[childCount] = null;
 
-            if (!isLeafNode()) {
-                final Node actualChild = children.get(idx);
+                if (childCount > 0 && childCount <= labels.length / 4 && labels.length > SPARSE_MIN) {
+                    labels = Arrays.copyOf(labels, labels.length / 2);
+                    children = Arrays.copyOf(children, children.length / 2);
+                }
+            }
 
-                if (actualChild == child)
-                    return children.remove(idx) != null;
+            if (childCount == 0) {
+                labels = null;
+                children = null;
             }
 
-            return false;
+            return true;
         }
 
         /**
@@ -460,11 +4959,66 @@ public class RadixTree<V> implements Map<String, V> {
             return end - start;
         }
 
+        /**
+         * Returns the slot of the child starting with c or, when there is no
+         * such child, the slot before which it would be.
+         */
+        private int slotOf(char c) {
+            if (isLeafNode())
+                return 0;
+
+            if (labels == null)
+                return Math.max(0, Math.min(c - base, children.length));
+
+            final int idx = indexOf(c);
+            return idx >= 0 ? idx : -(idx + 1);
+        }
+
+        /**
+         * Compares the key of this node with another key, without building it.
+         */
+        private int compareKeyTo(String other) {
+            final int otherLength = other.length();
+            final int length = Math.min(end, otherLength);
+
+            for (int i = 0; i < length; ++i) {
+                final int diff = ref.charAt(i) - other.charAt(i);
+                if (diff != 0)
+                    return diff;
+            }
+
+            return end - otherLength;
+        }
+
+        /**
+         * Checks that this node's substring, but for its first char (matched
+         * by the parent), is found in key at the same offsets, shifted by from.
+         *
+         * @param keyLength the length of the key, starting at from
+         */
+        private boolean labelMatches(CharSequence key, int from, int keyLength) {
+            if (end > keyLength)
+                return false;
+
+            for (int i = start + 1; i < end; ++i) {
+                if (ref.charAt(i) != key.charAt(from + i))
+                    return false;
+            }
+
+            return true;
+        }
+
         private Node findChildNodeStartsWith(char idx) {
             if (isLeafNode())
                 return null;
 
-            return children.get(idx);
+            if (labels == null) {
+                final int i = idx - base;
+                return i >= 0 && i < children.length ? children[i] : null;
+            }
+
+            final int i = indexOf(idx);
+            return i >= 0 ? children[i] : null;
         }
 
         @Override
@@ -477,11 +5031,49 @@ public class RadixTree<V> implements Map<String, V> {
             return value;
         }
 
+        /**
+         * @throws NullPointerException  if v is null, since a node without a
+         *                               value holds no key
+         * @throws IllegalStateException if the key was removed from the tree
+         */
         @Override
         public V setValue(V v) {
+            Objects.requireNonNull(v);
+            if (value == null)
+                throw new IllegalStateException();
+
             final V previousValue = value;
+
+            // a node detached by removePrefix(..) keeps its value, but no
+            // longer weighs in the tree nor scores along its key's path
+            if ((scorer != null || eviction != null) && findNode(ref, 0, end) != this) {
+                value = v;
+                return previousValue;
+            }
+
+            final long delta = eviction != null ? weigh(end, v) - weigh(end, previousValue) : 0;
             value = v;
+            if (scorer != null)
+                rescore(root, ref, 0, end);
+            weight += delta;
             return previousValue;
         }
     }
+
+    /**
+     * A node of a bounded tree, see newNode(..). The access bookkeeping is
+     * kept out of Node, so the nodes of unbounded trees do not carry it.
+     */
+    private final class CacheNode extends Node {
+        // the clock at the latest access to a key in this subtree, and the
+        // decayed number of accesses to this node's key, saturating at
+        // Character.MAX_VALUE; in LRU, the clock keeps up with the time, see
+        // now(), so that gets between the same two puts are ordered too
+        private int stamp = 0;
+        private char hits = 0;
+
+        private CacheNode(String ref, int start, int end) {
+            super(ref, start, end);
+        }
+    }
 }
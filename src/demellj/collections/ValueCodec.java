@@ -0,0 +1,45 @@
+package demellj.collections;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts values to and from the bytes stored by a MappedRadixTree or
+ * written by RadixTree.writeTo(..).
+ *
+ * @param <V> the type of values
+ */
+public interface ValueCodec<V> {
+    ValueCodec<String> UTF8 = new ValueCodec<String>() {
+        @Override
+        public byte[] encode(String value) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String decode(ByteBuffer bytes) {
+            final byte[] array = new byte[bytes.remaining()];
+            bytes.get(array);
+            return new String(array, StandardCharsets.UTF_8);
+        }
+    };
+
+    ValueCodec<Integer> INTEGER = new ValueCodec<Integer>() {
+        @Override
+        public byte[] encode(Integer value) {
+            return ByteBuffer.allocate(4).putInt(value).array();
+        }
+
+        @Override
+        public Integer decode(ByteBuffer bytes) {
+            return bytes.getInt();
+        }
+    };
+
+    byte[] encode(V value);
+
+    /**
+     * @param bytes a buffer whose remaining bytes are exactly the encoded value
+     */
+    V decode(ByteBuffer bytes);
+}
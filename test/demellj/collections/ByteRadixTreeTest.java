@@ -0,0 +1,137 @@
+package demellj.collections;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class ByteRadixTreeTest {
+    public static void main(String[] args) {
+        final ByteRadixTree<String> tree = new ByteRadixTree<>();
+
+        System.out.println(tree.put("test", "1") == null);
+        System.out.println(tree.put("testing", "2") == null);
+        System.out.println(tree.put("tea", "3") == null);
+        System.out.println(tree.put("", "4") == null);
+        System.out.println(tree.put("caf\u00e9", "5") == null);
+        System.out.println(tree.put("test", "6").equals("1"));
+        System.out.println(tree.size() == 5);
+        System.out.println(tree.get("test").equals("6"));
+        System.out.println(tree.get("caf\u00e9").equals("5"));
+        System.out.println(tree.get("caf") == null);
+        System.out.println(tree.get("te") == null);
+        System.out.println(tree.get("").equals("4"));
+
+        // keys sliced from byte arrays and heap or direct buffers
+        final byte[] request = "GET /testing HTTP/1.1".getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer heap = ByteBuffer.wrap(request);
+        final ByteBuffer direct = ByteBuffer.allocateDirect(request.length);
+        direct.put(request).flip();
+        System.out.println(tree.get(request, 5, 7).equals("2"));
+        System.out.println(tree.get(request, 5, 4).equals("6"));
+        System.out.println(tree.get(heap, 5, 7).equals("2"));
+        System.out.println(tree.get(direct, 5, 7).equals("2"));
+        System.out.println(tree.get(direct, 5, 3) == null);
+        System.out.println(tree.containsKey(direct, 5, 4));
+        System.out.println(!tree.containsKey(request, 5, 5));
+        System.out.println(tree.containsPrefix(request, 5, 5));
+        System.out.println(!tree.containsPrefix(request, 4, 5));
+        System.out.println(direct.position() == 0 && direct.limit() == request.length);
+        final ByteBuffer slice = ByteBuffer.wrap(request, 4, 8).slice();
+        System.out.println(tree.get(slice, 1, 7).equals("2"));
+
+        boolean outOfBounds = false;
+        try {
+            tree.get(direct, 16, 8);
+        } catch (IndexOutOfBoundsException e) {
+            outOfBounds = true;
+        }
+        System.out.println(outOfBounds);
+
+        // lookups do not allocate
+        System.out.println(RadixTreeTest.allocatedBytes(() -> {
+            for (int i = 0; i < 100000; ++i) {
+                tree.get(request, 5, 7);
+                tree.get(heap, 5, 4);
+                tree.get(direct, 5, 7);
+                tree.containsKey(direct, 5, 3);
+            }
+        }) < 100000);
+
+        // every occurrence of every key, with offsets into the buffer
+        final List<String> found = new ArrayList<>();
+        final ByteRadixTree.MatchConsumer<String> collect = (start, end, value) -> found.add(start + "-" + end + "=" + value);
+        tree.findKeys(direct, 4, 10, collect);
+        System.out.println(found.equals(Arrays.asList("4-4=4", "5-9=6", "5-12=2")));
+        found.clear();
+        tree.findKeys(slice, 0, 8, collect);
+        System.out.println(found.equals(Arrays.asList("0-0=4", "1-5=6", "1-8=2")));
+        found.clear();
+        tree.remove("");
+        tree.findKeys("un caf\u00e9 au tea".getBytes(StandardCharsets.UTF_8), 0, 15, collect);
+        System.out.println(found.equals(Arrays.asList("3-8=5", "12-15=3")));
+
+        System.out.println(tree.remove("test").equals("6"));
+        System.out.println(tree.remove("test") == null);
+        System.out.println(tree.get("testing").equals("2"));
+        System.out.println(tree.size() == 3);
+
+        final List<String> keys = new ArrayList<>();
+        tree.forEach((key, value) -> keys.add(new String(key, StandardCharsets.UTF_8) + "=" + value));
+        System.out.println(keys.equals(Arrays.asList("caf\u00e9=5", "tea=3", "testing=2")));
+
+        fuzz();
+    }
+
+    /**
+     * Applies random updates to the tree and to a TreeMap of the keys as
+     * ISO-8859-1 strings, whose order is the unsigned order of the bytes, and
+     * compares them. The first byte ranges widely enough for the root to
+     * switch between sorted arrays and a table.
+     */
+    private static void fuzz() {
+        final Random random = new Random(42);
+        final ByteRadixTree<Integer> tree = new ByteRadixTree<>();
+        final TreeMap<String, Integer> map = new TreeMap<>();
+        final ByteBuffer direct = ByteBuffer.allocateDirect(16);
+        boolean consistent = true;
+
+        for (int op = 0; op < 100000; ++op) {
+            final int width = op % 20000 < 10000 ? 64 : 8;
+            final byte[] key = randomKey(random, width);
+            final String name = new String(key, StandardCharsets.ISO_8859_1);
+
+            switch (random.nextInt(3)) {
+                case 0:
+                    consistent &= Objects.equals(tree.put(key, op), map.put(name, op));
+                    break;
+                case 1:
+                    consistent &= Objects.equals(tree.remove(key), map.remove(name));
+                    break;
+                default:
+                    direct.clear();
+                    direct.position(3);
+                    direct.put(key);
+                    consistent &= Objects.equals(tree.get(direct, 3, key.length), map.get(name));
+                    consistent &= Objects.equals(tree.get(key), map.get(name));
+            }
+
+            consistent &= tree.size() == map.size();
+        }
+
+        final List<String> entries = new ArrayList<>();
+        tree.forEach((key, value) -> entries.add(new String(key, StandardCharsets.ISO_8859_1) + "=" + value));
+        final List<String> expected = new ArrayList<>();
+        for (final Map.Entry<String, Integer> entry : map.entrySet())
+            expected.add(entry.getKey() + "=" + entry.getValue());
+
+        System.out.println(consistent);
+        System.out.println(entries.equals(expected));
+    }
+
+    private static byte[] randomKey(Random random, int width) {
+        final byte[] key = new byte[random.nextInt(5)];
+        for (int i = 0; i < key.length; ++i)
+            key[i] = (byte) (i == 0 ? 0x60 + random.nextInt(width) * 3 : 0xFD + random.nextInt(3));
+        return key;
+    }
+}
@@ -0,0 +1,154 @@
+package demellj.collections;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ConcurrentRadixTreeTest {
+    private static final int THREADS = 8;
+    private static final int OPERATIONS = 50000;
+
+    public static void main(String[] args) throws Exception {
+        final HashMap<String, String> reference = new HashMap<>();
+
+        reference.put("test", "abc");
+        reference.put("testing", "123");
+        reference.put("tea", "party");
+        reference.put("foo", "bar");
+        reference.put("", "Zing");
+
+        final ConcurrentRadixTree<String> tree = new ConcurrentRadixTree<>();
+        tree.putAll(reference);
+
+        System.out.println(tree.size() == reference.size());
+        System.out.println(tree.equals(reference));
+        System.out.println(tree.get("te") == null);
+        System.out.println(tree.get("testin") == null);
+        System.out.println(tree.containsPrefix("testi"));
+        System.out.println(!tree.containsPrefix("testy"));
+        System.out.println(new ArrayList<>(tree.keySet()).equals(new ArrayList<>(new TreeMap<>(reference).keySet())));
+        System.out.println(tree.findKeys("testing this tepid cold tested tea").size() == 5);
+
+        System.out.println(tree.putIfAbsent("test", "x").equals("abc"));
+        System.out.println(!tree.replace("test", "x", "y"));
+        System.out.println(tree.replace("test", "abc", "def"));
+        System.out.println(tree.get("test").equals("def"));
+        System.out.println(!tree.remove("test", "abc"));
+        System.out.println(tree.remove("test", "def"));
+        System.out.println(tree.get("test") == null);
+        System.out.println(tree.get("testing").equals("123"));
+        System.out.println(tree.remove("testing").equals("123"));
+        System.out.println(tree.get("tea").equals("party"));
+        System.out.println(tree.size() == reference.size() - 2);
+        System.out.println(tree.merge("tea", "time", String::concat).equals("partytime"));
+
+        final Iterator<String> it = tree.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith("t"))
+                it.remove();
+        }
+        System.out.println(tree.keySet().equals(new HashSet<>(Arrays.asList("", "foo"))));
+        tree.clear();
+        System.out.println(tree.isEmpty());
+
+        stress();
+    }
+
+    /**
+     * Writers put and remove their own keys, interleaved in the same subtrees
+     * so that nodes are split and merged concurrently, while readers check that
+     * keys nobody touches never disappear.
+     */
+    private static void stress() throws Exception {
+        final ConcurrentRadixTree<Integer> tree = new ConcurrentRadixTree<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS * 2);
+
+        final List<String> stable = new ArrayList<>();
+        for (int i = 0; i < 500; ++i) {
+            final String key = randomKey(new Random(i)) + "!";
+            stable.add(key);
+            tree.put(key, key.hashCode());
+        }
+
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicBoolean stableVisible = new AtomicBoolean(true);
+        final List<Future<Map<String, Integer>>> writers = new ArrayList<>();
+        final List<Future<?>> readers = new ArrayList<>();
+
+        for (int t = 0; t < THREADS; ++t) {
+            final int id = t;
+
+            writers.add(executor.submit(() -> {
+                final Random random = new Random(id);
+                final Map<String, Integer> expected = new HashMap<>();
+
+                for (int op = 0; op < OPERATIONS; ++op) {
+                    final String key = randomKey(random) + "#" + id;
+
+                    if (random.nextInt(3) == 0) {
+                        if (!Objects.equals(tree.remove(key), expected.remove(key)))
+                            throw new IllegalStateException("remove " + key);
+                    } else {
+                        if (!Objects.equals(tree.put(key, op), expected.put(key, op)))
+                            throw new IllegalStateException("put " + key);
+                    }
+
+                    tree.merge("#count" + (op % 16), 1, Integer::sum);
+                }
+
+                return expected;
+            }));
+
+            readers.add(executor.submit(() -> {
+                while (!done.get()) {
+                    for (final String key : stable) {
+                        final Integer value = tree.get(key);
+                        if (value == null || value != key.hashCode() || !tree.containsPrefix(key))
+                            stableVisible.set(false);
+                    }
+                }
+            }));
+        }
+
+        final Map<String, Integer> expected = new HashMap<>();
+        boolean writersConsistent = true;
+        for (final Future<Map<String, Integer>> writer : writers) {
+            try {
+                expected.putAll(writer.get());
+            } catch (ExecutionException e) {
+                writersConsistent = false;
+            }
+        }
+        done.set(true);
+        for (final Future<?> reader : readers)
+            reader.get();
+        executor.shutdown();
+
+        System.out.println(writersConsistent);
+        System.out.println(stableVisible.get());
+
+        int count = 0;
+        for (int i = 0; i < 16; ++i)
+            count += tree.remove("#count" + i);
+        System.out.println(count == THREADS * OPERATIONS);
+
+        for (final String key : stable)
+            expected.put(key, key.hashCode());
+        System.out.println(tree.size() == expected.size());
+        System.out.println(tree.equals(expected));
+
+        // removing everything must merge the tree back down to an empty root
+        for (final String key : expected.keySet())
+            tree.remove(key);
+        System.out.println(tree.isEmpty());
+        System.out.println(!tree.containsPrefix("a"));
+    }
+
+    private static String randomKey(Random random) {
+        final StringBuilder builder = new StringBuilder();
+        final int length = 1 + random.nextInt(6);
+        for (int i = 0; i < length; ++i)
+            builder.append((char) ('a' + random.nextInt(3)));
+        return builder.toString();
+    }
+}
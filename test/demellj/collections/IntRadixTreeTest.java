@@ -0,0 +1,48 @@
+package demellj.collections;
+
+import java.util.*;
+
+public class IntRadixTreeTest {
+    public static void main(String[] args) {
+        final IntRadixTree tree = new IntRadixTree();
+
+        System.out.println(tree.putInt("test", 1) == 0);
+        System.out.println(tree.putInt("testing", 2) == 0);
+        System.out.println(tree.putInt("tea", 3) == 0);
+        System.out.println(tree.putInt("", 4) == 0);
+        System.out.println(tree.putInt("test", 5) == 1);
+        System.out.println(tree.size() == 4);
+        System.out.println(tree.getInt("test") == 5);
+        System.out.println(tree.getInt("te") == 0);
+        System.out.println(!tree.containsKey("te"));
+        System.out.println(tree.containsKey(""));
+        System.out.println(tree.containsPrefix("testi"));
+        System.out.println(!tree.containsPrefix("testy"));
+
+        tree.defaultReturnValue(-1);
+        System.out.println(tree.getInt("absent") == -1);
+        System.out.println(tree.addTo("count", 3) == -1);
+        System.out.println(tree.getInt("count") == 2);
+        System.out.println(tree.addTo("count", 3) == 2);
+        System.out.println(tree.getInt("count") == 5);
+        System.out.println(tree.removeInt("test") == 5);
+        System.out.println(tree.removeInt("test") == -1);
+        System.out.println(tree.getInt("testing") == 2);
+
+        final List<String> keys = new ArrayList<>();
+        tree.forEach((key, value) -> keys.add(key + "=" + value));
+        System.out.println(keys.equals(Arrays.asList("=4", "count=5", "tea=3", "testing=2")));
+        keys.clear();
+        tree.forEach("te", (key, value) -> keys.add(key));
+        System.out.println(keys.equals(Arrays.asList("tea", "testing")));
+
+        // counter updates on existing keys do not allocate
+        final String[] terms = {"the", "then", "there", "these", "a", "an", "and"};
+        for (final String term : terms)
+            tree.addTo(term, 1);
+        System.out.println(RadixTreeTest.allocatedBytes(() -> {
+            for (int i = 0; i < 100000; ++i)
+                tree.addTo(terms[i % terms.length], 1);
+        }) < 100000);
+    }
+}
@@ -0,0 +1,108 @@
+package demellj.collections;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+public class MappedRadixTreeTest {
+    public static void main(String[] args) throws IOException {
+        final RadixTree<String> tree = new RadixTree<>();
+
+        tree.put("test", "abc");
+        tree.put("testing", "123");
+        tree.put("tea", "party");
+        tree.put("foo", "bar");
+        tree.put("", "Zing");
+
+        final Path file = Files.createTempFile("radixtree", ".bin");
+        try {
+            MappedRadixTree.write(tree, file, ValueCodec.UTF8);
+            final MappedRadixTree<String> mapped = MappedRadixTree.open(file, ValueCodec.UTF8);
+
+            System.out.println(mapped.size() == tree.size());
+            System.out.println(mapped.equals(tree));
+            System.out.println(mapped.get("test").equals("abc"));
+            System.out.println(mapped.get("").equals("Zing"));
+            System.out.println(mapped.get("te") == null);
+            System.out.println(mapped.get("testin") == null);
+            System.out.println(mapped.get("testings") == null);
+            System.out.println(mapped.containsPrefix("testi"));
+            System.out.println(!mapped.containsPrefix("testy"));
+            System.out.println(new ArrayList<>(mapped.keySet()).equals(new ArrayList<>(tree.keySet())));
+            System.out.println(new ArrayList<>(mapped.keySet("te")).equals(Arrays.asList("tea", "test", "testing")));
+            System.out.println(new ArrayList<>(mapped.keySet("tes")).equals(Arrays.asList("test", "testing")));
+            System.out.println(mapped.keySet("x").isEmpty());
+
+            // prefix counts are read from the node records, without decoding values
+            System.out.println(mapped.countPrefix("te") == 3 && mapped.countPrefix("testi") == 1);
+            System.out.println(mapped.countPrefix("") == 5 && mapped.countPrefix("x") == 0);
+            System.out.println(mapped.entrySet("tes").size() == 2 && mapped.keySet("te").size() == 3);
+            System.out.println(RadixTreeTest.allocatedBytes(() -> {
+                for (int i = 0; i < 10000; ++i)
+                    mapped.entrySet("te").size();
+            }) < 10000 * 32);
+
+            final ArrayList<MappedRadixTree<String>.Match> matches = mapped.findKeys("testing this tepid cold tested tea");
+            System.out.println(matches.size() == 5);
+            System.out.println(matches.get(2).getEntry().equals(new AbstractMap.SimpleImmutableEntry<>("testing", "123")));
+
+            boolean rejected = false;
+            try {
+                mapped.put("new", "key");
+            } catch (UnsupportedOperationException e) {
+                rejected = true;
+            }
+            System.out.println(rejected);
+
+            fuzz(file);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Writes random trees and checks every lookup against the TreeMap they
+     * were written from.
+     */
+    private static void fuzz(Path file) throws IOException {
+        final Random random = new Random(42);
+        boolean consistent = true;
+
+        for (int round = 0; round < 50; ++round) {
+            final TreeMap<String, Integer> map = new TreeMap<>();
+            final int count = random.nextInt(200);
+            for (int i = 0; i < count; ++i)
+                map.put(RadixTreeTest.randomKey(random, 5), i);
+
+            MappedRadixTree.write(map, file, ValueCodec.INTEGER);
+            final MappedRadixTree<Integer> mapped = MappedRadixTree.open(file, ValueCodec.INTEGER);
+
+            consistent &= mapped.size() == map.size();
+            consistent &= new ArrayList<>(mapped.entrySet()).equals(new ArrayList<>(map.entrySet()));
+
+            for (int i = 0; i < 100; ++i) {
+                final String key = RadixTreeTest.randomKey(random, 5);
+                final SortedMap<String, Integer> range = map.subMap(key, key + Character.MAX_VALUE);
+
+                consistent &= Objects.equals(mapped.get(key), map.get(key));
+                consistent &= mapped.containsPrefix(key) == (key.isEmpty() || !range.isEmpty());
+                consistent &= new ArrayList<>(mapped.entrySet(key)).equals(new ArrayList<>(range.entrySet()));
+                consistent &= mapped.entrySet(key).size() == range.size() && mapped.countPrefix(key) == range.size();
+                consistent &= mapped.keySet(key).isEmpty() == range.isEmpty();
+            }
+        }
+
+        boolean rejected = false;
+        try {
+            final TreeMap<String, Integer> reversed = new TreeMap<>(Collections.<String>reverseOrder());
+            reversed.put("a", 1);
+            MappedRadixTree.write(reversed, file, ValueCodec.INTEGER);
+        } catch (IllegalArgumentException e) {
+            rejected = true;
+        }
+
+        System.out.println(consistent);
+        System.out.println(rejected);
+    }
+}
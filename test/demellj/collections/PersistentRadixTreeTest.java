@@ -0,0 +1,129 @@
+package demellj.collections;
+
+import java.util.*;
+
+public class PersistentRadixTreeTest {
+    public static void main(String[] args) {
+        final HashMap<String, String> reference = new HashMap<>();
+
+        reference.put("test", "abc");
+        reference.put("testing", "123");
+        reference.put("tea", "party");
+        reference.put("foo", "bar");
+        reference.put("", "Zing");
+
+        final PersistentRadixTree<String> empty = PersistentRadixTree.empty();
+        PersistentRadixTree<String> tree = empty;
+        for (final Map.Entry<String, String> entry : reference.entrySet())
+            tree = tree.with(entry.getKey(), entry.getValue());
+
+        System.out.println(empty.isEmpty());
+        System.out.println(tree.size() == reference.size());
+        System.out.println(tree.equals(reference));
+        System.out.println(tree.get("te") == null);
+        System.out.println(tree.get("testin") == null);
+        System.out.println(tree.containsPrefix("testi"));
+        System.out.println(!tree.containsPrefix("testy"));
+        System.out.println(new ArrayList<>(tree.keySet()).equals(new ArrayList<>(new TreeMap<>(reference).keySet())));
+
+        // updates leave the original tree untouched
+        final PersistentRadixTree<String> snapshot = tree;
+        final PersistentRadixTree<String> removed = tree.without("test").withoutPrefix("f");
+        System.out.println(snapshot.equals(reference));
+        System.out.println(removed.size() == 3);
+        System.out.println(removed.get("test") == null);
+        System.out.println(removed.get("testing").equals("123"));
+        System.out.println(!removed.containsPrefix("f"));
+        System.out.println(tree.with("tea", "party") == tree);
+        System.out.println(tree.without("te") == tree);
+        System.out.println(tree.withoutPrefix("x") == tree);
+        System.out.println(tree.withoutPrefix("").isEmpty());
+
+        // a transient edits its own nodes in place, never the shared ones
+        final PersistentRadixTree.Transient<String> edit = tree.asTransient();
+        System.out.println(edit.put("tested", "x") == null);
+        System.out.println(edit.put("tested", "y").equals("x"));
+        System.out.println(edit.remove("test").equals("abc"));
+        System.out.println(edit.removePrefix("te") == 3);
+        final PersistentRadixTree<String> frozen = edit.persistent();
+        System.out.println(frozen.keySet().equals(new HashSet<>(Arrays.asList("", "foo"))));
+        System.out.println(snapshot.equals(reference));
+
+        boolean rejected = false;
+        try {
+            edit.put("late", "write");
+        } catch (IllegalStateException e) {
+            rejected = true;
+        }
+        System.out.println(rejected);
+
+        fuzz();
+    }
+
+    /**
+     * Applies random updates, half through persistent calls and half through
+     * transients, and checks that every version ever produced still matches
+     * the TreeMap it was checked against.
+     */
+    private static void fuzz() {
+        final Random random = new Random(42);
+        final List<PersistentRadixTree<Integer>> versions = new ArrayList<>();
+        final List<TreeMap<String, Integer>> expected = new ArrayList<>();
+
+        PersistentRadixTree<Integer> tree = PersistentRadixTree.empty();
+        final TreeMap<String, Integer> map = new TreeMap<>();
+        boolean consistent = true;
+
+        for (int round = 0; round < 400; ++round) {
+            if (random.nextBoolean()) {
+                for (int op = 0; op < 20; ++op) {
+                    final String key = RadixTreeTest.randomKey(random, 5);
+                    final int choice = random.nextInt(8);
+
+                    if (choice == 0) {
+                        tree = tree.withoutPrefix(key);
+                        map.subMap(key, key + Character.MAX_VALUE).clear();
+                    } else if (choice < 3) {
+                        tree = tree.without(key);
+                        map.remove(key);
+                    } else {
+                        tree = tree.with(key, op);
+                        map.put(key, op);
+                    }
+                }
+            } else {
+                final PersistentRadixTree.Transient<Integer> edit = tree.asTransient();
+
+                for (int op = 0; op < 20; ++op) {
+                    final String key = RadixTreeTest.randomKey(random, 5);
+                    final int choice = random.nextInt(8);
+
+                    if (choice == 0) {
+                        final SortedMap<String, Integer> range = map.subMap(key, key + Character.MAX_VALUE);
+                        consistent &= edit.removePrefix(key) == range.size();
+                        range.clear();
+                    } else if (choice < 3) {
+                        consistent &= Objects.equals(edit.remove(key), map.remove(key));
+                    } else {
+                        consistent &= Objects.equals(edit.put(key, op), map.put(key, op));
+                    }
+                }
+
+                tree = edit.persistent();
+            }
+
+            versions.add(tree);
+            expected.add(new TreeMap<>(map));
+        }
+
+        for (int i = 0; i < versions.size(); ++i) {
+            final PersistentRadixTree<Integer> version = versions.get(i);
+            final TreeMap<String, Integer> reference = expected.get(i);
+
+            consistent &= version.size() == reference.size();
+            consistent &= new ArrayList<>(version.entrySet()).equals(new ArrayList<>(reference.entrySet()));
+        }
+
+        System.out.println(consistent);
+    }
+}
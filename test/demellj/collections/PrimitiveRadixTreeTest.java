@@ -0,0 +1,66 @@
+package demellj.collections;
+
+import java.util.*;
+
+public class PrimitiveRadixTreeTest {
+    public static void main(String[] args) {
+        fuzz();
+    }
+
+    /**
+     * Applies the same random updates to an IntRadixTree, a LongRadixTree
+     * and a TreeMap, and compares them. Int values wrap around like the
+     * low 32 bits of the long ones.
+     */
+    private static void fuzz() {
+        final Random random = new Random(42);
+        final IntRadixTree ints = new IntRadixTree();
+        final LongRadixTree longs = new LongRadixTree();
+        final TreeMap<String, Long> map = new TreeMap<>();
+        boolean consistent = true;
+
+        for (int op = 0; op < 50000; ++op) {
+            final String key = RadixTreeTest.randomKey(random, 5);
+            final long expected = map.getOrDefault(key, 0L);
+
+            switch (random.nextInt(4)) {
+                case 0:
+                    consistent &= ints.putInt(key, op) == (int) expected;
+                    consistent &= longs.putLong(key, op) == expected;
+                    map.put(key, (long) op);
+                    break;
+                case 1:
+                    consistent &= ints.addTo(key, op) == (int) expected;
+                    consistent &= longs.addTo(key, op) == expected;
+                    map.merge(key, (long) op, Long::sum);
+                    break;
+                case 2:
+                    map.remove(key);
+                    consistent &= ints.removeInt(key) == (int) expected;
+                    consistent &= longs.removeLong(key) == expected;
+                    break;
+                default:
+                    consistent &= ints.getInt(key) == (int) expected && longs.getLong(key) == expected;
+                    consistent &= ints.containsKey(key) == map.containsKey(key);
+                    consistent &= longs.containsKey(key) == map.containsKey(key);
+            }
+
+            consistent &= ints.size() == map.size() && longs.size() == map.size();
+        }
+
+        final List<String> intEntries = new ArrayList<>();
+        ints.forEach((key, value) -> intEntries.add(key + "=" + value));
+        final List<String> longEntries = new ArrayList<>();
+        longs.forEach((key, value) -> longEntries.add(key + "=" + value));
+        final List<String> expectedInts = new ArrayList<>();
+        final List<String> expectedLongs = new ArrayList<>();
+        for (final Map.Entry<String, Long> entry : map.entrySet()) {
+            expectedInts.add(entry.getKey() + "=" + entry.getValue().intValue());
+            expectedLongs.add(entry.getKey() + "=" + entry.getValue());
+        }
+
+        System.out.println(consistent);
+        System.out.println(intEntries.equals(expectedInts));
+        System.out.println(longEntries.equals(expectedLongs));
+    }
+}
@@ -1,9 +1,18 @@
 package demellj.collections;
 
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
 
 public class RadixTreeTest {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
         final HashMap<String, String> reference = new HashMap<>();
 
         reference.put("test", "abc");
@@ -110,6 +119,65 @@ public class RadixTreeTest {
         }
         System.out.println(matchedKeys.size() == 4); // check for duplicate matches
 
+        // parallel: the same matches, in offset order, across chunk seams
+        final StringBuilder longText = new StringBuilder();
+        while (longText.length() < 100000)
+            longText.append("testing this tepid cold tested tea ");
+        final List<String> sequentialKeys = new ArrayList<>();
+        for (RadixTree<String>.Match match : tree.findKeys(longText.toString()))
+            sequentialKeys.add(match.matchStart + ":" + match.getEntry().getKey());
+        final List<String> parallelKeys = new ArrayList<>();
+        for (RadixTree<String>.Match match : tree.findKeys(longText.toString(), ForkJoinPool.commonPool()))
+            parallelKeys.add(match.matchStart + ":" + match.getEntry().getKey());
+        System.out.println(parallelKeys.equals(sequentialKeys));
+
+        // every occurrence: "", "testing", "test" (twice) and "tea"
+        final ArrayList<RadixTree<String>.Match> allMatches = tree.findAllKeys("testing this tepid cold tested tea");
+        System.out.println(allMatches.size() == 5);
+        int previousEnd = 0;
+        for (RadixTree<String>.Match match : allMatches) {
+            final Map.Entry<String, String> entry = match.getEntry();
+            System.out.println(entry.getKey().length() == match.matchEnd - match.matchStart);
+            System.out.println(reference.get(entry.getKey()).equals(entry.getValue()));
+            System.out.println(match.matchEnd >= previousEnd);
+            previousEnd = match.matchEnd;
+        }
+        System.out.println(tree.findAllKeys("foobar").size() == 2);
+        tree.put("oba", "r");
+        System.out.println(tree.findAllKeys("foobar").size() == 3); // rebuilt after put
+        tree.remove("oba");
+        System.out.println(tree.findAllKeys("foobar").size() == 2); // rebuilt after remove
+
+        // streaming: the same matches, fed in pieces that split keys
+        final String streamed = "testing this tepid cold tested tea";
+        final List<String> expectedStream = new ArrayList<>();
+        for (RadixTree<String>.Match match : tree.findAllKeys(streamed))
+            expectedStream.add(match.matchStart + ":" + match.getEntry().getKey());
+        final List<String> fed = new ArrayList<>();
+        final RadixTree<String>.KeyScanner scanner = tree.scanner((entry, start) -> fed.add(start + ":" + entry.getKey()));
+        for (int from = 0; from < streamed.length(); from += 3)
+            scanner.feed(streamed.substring(from, Math.min(streamed.length(), from + 3)).toCharArray());
+        System.out.println(fed.equals(expectedStream));
+        System.out.println(scanner.position() == streamed.length());
+        final List<String> read = new ArrayList<>();
+        final long readLength = tree.findAllKeys(new StringReader(streamed), (entry, start) -> read.add(start + ":" + entry.getKey()));
+        System.out.println(read.equals(expectedStream));
+        System.out.println(readLength == streamed.length());
+        final List<String> buffered = new ArrayList<>();
+        final CharBuffer input = CharBuffer.wrap(streamed);
+        tree.scanner((entry, start) -> buffered.add(start + ":" + entry.getKey())).feed(input);
+        System.out.println(buffered.equals(expectedStream));
+        System.out.println(!input.hasRemaining());
+        tree.put("oba", "r");
+        boolean stale = false;
+        try {
+            scanner.feed(new char[]{'t'});
+        } catch (ConcurrentModificationException e) {
+            stale = true;
+        }
+        System.out.println(stale);
+        tree.remove("oba");
+
         System.out.println(tree.containsPrefix(""));
         System.out.println(!tree.containsPrefix("z"));
 
@@ -151,5 +219,740 @@ public class RadixTreeTest {
                 }
             }
         }
+
+        // removing an inner key must keep the keys below it
+        final RadixTree<String> merged = new RadixTree<>();
+        for (String key : new String[]{"ab", "abc", "abd", "ac"})
+            merged.put(key, key);
+        merged.remove("ac");
+        merged.remove("ab");
+        System.out.println(merged.size() == 2);
+        System.out.println("abc".equals(merged.get("abc")));
+        System.out.println("abd".equals(merged.get("abd")));
+        System.out.println(merged.keySet().size() == 2);
+
+        // fanout large enough to go through every child layout and back
+        final RadixTree<Integer> wide = new RadixTree<>();
+        for (int c = 0; c < 600; ++c)
+            wide.put("w" + (char) (c < 300 ? 'A' + c : 0x4E00 + c), c);
+        System.out.println(wide.size() == 600);
+        boolean found = true;
+        for (int c = 0; c < 600; ++c)
+            found &= wide.get("w" + (char) (c < 300 ? 'A' + c : 0x4E00 + c)) == c;
+        System.out.println(found);
+        for (int c = 0; c < 600; c += 2)
+            wide.remove("w" + (char) (c < 300 ? 'A' + c : 0x4E00 + c));
+        System.out.println(wide.size() == 300);
+        found = true;
+        for (int c = 0; c < 600; ++c)
+            found &= (wide.get("w" + (char) (c < 300 ? 'A' + c : 0x4E00 + c)) != null) == (c % 2 == 1);
+        System.out.println(found);
+        System.out.println(wide.removePrefix("w").size() == 300);
+        System.out.println(wide.isEmpty());
+
+        // views are live and ordered
+        final RadixTree<String> ordered = new RadixTree<>();
+        final Set<String> view = ordered.keySet("te");
+        System.out.println(view.isEmpty());
+        ordered.putAll(reference);
+        System.out.println(view.size() == 3);
+        System.out.println(new ArrayList<>(ordered.keySet()).equals(new ArrayList<>(new TreeMap<>(reference).keySet())));
+        System.out.println(new ArrayList<>(view).equals(Arrays.asList("tea", "test", "testing")));
+        System.out.println(new ArrayList<>(ordered.values("tes")).equals(Arrays.asList("abc", "123")));
+        System.out.println(view.contains("test") && !view.contains("foo"));
+
+        // entries keep their key when nodes are split or merged around them
+        final Map.Entry<String, String> testing = ordered.entrySet("testing").iterator().next();
+        ordered.put("testi", "x");
+        ordered.remove("test");
+        ordered.remove("testi");
+        System.out.println(testing.getKey().equals("testing"));
+        testing.setValue("456");
+        System.out.println(ordered.get("testing").equals("456"));
+        boolean nullRejected = false;
+        try {
+            testing.setValue(null);
+        } catch (NullPointerException e) {
+            nullRejected = true;
+        }
+        System.out.println(nullRejected && ordered.get("testing").equals("456")
+                && ordered.keySet().size() == ordered.size());
+
+        // an entry removed through its iterator cannot be set back into the tree
+        final RadixTree<Integer> revived = new RadixTree<>();
+        revived.put("a", 1);
+        revived.put("ab", 2);
+        revived.put("ac", 3);
+        final Iterator<Map.Entry<String, Integer>> removing = revived.entrySet().iterator();
+        final Map.Entry<String, Integer> removed = removing.next();
+        removing.remove();
+        boolean revivalRejected = false;
+        try {
+            removed.setValue(5);
+        } catch (IllegalStateException e) {
+            revivalRejected = true;
+        }
+        System.out.println(revivalRejected && revived.size() == 2 && revived.get("a") == null
+                && revived.keySet().size() == 2 && revived.countPrefix("") == 2);
+        ordered.put("test", reference.get("test"));
+        ordered.put("testing", reference.get("testing"));
+
+        final Iterator<Map.Entry<String, String>> it = ordered.entrySet("te").iterator();
+        while (it.hasNext()) {
+            if (!it.next().getKey().equals("test"))
+                it.remove();
+        }
+        System.out.println(view.size() == 1 && view.contains("test"));
+        System.out.println(ordered.size() == reference.size() - 2);
+        boolean failFast = false;
+        try {
+            final Iterator<String> keys = ordered.keySet().iterator();
+            keys.next();
+            ordered.put("zzz", "!");
+            keys.next();
+        } catch (ConcurrentModificationException e) {
+            failFast = true;
+        }
+        System.out.println(failFast);
+        ordered.keySet("").clear();
+        System.out.println(ordered.isEmpty());
+
+        // navigation and ranges agree with a TreeMap
+        final TreeMap<String, String> sorted = new TreeMap<>(reference);
+        sorted.put("tear", "drop");
+        sorted.put("fo", "o");
+        final RadixTree<String> navigable = new RadixTree<>();
+        navigable.putAll(sorted);
+        System.out.println(navigable.firstKey().equals(sorted.firstKey()));
+        System.out.println(navigable.lastKey().equals(sorted.lastKey()));
+        for (String probe : new String[]{"", "a", "f", "fo", "foo", "fop", "te", "tea", "teas", "test", "testz", "z"}) {
+            System.out.println(Objects.equals(navigable.ceilingKey(probe), sorted.ceilingKey(probe)));
+            System.out.println(Objects.equals(navigable.floorKey(probe), sorted.floorKey(probe)));
+            System.out.println(Objects.equals(navigable.higherKey(probe), sorted.higherKey(probe)));
+            System.out.println(Objects.equals(navigable.lowerKey(probe), sorted.lowerKey(probe)));
+            System.out.println(new ArrayList<>(navigable.tailMap(probe, false).keySet())
+                    .equals(new ArrayList<>(sorted.tailMap(probe, false).keySet())));
+            System.out.println(new ArrayList<>(navigable.headMap(probe, true).descendingKeySet())
+                    .equals(new ArrayList<>(sorted.headMap(probe, true).descendingKeySet())));
+        }
+        System.out.println(new ArrayList<>(navigable.subMap("f", "tes").keySet())
+                .equals(Arrays.asList("fo", "foo", "tea", "tear")));
+        System.out.println(new ArrayList<>(navigable.descendingMap().subMap("tes", "f").keySet())
+                .equals(Arrays.asList("tear", "tea", "foo", "fo")));
+        System.out.println(navigable.subMap("f", "tes").size() == 4);
+        System.out.println(navigable.subMap("fo", false, "fo", false).isEmpty());
+        boolean outOfRange = false;
+        try {
+            navigable.headMap("tea").put("test", "!");
+        } catch (IllegalArgumentException e) {
+            outOfRange = true;
+        }
+        System.out.println(outOfRange);
+        navigable.subMap("tea", true, "test", true).clear();
+        System.out.println(navigable.size() == sorted.size() - 3);
+        System.out.println(navigable.pollFirstEntry().getKey().equals(""));
+        System.out.println(navigable.pollLastEntry().getKey().equals("testing"));
+        boolean navigationSnapshots = true;
+        for (final Map.Entry<String, String> entry : Arrays.asList(navigable.firstEntry(), navigable.ceilingEntry("foo"),
+                navigable.descendingMap().firstEntry(), navigable.headMap("foo", false).lastEntry())) {
+            try {
+                entry.setValue("!");
+                navigationSnapshots = false;
+            } catch (UnsupportedOperationException e) {
+                // expected
+            }
+        }
+        System.out.println(navigationSnapshots && !navigable.containsValue("!"));
+        System.out.println(navigable.navigableKeySet().equals(new HashSet<>(Arrays.asList("fo", "foo"))));
+
+        // lookups on a slice of a larger buffer, without allocating
+        final String request = "GET /testing HTTP/1.1";
+        final java.nio.CharBuffer buffer = java.nio.CharBuffer.wrap(request);
+        System.out.println(tree.get(request, 5, 12).equals("123"));
+        System.out.println(tree.get(buffer, 5, 9).equals("abc"));
+        System.out.println(tree.get(request, 5, 11) == null);
+        System.out.println(tree.get(request, 5, 5).equals("Zing"));
+        System.out.println(tree.containsKey(buffer, 5, 9));
+        System.out.println(tree.containsPrefix(request, 5, 11));
+        System.out.println(!tree.containsPrefix(request, 4, 11));
+        boolean outOfBounds = false;
+        try {
+            tree.get(request, 5, 40);
+        } catch (IndexOutOfBoundsException e) {
+            outOfBounds = true;
+        }
+        System.out.println(outOfBounds);
+        System.out.println(allocatedBytes(() -> {
+            for (int i = 0; i < 100000; ++i) {
+                tree.get(request, 5, 12);
+                tree.get(buffer, 5, 9);
+                tree.containsKey(request, 5, 11);
+                tree.containsPrefix(buffer, 5, 11);
+                tree.get(request);
+            }
+        }) < 100000); // less than a byte per iteration, i.e. nothing allocated per call
+        final RadixTree<String> sliced = new RadixTree<>();
+        sliced.putAll(reference);
+        System.out.println(sliced.remove(request, 5, 9).equals("abc"));
+        System.out.println(sliced.remove(buffer, 5, 9) == null);
+        System.out.println(sliced.get("testing").equals("123"));
+        System.out.println(sliced.size() == reference.size() - 1);
+
+        // longest and all prefix matches, for routing
+        final RadixTree<String> routes = new RadixTree<>();
+        routes.put("/", "root");
+        routes.put("/api", "api");
+        routes.put("/api/v1", "v1");
+        routes.put("/api/v1/users", "users");
+        routes.put("/apiary", "bees");
+        System.out.println(routes.longestPrefixEntry("/api/v1/users/42").getValue().equals("users"));
+        System.out.println(routes.longestPrefixEntry("/api/v2/users").getKey().equals("/api"));
+        System.out.println(routes.longestPrefixEntry("/ap").getKey().equals("/"));
+        System.out.println(routes.longestPrefixEntry("api") == null);
+        System.out.println(routes.longestPrefixEntry(request, 4, 12).getKey().equals("/"));
+        System.out.println(tree.longestPrefixEntry("testings").getKey().equals("testing"));
+        System.out.println(tree.longestPrefixEntry("xyz").getKey().equals(""));
+        final List<String> prefixKeys = new ArrayList<>();
+        for (final Map.Entry<String, String> entry : routes.allPrefixEntries("/api/v1/users/42"))
+            prefixKeys.add(entry.getKey());
+        System.out.println(prefixKeys.equals(Arrays.asList("/", "/api", "/api/v1", "/api/v1/users")));
+        final List<String> prefixValues = new ArrayList<>();
+        routes.forEachPrefixEntry("/apiary/hive", entry -> prefixValues.add(entry.getValue()));
+        System.out.println(prefixValues.equals(Arrays.asList("root", "api", "bees")));
+        System.out.println(!routes.allPrefixEntries("nothing").iterator().hasNext());
+        System.out.println(allocatedBytes(() -> {
+            for (int i = 0; i < 100000; ++i)
+                routes.longestPrefixEntry(request, 4, 12);
+        }) < 100000);
+
+        // fuzzy matches within an edit distance
+        final RadixTree<String> words = new RadixTree<>();
+        for (final String word : new String[]{"car", "cart", "care", "cat", "bar", "carbon", "scar", "dog"})
+            words.put(word, word);
+        System.out.println(keysOf(words.fuzzyEntries("car", 0)).equals(Arrays.asList("car")));
+        System.out.println(keysOf(words.fuzzyEntries("car", 1)).equals(Arrays.asList("bar", "car", "care", "cart", "cat", "scar")));
+        System.out.println(keysOf(words.fuzzyEntries("cra", 1)).isEmpty());
+        System.out.println(keysOf(words.fuzzyEntries("cra", 2)).equals(Arrays.asList("car", "care", "cart", "cat")));
+        System.out.println(keysOf(words.fuzzyEntries("carb", 1, true)).equals(Arrays.asList("car", "carbon", "care", "cart")));
+        System.out.println(keysOf(words.fuzzyEntries("x", 1, true)).size() == words.size());
+        System.out.println(keysOf(tree.fuzzyEntries("x", 1)).equals(Arrays.asList("")));
+
+        // top scored completions, through splits, merges and removals
+        final RadixTree<Integer> scored = new RadixTree<>(weight -> weight);
+        scored.put("apple", 50);
+        scored.put("application", 80);
+        scored.put("apply", 20);
+        scored.put("ape", 70);
+        scored.put("banana", 90);
+        System.out.println(keysOf(scored.topK("ap", 2)).equals(Arrays.asList("application", "ape")));
+        System.out.println(keysOf(scored.topK("", 1)).equals(Arrays.asList("banana")));
+        System.out.println(keysOf(scored.topK("appl", 10)).equals(Arrays.asList("application", "apple", "apply")));
+        System.out.println(scored.topK("c", 3).isEmpty());
+        scored.remove("application");
+        scored.put("ape", 10);
+        System.out.println(keysOf(scored.topK("ap", 2)).equals(Arrays.asList("apple", "apply")));
+        scored.entrySet("apple").iterator().next().setValue(5);
+        System.out.println(keysOf(scored.topK("ap", 2)).equals(Arrays.asList("apply", "ape")));
+        scored.removePrefix("appl");
+        System.out.println(keysOf(scored.topK("a", 5)).equals(Arrays.asList("ape")));
+        boolean unscored = false;
+        try {
+            tree.topK("", 1);
+        } catch (IllegalStateException e) {
+            unscored = true;
+        }
+        System.out.println(unscored);
+
+        // subtree counts: prefix counts, rank and select
+        final RadixTree<String> counted = new RadixTree<>();
+        counted.putAll(sorted);
+        System.out.println(counted.countPrefix("te") == 4);
+        System.out.println(counted.countPrefix("tes") == 2);
+        System.out.println(counted.countPrefix("x") == 0);
+        System.out.println(counted.countPrefix("") == counted.size());
+        final List<String> orderedKeys = new ArrayList<>(sorted.keySet());
+        boolean ranked = true;
+        for (int i = 0; i < orderedKeys.size(); ++i) {
+            ranked &= counted.rank(orderedKeys.get(i)) == i;
+            ranked &= counted.select(i).getKey().equals(orderedKeys.get(i));
+        }
+        System.out.println(ranked);
+        System.out.println(counted.rank("tes") == sorted.headMap("tes").size());
+        System.out.println(counted.rank("zzz") == counted.size());
+        final Set<Map.Entry<String, String>> detached = counted.removePrefix("te");
+        System.out.println(detached.size() == 4);
+        System.out.println(counted.countPrefix("te") == 0);
+        System.out.println(counted.countPrefix("") == 3);
+        System.out.println(counted.select(2).getKey().equals("foo"));
+        boolean noSuchIndex = false;
+        try {
+            counted.select(3);
+        } catch (IndexOutOfBoundsException e) {
+            noSuchIndex = true;
+        }
+        System.out.println(noSuchIndex);
+
+        // bulk loading from sorted entries
+        final TreeMap<String, Integer> bulk = new TreeMap<>();
+        for (int i = 0; i < 2000; ++i)
+            bulk.put(Integer.toString(i * 7919 % 100003, 36), i);
+        bulk.put("", -1);
+        final List<Map.Entry<String, Integer>> bulkEntries = new ArrayList<>(bulk.entrySet());
+        for (final RadixTree<Integer> loaded : Arrays.asList(
+                RadixTree.fromSorted(bulkEntries.iterator()), RadixTree.fromSorted(bulkEntries, true))) {
+            System.out.println(bulk.equals(loaded));
+            System.out.println(new ArrayList<>(loaded.keySet()).equals(new ArrayList<>(bulk.keySet())));
+            System.out.println(loaded.countPrefix("1") == bulk.subMap("1", "2").size());
+            System.out.println(loaded.rank("a") == bulk.headMap("a").size());
+            loaded.put("1zz", 0);
+            loaded.remove("");
+            System.out.println(loaded.get("1zz") == 0 && loaded.size() == bulk.size());
+        }
+        boolean unsorted = false;
+        try {
+            RadixTree.fromSorted(Arrays.asList(bulkEntries.get(2), bulkEntries.get(1)).iterator());
+        } catch (IllegalArgumentException e) {
+            unsorted = true;
+        }
+        System.out.println(unsorted);
+        boolean duplicate = false;
+        try {
+            RadixTree.fromSorted(Arrays.asList(bulkEntries.get(1), bulkEntries.get(1)), true);
+        } catch (IllegalArgumentException e) {
+            duplicate = true;
+        }
+        System.out.println(duplicate);
+
+        // streams, split along subtrees
+        final RadixTree<Integer> indexed = RadixTree.fromSorted(bulkEntries.iterator());
+        System.out.println(indexed.stream().map(Map.Entry::getKey).collect(Collectors.toList())
+                .equals(new ArrayList<>(bulk.keySet())));
+        System.out.println(indexed.stream("1").parallel().map(Map.Entry::getKey).collect(Collectors.toList())
+                .equals(new ArrayList<>(bulk.subMap("1", "2").keySet())));
+        long expectedSum = 0;
+        for (final int value : bulk.values())
+            expectedSum += value;
+        System.out.println(indexed.stream().parallel().mapToLong(Map.Entry::getValue).sum() == expectedSum);
+        System.out.println(indexed.entrySet().stream().parallel().count() == bulk.size());
+        System.out.println(indexed.stream("x!").count() == 0);
+        final Spliterator<Map.Entry<String, Integer>> spliterator = indexed.entrySet("1").spliterator();
+        System.out.println(spliterator.hasCharacteristics(Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.SORTED));
+        System.out.println(spliterator.getExactSizeIfKnown() == bulk.subMap("1", "2").size());
+        final Spliterator<Map.Entry<String, Integer>> split = spliterator.trySplit();
+        System.out.println(split != null && split.estimateSize() + spliterator.estimateSize() == bulk.subMap("1", "2").size());
+        indexed.put("new", 1);
+        boolean modified = false;
+        try {
+            spliterator.tryAdvance(entry -> { });
+        } catch (ConcurrentModificationException e) {
+            modified = true;
+        }
+        System.out.println(modified);
+
+        // binary serialization
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        indexed.writeTo(written, ValueCodec.INTEGER);
+        final RadixTree<Integer> loaded = RadixTree.readFrom(new ByteArrayInputStream(written.toByteArray()), ValueCodec.INTEGER);
+        System.out.println(loaded.size() == indexed.size());
+        System.out.println(new ArrayList<>(loaded.keySet()).equals(new ArrayList<>(indexed.keySet())));
+        System.out.println(loaded.get("new") == 1 && loaded.get("") == -1);
+        System.out.println(loaded.countPrefix("1") == indexed.countPrefix("1"));
+        final Path file = Files.createTempFile("radixtree", ".bin");
+        try {
+            try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                indexed.writeTo(channel, ValueCodec.INTEGER);
+                channel.write(ByteBuffer.wrap(new byte[]{42}));
+            }
+            try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                final RadixTree<Integer> mapped = RadixTree.readFrom(channel, ValueCodec.INTEGER);
+                System.out.println(new ArrayList<>(mapped.keySet()).equals(new ArrayList<>(loaded.keySet())));
+                System.out.println(new ArrayList<>(mapped.values()).equals(new ArrayList<>(loaded.values())));
+                System.out.println(channel.position() == written.size());
+            }
+        } finally {
+            Files.delete(file);
+        }
+        boolean corrupt = false;
+        try {
+            RadixTree.readFrom(new ByteArrayInputStream(Arrays.copyOf(written.toByteArray(), written.size() / 2)), ValueCodec.INTEGER);
+        } catch (IOException e) {
+            corrupt = true;
+        }
+        System.out.println(corrupt);
+
+        // keys are held once, as put: getKey() neither copies nor pins removed keys
+        final RadixTree<Integer> owned = new RadixTree<>();
+        final String longer = new String("testing");
+        final String shorter = new String("test");
+        owned.put(longer, 1);
+        owned.put(shorter, 2);
+        System.out.println(owned.firstKey() == shorter);
+        owned.remove("testing");
+        owned.put("tested", 3);
+        owned.put("tester", 4);
+        owned.remove("test");
+        System.out.println(owned.firstKey().equals("tested") && owned.size() == 2);
+        owned.putAll(bulk);
+        final int[] keyLengths = new int[1];
+        System.out.println(allocatedBytes(() -> {
+            for (final String key : owned.keySet())
+                keyLengths[0] += key.length();
+        }) < bulk.size());
+
+        // bounded cache: cold keys go, keys read since stay, counts stay consistent
+        for (final RadixTree.Eviction eviction : RadixTree.Eviction.values()) {
+            final RadixTree<Integer> cache = new RadixTree<>(100, eviction);
+            for (int i = 0; i < 100; ++i)
+                cache.put("cold/" + i, i);
+            for (int i = 100; i < 300; ++i) {
+                cache.put("new/" + i, i);
+                for (int j = 0; j < 20; ++j)
+                    cache.get("cold/" + j);
+            }
+            cache.get("absent");
+            int survivors = 0;
+            for (int j = 0; j < 20; ++j)
+                survivors += cache.containsKey("cold/" + j) ? 1 : 0;
+            final RadixTree.CacheStats stats = cache.cacheStats();
+            System.out.println(cache.size() <= 100 && survivors >= 18);
+            System.out.println(stats.requestCount() == 4001 && stats.missCount >= 1 && stats.weight == cache.size());
+            System.out.println(stats.evictionCount == 300 - cache.size());
+            System.out.println(cache.countPrefix("") == cache.size() && cache.keySet().size() == cache.size());
+        }
+
+        // LRU keeps a key read after the latest put, over the keys put before it
+        boolean readKept = true;
+        for (int round = 0; round < 100; ++round) {
+            final RadixTree<Integer> recent = new RadixTree<>(3, RadixTree.Eviction.LRU);
+            recent.put("x", 0);
+            recent.put("y", 1);
+            recent.put("z", 2);
+            for (int i = 0; i < 3; ++i)
+                recent.get("x");
+            recent.put("w", 3);
+            readKept &= recent.size() == 3 && recent.containsKey("x") && recent.containsKey("w");
+        }
+        System.out.println(readKept);
+
+        // LFU keeps a key read often, though not lately
+        final RadixTree<Integer> frequent = new RadixTree<>(100, RadixTree.Eviction.LFU);
+        frequent.put("often", 0);
+        for (int i = 0; i < 50; ++i)
+            frequent.get("often");
+        for (int i = 0; i < 300; ++i)
+            frequent.put("once/" + i, i);
+        System.out.println(frequent.containsKey("often"));
+
+        // the empty key can be evicted, and a put never evicts its own key with a subtree above it
+        for (final RadixTree.Eviction eviction : RadixTree.Eviction.values()) {
+            final RadixTree<Integer> small = new RadixTree<>(3, eviction);
+            boolean kept = true;
+            for (int i = 0; i < 20; ++i) {
+                for (final String key : new String[]{"", "x", "y", "z", "w"}) {
+                    small.put(key, i);
+                    kept &= small.get(key) == i && small.size() <= 3;
+                }
+            }
+            final RadixTree<Integer> nested = new RadixTree<>(64, eviction);
+            final Random puts = new Random(11);
+            for (int op = 0; op < 20000; ++op) {
+                final String key = randomKey(puts, 6);
+                nested.put(key, op);
+                kept &= nested.containsKey(key) && nested.size() <= 64;
+            }
+            System.out.println(kept && nested.countPrefix("") == nested.size());
+        }
+
+        // bounded by estimated bytes, the weight follows every update
+        final RadixTree<String> budget = new RadixTree<>(10000L, value -> 2L * value.length(), RadixTree.Eviction.LRU);
+        final Random churn = new Random(5);
+        for (int op = 0; op < 20000; ++op) {
+            final String key = Integer.toString(churn.nextInt(1000), 7);
+            if (op % 3 == 0)
+                budget.remove(key);
+            else
+                budget.put(key, key + key);
+        }
+        final Map.Entry<String, String> budgetFirst = budget.entrySet().iterator().next();
+        budgetFirst.setValue("");
+        final int budgetSize = budget.size();
+        boolean unweighed = false;
+        try {
+            budgetFirst.setValue(null);
+        } catch (NullPointerException e) {
+            unweighed = true;
+        }
+        System.out.println(unweighed && budget.size() == budgetSize && budget.firstEntry().getValue().equals(""));
+
+        // entries detached by removePrefix(..) no longer weigh in the tree
+        final RadixTree<String> detaching = new RadixTree<>(1000L, value -> 2L * value.length(), RadixTree.Eviction.LRU);
+        final RadixTree<String> control = new RadixTree<>(1000L, value -> 2L * value.length(), RadixTree.Eviction.LRU);
+        for (final String key : new String[]{"k1", "k2", "z"})
+            detaching.put(key, key);
+        final Map.Entry<String, String> held = detaching.entrySet("k1").iterator().next();
+        boolean snapshots = true;
+        for (final Map.Entry<String, String> entry : detaching.removePrefix("k")) {
+            try {
+                entry.setValue("a much longer value than the key");
+                snapshots = false;
+            } catch (UnsupportedOperationException e) {
+                // expected
+            }
+        }
+        held.setValue("a much longer value than the key");
+        detaching.put("y", "y");
+        control.put("z", "z");
+        control.put("y", "y");
+        System.out.println(snapshots && detaching.cacheStats().weight == control.cacheStats().weight
+                && detaching.size() == 2 && detaching.get("k1") == null);
+        long expectedWeight = 0;
+        for (final Map.Entry<String, String> entry : budget.entrySet())
+            expectedWeight += 112 + 2L * entry.getKey().length() + 2L * entry.getValue().length();
+        System.out.println(budget.cacheStats().weight == expectedWeight && expectedWeight <= 10000);
+        System.out.println(new RadixTree<Integer>().cacheStats().capacity == Long.MAX_VALUE);
+
+        // structure: "" -> "te" -> {"a", "st" -> "ing"}
+        final RadixTree<Integer> shaped = new RadixTree<>();
+        shaped.put("", 0);
+        shaped.put("test", 1);
+        shaped.put("testing", 2);
+        shaped.put("tea", 3);
+        final RadixTree.TreeStats shape = shaped.stats();
+        System.out.println(shape.nodeCount == 5 && shape.keyCount == 4 && shape.maxDepth == 3);
+        System.out.println(Arrays.equals(shape.depthHistogram(), new int[]{1, 0, 2, 1}));
+        System.out.println(Arrays.equals(shape.fanoutHistogram(), new int[]{2, 2, 1}));
+        System.out.println(shape.averageLabelLength == 2.0 && shape.averageDepth() == 1.75);
+        System.out.println(shape.sparseNodeCount == 3 && shape.denseNodeCount == 0);
+        System.out.println(shape.keyBytes == 40 + 3 * 48 && shape.estimatedBytes() > shape.nodeBytes);
+        final RadixTree.TreeStats bulkShape = indexed.stats();
+        System.out.println(bulkShape.keyCount == indexed.size() && bulkShape.denseNodeCount > 0);
+
+        // only the nodes of bounded trees carry the access bookkeeping, 8 more bytes a node, 16 on JDK 8
+        final long[] nodeAllocations = new long[2];
+        final List<RadixTree<Integer>> filled = new ArrayList<>(Arrays.asList(null, null));
+        for (int mode = 0; mode < 2; ++mode) {
+            final int bounded = mode;
+            nodeAllocations[mode] = allocatedBytes(() -> {
+                final RadixTree<Integer> fill = bounded == 0
+                        ? new RadixTree<>() : new RadixTree<>(Integer.MAX_VALUE, RadixTree.Eviction.LRU);
+                for (final String key : indexed.keySet())
+                    fill.put(key, 0);
+                filled.set(bounded, fill);
+            });
+        }
+        final RadixTree.TreeStats[] nodeShapes = {filled.get(0).stats(), filled.get(1).stats()};
+        final int nodeCount = nodeShapes[0].nodeCount;
+        final long allocatedExtra = nodeAllocations[1] - nodeAllocations[0];
+        final long estimatedExtra = nodeShapes[1].nodeBytes - nodeShapes[0].nodeBytes;
+        System.out.println(nodeShapes[1].nodeCount == nodeCount
+                && allocatedExtra >= 7L * nodeCount && allocatedExtra <= 17L * nodeCount);
+        System.out.println((estimatedExtra == 8L * nodeCount || estimatedExtra == 16L * nodeCount)
+                && Math.abs(estimatedExtra - allocatedExtra) <= nodeCount);
+
+        // metrics: descents, splits, merges and matches, none once removed
+        final RadixTree.CountingMetrics metrics = new RadixTree.CountingMetrics();
+        shaped.setMetrics(metrics);
+        shaped.get("testing");
+        System.out.println(metrics.descents() == 1 && metrics.nodesVisited() == 4);
+        shaped.put("tes", 4); // splits "st" into "s" -> "t"
+        System.out.println(metrics.splits() == 1 && metrics.merges() == 0);
+        final long descentsBeforeRemove = metrics.descents();
+        shaped.remove("tes"); // "s" merges back with its only child
+        System.out.println(metrics.merges() == 1 && metrics.descents() == descentsBeforeRemove + 1);
+        shaped.findKeys("testing team");
+        shaped.findAllKeys("testing team");
+        System.out.println(metrics.searches() == 2 && metrics.matches() == 3 + 4);
+        shaped.setMetrics(null);
+        final long descents = metrics.descents();
+        shaped.get("test");
+        System.out.println(metrics.descents() == descents);
+
+        // set operations agree with TreeMaps, on trees whose labels split at different places
+        final Random sets = new Random(17);
+        boolean combined = true;
+        for (int round = 0; round < 200; ++round) {
+            final TreeMap<String, Integer> left = new TreeMap<>();
+            final TreeMap<String, Integer> right = new TreeMap<>();
+            for (int i = sets.nextInt(50); i > 0; --i)
+                left.put(randomKey(sets, 6), sets.nextInt(3));
+            for (int i = sets.nextInt(50); i > 0; --i)
+                right.put(randomKey(sets, 6), sets.nextInt(3));
+            final RadixTree<Integer> leftTree = new RadixTree<>();
+            final RadixTree<Integer> rightTree = new RadixTree<>();
+            leftTree.putAll(left);
+            rightTree.putAll(right);
+
+            final TreeMap<String, Integer> union = new TreeMap<>(left);
+            right.forEach((key, value) -> union.merge(key, value, (a, b) -> a + b == 2 ? null : a + b));
+            final TreeMap<String, Integer> common = new TreeMap<>(left);
+            common.keySet().retainAll(right.keySet());
+            final TreeMap<String, Integer> remaining = new TreeMap<>(left);
+            remaining.keySet().removeAll(right.keySet());
+
+            for (final boolean parallel : new boolean[]{false, true}) {
+                combined &= union.equals(leftTree.mergeWith(rightTree, (a, b) -> a + b == 2 ? null : a + b, parallel));
+                combined &= common.equals(leftTree.intersect(rightTree, parallel));
+                combined &= remaining.equals(leftTree.difference(rightTree, parallel));
+            }
+
+            final List<String> expectedDiff = new ArrayList<>();
+            final TreeSet<String> allKeys = new TreeSet<>(left.keySet());
+            allKeys.addAll(right.keySet());
+            for (final String key : allKeys) {
+                final Integer before = left.get(key);
+                final Integer after = right.get(key);
+                if (before == null)
+                    expectedDiff.add("+" + key);
+                else if (after == null)
+                    expectedDiff.add("-" + key);
+                else if (!before.equals(after))
+                    expectedDiff.add("~" + key + ":" + before + ">" + after);
+            }
+            final List<String> reported = new ArrayList<>();
+            leftTree.diff(rightTree, new RadixTree.DiffConsumer<Integer>() {
+                @Override
+                public void added(String key, Integer value) {
+                    reported.add("+" + key);
+                }
+
+                @Override
+                public void removed(String key, Integer value) {
+                    reported.add("-" + key);
+                }
+
+                @Override
+                public void changed(String key, Integer oldValue, Integer newValue) {
+                    reported.add("~" + key + ":" + oldValue + ">" + newValue);
+                }
+            });
+            combined &= reported.equals(expectedDiff) && left.equals(leftTree) && right.equals(rightTree);
+        }
+        System.out.println(combined);
+
+        // set operations keep the configuration of the receiver: its scorer, capacity and policy
+        final RadixTree<Integer> scoredKeys = new RadixTree<>(weight -> weight);
+        final RadixTree<Integer> plain = new RadixTree<>();
+        for (int i = 0; i < 50; ++i) {
+            scoredKeys.put("k" + i, i * 37 % 101);
+            if (i % 2 == 0)
+                plain.put("k" + i, 0);
+        }
+        final RadixTree<Integer> scoredEven = new RadixTree<>(weight -> weight);
+        scoredEven.putAll(scoredKeys.intersect(plain));
+        boolean configured = true;
+        for (final boolean parallel : new boolean[]{false, true}) {
+            configured &= keysOf(scoredKeys.intersect(plain, parallel).topK("k", 5)).equals(keysOf(scoredEven.topK("k", 5)));
+            configured &= keysOf(scoredKeys.mergeWith(new RadixTree<>(), Integer::sum, parallel).topK("k1", 3))
+                    .equals(keysOf(scoredKeys.topK("k1", 3)));
+            configured &= keysOf(scoredKeys.difference(plain, parallel).topK("", 50)).size() == 25;
+        }
+        final RadixTree<Integer> boundedCache = new RadixTree<>(10, RadixTree.Eviction.LRU);
+        for (int i = 0; i < 10; ++i)
+            boundedCache.put("c" + i, i);
+        for (final boolean parallel : new boolean[]{false, true}) {
+            final RadixTree<Integer> mergedCache = boundedCache.mergeWith(scoredKeys, Integer::sum, parallel);
+            configured &= mergedCache.size() == 10 && mergedCache.cacheStats().capacity == 10 && mergedCache.cacheStats().weight == 10;
+            mergedCache.put("new", 0);
+            configured &= mergedCache.size() == 10 && mergedCache.containsKey("new");
+        }
+        System.out.println(configured);
+
+        // batched lookups and puts, backtracking to the prefix shared with the previous key
+        final Random batches = new Random(23);
+        boolean batched = true;
+        for (int round = 0; round < 200; ++round) {
+            final TreeMap<String, Integer> expected = new TreeMap<>();
+            final RadixTree<Integer> batchTree = new RadixTree<>();
+            for (int i = batches.nextInt(20); i > 0; --i) {
+                final String key = randomKey(batches, 6);
+                expected.put(key, -1);
+                batchTree.put(key, -1);
+            }
+            final TreeMap<String, Integer> sortedBatch = new TreeMap<>();
+            final Map<String, Integer> unsortedBatch = new HashMap<>();
+            for (int i = batches.nextInt(40); i > 0; --i) {
+                sortedBatch.put(randomKey(batches, 6), i);
+                unsortedBatch.put(randomKey(batches, 6), -i);
+            }
+            batchTree.putAll(sortedBatch);
+            expected.putAll(sortedBatch);
+            batchTree.putAll(unsortedBatch);
+            expected.putAll(unsortedBatch);
+            batched &= expected.equals(batchTree) && batchTree.size() == expected.size();
+
+            final List<String> probes = new ArrayList<>();
+            for (int i = 0; i < 30; ++i)
+                probes.add(randomKey(batches, 6));
+            for (final String probe : probes)
+                batched &= batchTree.countPrefix(probe) == expected.subMap(probe, probe + Character.MAX_VALUE).size()
+                        && batchTree.rank(probe) == expected.headMap(probe).size();
+
+            final Integer[] values = new Integer[probes.size()];
+            for (final boolean sortedProbes : new boolean[]{false, true}) {
+                if (sortedProbes)
+                    Collections.sort(probes);
+                int present = 0;
+                for (final String probe : probes)
+                    present += expected.containsKey(probe) ? 1 : 0;
+                batched &= batchTree.getAll(probes, values) == present;
+                for (int i = 0; i < probes.size(); ++i)
+                    batched &= Objects.equals(values[i], expected.get(probes.get(i)));
+            }
+
+            final List<String> visited = new ArrayList<>();
+            batchTree.getAll(probes, (key, value) -> visited.add(key + "=" + value));
+            final List<String> looked = new ArrayList<>();
+            for (final String probe : probes)
+                looked.add(probe + "=" + expected.get(probe));
+            batched &= visited.equals(looked);
+        }
+        System.out.println(batched);
+        final RadixTree<Integer> shortValues = new RadixTree<>();
+        boolean tooShort = false;
+        try {
+            shortValues.getAll(Arrays.asList("a", "b"), new Integer[1]);
+        } catch (IllegalArgumentException e) {
+            tooShort = true;
+        }
+        System.out.println(tooShort);
+    }
+
+    /**
+     * @return a key of up to maxLength chars out of "abc", so that random
+     * keys often share prefixes
+     */
+    static String randomKey(Random random, int maxLength) {
+        final StringBuilder builder = new StringBuilder();
+        for (int length = random.nextInt(maxLength + 1); length > 0; --length)
+            builder.append((char) ('a' + random.nextInt(3)));
+        return builder.toString();
+    }
+
+    private static <V> List<String> keysOf(List<Map.Entry<String, V>> entries) {
+        final List<String> keys = new ArrayList<>();
+        for (final Map.Entry<String, V> entry : entries)
+            keys.add(entry.getKey());
+        return keys;
+    }
+
+    /**
+     * @return the bytes allocated by the current thread while running body,
+     * or 0 if the JVM cannot count them
+     */
+    static long allocatedBytes(Runnable body) {
+        final java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            body.run();
+            return 0;
+        }
+
+        final com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+        final long thread = Thread.currentThread().getId();
+
+        body.run(); // warm up, so that class loading and compilation are not counted
+        final long before = counter.getThreadAllocatedBytes(thread);
+        body.run();
+        return counter.getThreadAllocatedBytes(thread) - before;
     }
 }